@@ -96,10 +96,34 @@ tasks.register("qualityCheck") {
 }
 
 tasks.test {
-    useJUnitPlatform()
+    useJUnitPlatform {
+        excludeTags("load")
+    }
     finalizedBy(tasks.jacocoTestReport)
 }
 
+// Concurrent load test of the SERVICE path, e.g. ./gradlew loadTest -PloadTest.threads=64 -PloadTest.durationSeconds=30
+tasks.register<Test>("loadTest") {
+    description = "Runs the concurrent federated query load test and reports throughput and latency percentiles."
+    group = "verification"
+    testClassesDirs = sourceSets.test.get().output.classesDirs
+    classpath = sourceSets.test.get().runtimeClasspath
+    useJUnitPlatform {
+        includeTags("load")
+    }
+    project.properties
+        .filterKeys { it.startsWith("loadTest.") && it != "loadTest.javaVersion" }
+        .forEach { (key, value) -> systemProperty(key, value.toString()) }
+    project.findProperty("loadTest.javaVersion")?.let { version ->
+        javaLauncher.set(javaToolchains.launcherFor {
+            languageVersion.set(JavaLanguageVersion.of(version.toString()))
+        })
+    }
+    testLogging.showStandardStreams = true
+    outputs.upToDateWhen { false }
+    shouldRunAfter(tasks.test)
+}
+
 tasks.jacocoTestReport {
     dependsOn(tasks.test)
 }
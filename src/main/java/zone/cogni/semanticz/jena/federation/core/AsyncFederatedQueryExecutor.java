@@ -0,0 +1,319 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package zone.cogni.semanticz.jena.federation.core;
+
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QueryExecution;
+import org.apache.jena.query.QueryExecutionFactory;
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.query.ResultSetFactory;
+import org.apache.jena.query.ResultSetRewindable;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs federated queries, including their local SERVICE hops, off the caller's thread.
+ * <p>
+ * {@link #select(Query, Dataset)} completes a {@link CompletableFuture} with the copied results
+ * and suits small results; cancelling the future aborts the query. {@link #publish(Query, Dataset)} streams bindings to a
+ * {@link Flow.Subscriber} with backpressure: the query only advances as far as the subscriber
+ * has requested, and cancelling the subscription aborts it. A subscriber that throws from one of
+ * its methods has its subscription cancelled, as the Reactive Streams rules require, and is not
+ * signalled again.
+ * <p>
+ * A query is executed start to finish on one thread, because transactions of stores such as TDB2
+ * are bound to the thread that opened them; a streaming query therefore parks its thread while
+ * it waits for demand. By default queries run on virtual threads when the JVM supports them, and
+ * on a cached pool of daemon threads otherwise.
+ */
+public class AsyncFederatedQueryExecutor implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(AsyncFederatedQueryExecutor.class);
+
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+
+    /**
+     * Creates an executor running queries on virtual threads when available.
+     */
+    public AsyncFederatedQueryExecutor() {
+        this(defaultExecutor(), true);
+    }
+
+    /**
+     * Creates an executor running queries on the given executor service, which stays
+     * owned by the caller.
+     */
+    public AsyncFederatedQueryExecutor(ExecutorService executor) {
+        this(executor, false);
+    }
+
+    private AsyncFederatedQueryExecutor(ExecutorService executor, boolean ownsExecutor) {
+        this.executor = Objects.requireNonNull(executor, "Executor cannot be null");
+        this.ownsExecutor = ownsExecutor;
+    }
+
+    private static ExecutorService defaultExecutor() {
+        try {
+            ExecutorService virtual = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            log.debug("Running asynchronous federated queries on virtual threads");
+            return virtual;
+        } catch (ReflectiveOperationException e) {
+            log.debug("Virtual threads not available, running asynchronous federated queries on a cached thread pool");
+            AtomicInteger counter = new AtomicInteger();
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "local-federation-query-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Executes a SELECT query asynchronously.
+     *
+     * @param query   The query.
+     * @param dataset The dataset the query runs over.
+     * @return A future completed with the fully copied results, or with the failure of the query.
+     * Cancelling it aborts the running query.
+     */
+    public CompletableFuture<ResultSetRewindable> select(Query query, Dataset dataset) {
+        Objects.requireNonNull(query, "Query cannot be null");
+        Objects.requireNonNull(dataset, "Dataset cannot be null");
+        CompletableFuture<ResultSetRewindable> future = new CompletableFuture<>();
+        AtomicReference<QueryExecution> running = new AtomicReference<>();
+        future.whenComplete((results, failure) -> {
+            QueryExecution qExec = running.get();
+            if (future.isCancelled() && qExec != null) {
+                qExec.abort();
+            }
+        });
+        executor.execute(() -> {
+            if (future.isDone()) {
+                return;
+            }
+            try (QueryExecution qExec = QueryExecutionFactory.create(query, dataset)) {
+                running.set(qExec);
+                // Checked after publishing the handle, so a cancel in between is not missed.
+                if (future.isCancelled()) {
+                    return;
+                }
+                future.complete(ResultSetFactory.copyResults(qExec.execSelect()));
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Executes a SELECT query asynchronously.
+     *
+     * @see #select(Query, Dataset)
+     */
+    public CompletableFuture<ResultSetRewindable> select(String query, Dataset dataset) {
+        return select(QueryFactory.create(query), dataset);
+    }
+
+    /**
+     * Creates a publisher streaming the bindings of a SELECT query. Every subscription executes
+     * the query anew.
+     *
+     * @param query   The query.
+     * @param dataset The dataset the query runs over.
+     * @return A cold publisher of the result bindings.
+     */
+    public Flow.Publisher<Binding> publish(Query query, Dataset dataset) {
+        Objects.requireNonNull(query, "Query cannot be null");
+        Objects.requireNonNull(dataset, "Dataset cannot be null");
+        return subscriber -> {
+            Objects.requireNonNull(subscriber, "Subscriber cannot be null");
+            BindingSubscription subscription = new BindingSubscription(subscriber, query, dataset);
+            try {
+                subscriber.onSubscribe(subscription);
+            } catch (Throwable e) {
+                log.warn("Subscriber failed in onSubscribe, not executing the query", e);
+                return;
+            }
+            executor.execute(subscription);
+        };
+    }
+
+    /**
+     * Creates a publisher streaming the bindings of a SELECT query.
+     *
+     * @see #publish(Query, Dataset)
+     */
+    public Flow.Publisher<Binding> publish(String query, Dataset dataset) {
+        return publish(QueryFactory.create(query), dataset);
+    }
+
+    /**
+     * Shuts down the default executor. An executor service passed in by the caller is left running.
+     */
+    @Override
+    public void close() {
+        if (ownsExecutor) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Emits the bindings of one query execution as the subscriber requests them.
+     */
+    private static final class BindingSubscription implements Flow.Subscription, Runnable {
+
+        private final Flow.Subscriber<? super Binding> subscriber;
+        private final Query query;
+        private final Dataset dataset;
+        private final Object lock = new Object();
+        private long demand;
+        private boolean cancelled;
+        private IllegalArgumentException invalidRequest;
+        private volatile QueryExecution execution;
+
+        BindingSubscription(Flow.Subscriber<? super Binding> subscriber, Query query, Dataset dataset) {
+            this.subscriber = subscriber;
+            this.query = query;
+            this.dataset = dataset;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                // Signalled by the producer, so that the subscriber is never called from two threads at once.
+                synchronized (lock) {
+                    if (invalidRequest == null) {
+                        invalidRequest = new IllegalArgumentException("Requested a non-positive number of bindings: " + n);
+                    }
+                    lock.notifyAll();
+                }
+                return;
+            }
+            synchronized (lock) {
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                lock.notifyAll();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (lock) {
+                cancelled = true;
+                lock.notifyAll();
+            }
+            QueryExecution running = execution;
+            if (running != null) {
+                running.abort();
+            }
+        }
+
+        @Override
+        public void run() {
+            try (QueryExecution qExec = QueryExecutionFactory.create(query, dataset)) {
+                execution = qExec;
+                if (!awaitDemand()) {
+                    terminate(null);
+                    return;
+                }
+                ResultSet results = qExec.execSelect();
+                boolean demanded = true;
+                while (results.hasNext()) {
+                    if (!demanded && !awaitDemand()) {
+                        terminate(null);
+                        return;
+                    }
+                    Binding binding = results.nextBinding();
+                    try {
+                        subscriber.onNext(binding);
+                    } catch (Throwable e) {
+                        log.warn("Subscriber failed in onNext, cancelling its subscription", e);
+                        cancel();
+                        return;
+                    }
+                    demanded = false;
+                }
+                terminate(null);
+            } catch (Throwable e) {
+                terminate(e);
+            }
+        }
+
+        /**
+         * Waits until the subscriber requests a binding and takes it from the demand.
+         *
+         * @return false if the subscription was cancelled or given an invalid request meanwhile.
+         */
+        private boolean awaitDemand() {
+            synchronized (lock) {
+                try {
+                    while (demand == 0 && !cancelled && invalidRequest == null) {
+                        lock.wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    cancelled = true;
+                }
+                if (cancelled || invalidRequest != null) {
+                    return false;
+                }
+                demand--;
+                return true;
+            }
+        }
+
+        /**
+         * Sends the terminal signal unless the subscription was cancelled: the invalid request if
+         * there was one, otherwise the failure, otherwise completion.
+         */
+        private void terminate(Throwable failure) {
+            IllegalArgumentException invalid;
+            synchronized (lock) {
+                if (cancelled) {
+                    return;
+                }
+                cancelled = true;
+                invalid = invalidRequest;
+            }
+            try {
+                if (invalid != null) {
+                    subscriber.onError(invalid);
+                } else if (failure != null) {
+                    subscriber.onError(failure);
+                } else {
+                    subscriber.onComplete();
+                }
+            } catch (Throwable e) {
+                log.warn("Subscriber failed handling the terminal signal", e);
+            }
+        }
+    }
+}
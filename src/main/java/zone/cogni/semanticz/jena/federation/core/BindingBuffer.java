@@ -0,0 +1,181 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package zone.cogni.semanticz.jena.federation.core;
+
+import org.apache.jena.atlas.data.BagFactory;
+import org.apache.jena.atlas.data.DataBag;
+import org.apache.jena.atlas.data.ThresholdPolicy;
+import org.apache.jena.atlas.data.ThresholdPolicyFactory;
+import org.apache.jena.atlas.iterator.Iter;
+import org.apache.jena.riot.system.SerializationFactoryFinder;
+import org.apache.jena.sparql.engine.ExecutionContext;
+import org.apache.jena.sparql.engine.QueryIterator;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.iterator.QueryIterPlainWrapper;
+import org.apache.jena.sparql.engine.iterator.QueryIteratorWrapper;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Buffer for materialized SERVICE results.
+ * <p>
+ * Without a threshold the rows stay on the heap. With a threshold, the buffer is a Jena
+ * {@link DataBag}: once more rows than the threshold are added, they are written to a
+ * compact binary temporary file and streamed back on iteration, so a large result costs
+ * disk I/O instead of heap. The buffer can be iterated more than once and must be closed
+ * to release its temporary files.
+ */
+final class BindingBuffer implements Iterable<Binding>, Closeable {
+
+    private final List<Binding> rows;
+    private final DataBag<Binding> bag;
+    private final SpillTrackingPolicy policy;
+    private long size;
+
+    private BindingBuffer(long spillThreshold) {
+        if (spillThreshold > 0) {
+            this.rows = null;
+            this.policy = new SpillTrackingPolicy(ThresholdPolicyFactory.count(spillThreshold));
+            this.bag = BagFactory.newDefaultBag(policy, SerializationFactoryFinder.bindingSerializationFactory());
+        } else {
+            this.rows = new ArrayList<>();
+            this.policy = null;
+            this.bag = null;
+        }
+    }
+
+    /**
+     * Creates a buffer.
+     *
+     * @param spillThreshold The number of rows kept in memory, or zero or less to never spill.
+     */
+    static BindingBuffer create(long spillThreshold) {
+        return new BindingBuffer(spillThreshold);
+    }
+
+    /**
+     * Creates a buffer holding all remaining rows of the given iterator.
+     */
+    static BindingBuffer drain(Iterator<Binding> source, long spillThreshold) {
+        BindingBuffer buffer = create(spillThreshold);
+        try {
+            source.forEachRemaining(buffer::add);
+        } catch (RuntimeException e) {
+            buffer.close();
+            throw e;
+        }
+        return buffer;
+    }
+
+    void add(Binding binding) {
+        if (bag != null) {
+            bag.add(binding);
+        } else {
+            rows.add(binding);
+        }
+        size++;
+    }
+
+    long size() {
+        return size;
+    }
+
+    /**
+     * Checks whether this buffer may write rows to disk.
+     */
+    boolean isSpillable() {
+        return bag != null;
+    }
+
+    /**
+     * Checks whether rows of this buffer were written to disk.
+     */
+    boolean isSpilled() {
+        return policy != null && policy.spilled;
+    }
+
+    @Override
+    public Iterator<Binding> iterator() {
+        return bag != null ? bag.iterator() : rows.iterator();
+    }
+
+    /**
+     * Creates a query iterator over the buffered rows.
+     *
+     * @param closeOnExhaustion Whether the buffer is closed together with the iterator,
+     *                          for buffers that are only read once.
+     */
+    QueryIterator toQueryIterator(ExecutionContext execCxt, boolean closeOnExhaustion) {
+        Iterator<Binding> iterator = iterator();
+        QueryIterator queryIterator = QueryIterPlainWrapper.create(iterator, execCxt);
+        return new QueryIteratorWrapper(queryIterator) {
+            @Override
+            protected void closeIterator() {
+                super.closeIterator();
+                Iter.close(iterator);
+                if (closeOnExhaustion) {
+                    BindingBuffer.this.close();
+                }
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        if (bag != null) {
+            bag.close();
+        }
+    }
+
+    /**
+     * Remembers whether the bag was ever told its threshold is exceeded, which is when it spills.
+     */
+    private static final class SpillTrackingPolicy implements ThresholdPolicy<Binding> {
+
+        private final ThresholdPolicy<Binding> delegate;
+        private volatile boolean spilled;
+
+        SpillTrackingPolicy(ThresholdPolicy<Binding> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void increment(Binding item) {
+            delegate.increment(item);
+        }
+
+        @Override
+        public boolean isThresholdExceeded() {
+            boolean exceeded = delegate.isThresholdExceeded();
+            if (exceeded) {
+                spilled = true;
+            }
+            return exceeded;
+        }
+
+        @Override
+        public void reset() {
+            delegate.reset();
+        }
+    }
+}
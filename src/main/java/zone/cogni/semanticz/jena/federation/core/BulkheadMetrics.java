@@ -0,0 +1,40 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package zone.cogni.semanticz.jena.federation.core;
+
+/**
+ * Snapshot of the admission control of one local service.
+ *
+ * @param maxConcurrency The maximum number of concurrent SERVICE calls.
+ * @param activeCalls    The number of SERVICE calls currently running.
+ * @param queueDepth     The number of SERVICE calls currently waiting for admission.
+ * @param admittedCalls  The number of calls admitted so far.
+ * @param rejectedCalls  The number of calls rejected so far, because the queue was full or the wait timed out.
+ * @param totalWaitNanos The total time calls spent waiting in the queue.
+ * @param maxWaitNanos   The longest time a single call spent waiting in the queue.
+ */
+public record BulkheadMetrics(int maxConcurrency,
+                              int activeCalls,
+                              int queueDepth,
+                              long admittedCalls,
+                              long rejectedCalls,
+                              long totalWaitNanos,
+                              long maxWaitNanos) {
+}
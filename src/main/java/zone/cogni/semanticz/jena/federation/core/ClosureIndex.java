@@ -0,0 +1,350 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package zone.cogni.semanticz.jena.federation.core;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.util.iterator.ExtendedIterator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A reachability index over the transitive closure of selected predicates of a graph.
+ * <p>
+ * For each predicate, the nodes it connects get dictionary ids and its edges are condensed into
+ * strongly connected components, so cycles such as {@code owl:sameAs} clusters collapse into a
+ * single entry. Every component keeps the sorted ids of the components it reaches and of those
+ * reaching it; for a hierarchy that is about the number of nodes times its depth.
+ * <p>
+ * The closure of a predicate is dropped when a statement with that predicate is added or
+ * removed, and rebuilt from the graph on the next lookup.
+ */
+final class ClosureIndex {
+
+    private final Graph graph;
+    private final Set<Node> predicates;
+    private final Map<Node, PredicateClosure> closures = new ConcurrentHashMap<>();
+
+    ClosureIndex(Graph graph, Set<Node> predicates) {
+        this.graph = graph;
+        this.predicates = Set.copyOf(predicates);
+        this.predicates.forEach(this::closure);
+    }
+
+    /**
+     * Checks whether the closure of a predicate is indexed.
+     */
+    boolean covers(Node predicate) {
+        return predicates.contains(predicate);
+    }
+
+    /**
+     * Gets the closure of an indexed predicate, building it first if it was invalidated.
+     */
+    PredicateClosure closure(Node predicate) {
+        // A concurrent invalidate() waits for a running build, so a stale build never survives it.
+        return closures.computeIfAbsent(predicate, p -> PredicateClosure.build(graph, p));
+    }
+
+    void invalidate(Node predicate) {
+        if (covers(predicate)) {
+            closures.remove(predicate);
+        }
+    }
+
+    void invalidateAll() {
+        closures.clear();
+    }
+
+    /**
+     * The closure of a single predicate.
+     */
+    static final class PredicateClosure {
+
+        private final Map<Node, Integer> ids;
+        private final Node[] nodes;
+        private final int[] componentOf;
+        private final int[][] members;
+        private final int[][] reachable;
+        private final int[][] reaching;
+
+        private PredicateClosure(Map<Node, Integer> ids, Node[] nodes, int[] componentOf, int[][] members,
+                                 int[][] reachable, int[][] reaching) {
+            this.ids = ids;
+            this.nodes = nodes;
+            this.componentOf = componentOf;
+            this.members = members;
+            this.reachable = reachable;
+            this.reaching = reaching;
+        }
+
+        /**
+         * Gets the nodes reachable from a node in one or more steps, or zero or more.
+         */
+        List<Node> reachableFrom(Node node, boolean zeroLength) {
+            return expand(node, reachable, zeroLength);
+        }
+
+        /**
+         * Gets the nodes from which a node is reachable in one or more steps, or zero or more.
+         */
+        List<Node> reaching(Node node, boolean zeroLength) {
+            return expand(node, reaching, zeroLength);
+        }
+
+        /**
+         * Checks whether a node is reachable from another in one or more steps, or zero or more.
+         */
+        boolean reaches(Node from, Node to, boolean zeroLength) {
+            if (zeroLength && from.equals(to)) {
+                return true;
+            }
+            Integer fromId = ids.get(from);
+            Integer toId = ids.get(to);
+            return fromId != null && toId != null
+                   && Arrays.binarySearch(reachable[componentOf[fromId]], componentOf[toId]) >= 0;
+        }
+
+        private List<Node> expand(Node node, int[][] closure, boolean zeroLength) {
+            Integer id = ids.get(node);
+            if (id == null) {
+                // As in SPARQL, a zero-length path matches any term, even one the graph does not contain.
+                return zeroLength ? List.of(node) : List.of();
+            }
+            List<Node> result = new ArrayList<>();
+            if (zeroLength) {
+                result.add(node);
+            }
+            for (int component : closure[componentOf[id]]) {
+                for (int member : members[component]) {
+                    if (!zeroLength || member != id) {
+                        result.add(nodes[member]);
+                    }
+                }
+            }
+            return result;
+        }
+
+        static PredicateClosure build(Graph graph, Node predicate) {
+            Map<Node, Integer> ids = new HashMap<>();
+            List<Node> nodes = new ArrayList<>();
+            int[] sources = new int[16];
+            int[] targets = new int[16];
+            int edges = 0;
+            ExtendedIterator<Triple> triples = graph.find(Node.ANY, predicate, Node.ANY);
+            try {
+                while (triples.hasNext()) {
+                    Triple triple = triples.next();
+                    if (edges == sources.length) {
+                        sources = Arrays.copyOf(sources, edges * 2);
+                        targets = Arrays.copyOf(targets, edges * 2);
+                    }
+                    sources[edges] = ids.computeIfAbsent(triple.getSubject(), n -> add(nodes, n));
+                    targets[edges] = ids.computeIfAbsent(triple.getObject(), n -> add(nodes, n));
+                    edges++;
+                }
+            } finally {
+                triples.close();
+            }
+
+            int nodeCount = nodes.size();
+            int[] firstEdge = new int[nodeCount + 1];
+            for (int e = 0; e < edges; e++) {
+                firstEdge[sources[e] + 1]++;
+            }
+            for (int v = 0; v < nodeCount; v++) {
+                firstEdge[v + 1] += firstEdge[v];
+            }
+            int[] successors = new int[edges];
+            int[] next = Arrays.copyOf(firstEdge, nodeCount);
+            for (int e = 0; e < edges; e++) {
+                successors[next[sources[e]]++] = targets[e];
+            }
+
+            int[] componentOf = new int[nodeCount];
+            int componentCount = components(nodeCount, firstEdge, successors, componentOf);
+            int[][] members = members(componentOf, componentCount);
+            int[][] reachable = reachable(members, componentOf, firstEdge, successors);
+            return new PredicateClosure(ids, nodes.toArray(new Node[0]), componentOf, members, reachable,
+                                        transpose(reachable));
+        }
+
+        private static int add(List<Node> nodes, Node node) {
+            nodes.add(node);
+            return nodes.size() - 1;
+        }
+
+        /**
+         * Finds the strongly connected components with an iterative Tarjan walk. Components are
+         * numbered in the order they complete, so a component only reaches lower-numbered ones.
+         *
+         * @return The number of components.
+         */
+        private static int components(int nodeCount, int[] firstEdge, int[] successors, int[] componentOf) {
+            int[] index = new int[nodeCount];
+            Arrays.fill(index, -1);
+            int[] low = new int[nodeCount];
+            boolean[] onStack = new boolean[nodeCount];
+            int[] stack = new int[nodeCount];
+            int[] path = new int[nodeCount];
+            int[] edgeCursor = new int[nodeCount];
+            int stackSize = 0;
+            int counter = 0;
+            int componentCount = 0;
+
+            for (int root = 0; root < nodeCount; root++) {
+                if (index[root] != -1) {
+                    continue;
+                }
+                int depth = 0;
+                path[depth++] = root;
+                index[root] = low[root] = counter++;
+                stack[stackSize++] = root;
+                onStack[root] = true;
+                edgeCursor[root] = firstEdge[root];
+                while (depth > 0) {
+                    int v = path[depth - 1];
+                    if (edgeCursor[v] < firstEdge[v + 1]) {
+                        int w = successors[edgeCursor[v]++];
+                        if (index[w] == -1) {
+                            path[depth++] = w;
+                            index[w] = low[w] = counter++;
+                            stack[stackSize++] = w;
+                            onStack[w] = true;
+                            edgeCursor[w] = firstEdge[w];
+                        } else if (onStack[w]) {
+                            low[v] = Math.min(low[v], index[w]);
+                        }
+                        continue;
+                    }
+                    depth--;
+                    if (depth > 0) {
+                        int parent = path[depth - 1];
+                        low[parent] = Math.min(low[parent], low[v]);
+                    }
+                    if (low[v] == index[v]) {
+                        int w;
+                        do {
+                            w = stack[--stackSize];
+                            onStack[w] = false;
+                            componentOf[w] = componentCount;
+                        } while (w != v);
+                        componentCount++;
+                    }
+                }
+            }
+            return componentCount;
+        }
+
+        private static int[][] members(int[] componentOf, int componentCount) {
+            int[] sizes = new int[componentCount];
+            for (int component : componentOf) {
+                sizes[component]++;
+            }
+            int[][] members = new int[componentCount][];
+            for (int c = 0; c < componentCount; c++) {
+                members[c] = new int[sizes[c]];
+                sizes[c] = 0;
+            }
+            for (int v = 0; v < componentOf.length; v++) {
+                int component = componentOf[v];
+                members[component][sizes[component]++] = v;
+            }
+            return members;
+        }
+
+        /**
+         * Collects, for every component, the components reachable from it in one or more steps.
+         * A component reaches itself only if it contains a cycle.
+         */
+        private static int[][] reachable(int[][] members, int[] componentOf, int[] firstEdge, int[] successors) {
+            int componentCount = members.length;
+            int[][] reachable = new int[componentCount][];
+            int[] seen = new int[componentCount];
+            int[] buffer = new int[16];
+            // Successor components have lower numbers, so their closure is complete by the time it is needed.
+            for (int c = 0; c < componentCount; c++) {
+                int size = 0;
+                boolean cyclic = members[c].length > 1;
+                for (int v : members[c]) {
+                    for (int e = firstEdge[v]; e < firstEdge[v + 1]; e++) {
+                        int target = componentOf[successors[e]];
+                        if (target == c) {
+                            cyclic = true;
+                            continue;
+                        }
+                        if (seen[target] == c + 1) {
+                            continue;
+                        }
+                        int required = size + 1 + reachable[target].length;
+                        if (required > buffer.length) {
+                            buffer = Arrays.copyOf(buffer, Math.max(required, buffer.length * 2));
+                        }
+                        seen[target] = c + 1;
+                        buffer[size++] = target;
+                        for (int indirect : reachable[target]) {
+                            if (seen[indirect] != c + 1) {
+                                seen[indirect] = c + 1;
+                                buffer[size++] = indirect;
+                            }
+                        }
+                    }
+                }
+                if (cyclic) {
+                    if (size == buffer.length) {
+                        buffer = Arrays.copyOf(buffer, size + 1);
+                    }
+                    buffer[size++] = c;
+                }
+                reachable[c] = Arrays.copyOf(buffer, size);
+                Arrays.sort(reachable[c]);
+            }
+            return reachable;
+        }
+
+        private static int[][] transpose(int[][] reachable) {
+            int[] sizes = new int[reachable.length];
+            for (int[] targets : reachable) {
+                for (int target : targets) {
+                    sizes[target]++;
+                }
+            }
+            int[][] reaching = new int[reachable.length][];
+            for (int c = 0; c < reachable.length; c++) {
+                reaching[c] = new int[sizes[c]];
+                sizes[c] = 0;
+            }
+            // Sources are visited in ascending order, which keeps every array sorted.
+            for (int source = 0; source < reachable.length; source++) {
+                for (int target : reachable[source]) {
+                    reaching[target][sizes[target]++] = source;
+                }
+            }
+            return reaching;
+        }
+    }
+}
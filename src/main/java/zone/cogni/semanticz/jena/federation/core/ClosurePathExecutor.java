@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package zone.cogni.semanticz.jena.federation.core;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.sparql.algebra.op.OpPath;
+import org.apache.jena.sparql.core.Substitute;
+import org.apache.jena.sparql.core.TriplePath;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.ExecutionContext;
+import org.apache.jena.sparql.engine.QueryIterator;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.engine.iterator.QueryIterNullIterator;
+import org.apache.jena.sparql.engine.iterator.QueryIterPlainWrapper;
+import org.apache.jena.sparql.engine.iterator.QueryIterRepeatApply;
+import org.apache.jena.sparql.engine.iterator.QueryIterSingleton;
+import org.apache.jena.sparql.engine.main.OpExecutor;
+import org.apache.jena.sparql.engine.main.OpExecutorFactory;
+import org.apache.jena.sparql.path.P_Inverse;
+import org.apache.jena.sparql.path.P_Link;
+import org.apache.jena.sparql.path.P_OneOrMore1;
+import org.apache.jena.sparql.path.P_ZeroOrMore1;
+import org.apache.jena.sparql.path.Path;
+
+import java.util.List;
+
+/**
+ * Evaluates {@code p*} and {@code p+} paths, and their inverses, over a predicate of a
+ * {@link ClosureIndex} by lookup. Other paths, and closure paths with both ends unbound, are
+ * walked by ARQ as usual.
+ */
+final class ClosurePathExecutor extends OpExecutor {
+
+    private final ClosureIndex index;
+
+    private ClosurePathExecutor(ExecutionContext execCxt, ClosureIndex index) {
+        super(execCxt);
+        this.index = index;
+    }
+
+    static OpExecutorFactory factory(ClosureIndex index) {
+        return execCxt -> new ClosurePathExecutor(execCxt, index);
+    }
+
+    @Override
+    protected QueryIterator execute(OpPath opPath, QueryIterator input) {
+        TriplePath triplePath = opPath.getTriplePath();
+        Path path = triplePath.getPath();
+        boolean inverse = false;
+        if (path instanceof P_Inverse outer) {
+            inverse = true;
+            path = outer.getSubPath();
+        }
+        boolean zeroLength;
+        if (path instanceof P_ZeroOrMore1 zeroOrMore) {
+            zeroLength = true;
+            path = zeroOrMore.getSubPath();
+        } else if (path instanceof P_OneOrMore1 oneOrMore) {
+            zeroLength = false;
+            path = oneOrMore.getSubPath();
+        } else {
+            return super.execute(opPath, input);
+        }
+        if (path instanceof P_Inverse step) {
+            inverse = !inverse;
+            path = step.getSubPath();
+        }
+        if (!(path instanceof P_Link link) || !index.covers(link.getNode())) {
+            return super.execute(opPath, input);
+        }
+
+        Node start = inverse ? triplePath.getObject() : triplePath.getSubject();
+        Node end = inverse ? triplePath.getSubject() : triplePath.getObject();
+        return new ClosureLookup(input, opPath, link.getNode(), start, end, zeroLength);
+    }
+
+    /**
+     * Answers the path for one input binding at a time.
+     */
+    private final class ClosureLookup extends QueryIterRepeatApply {
+
+        private final OpPath opPath;
+        private final Node predicate;
+        private final Node start;
+        private final Node end;
+        private final boolean zeroLength;
+
+        ClosureLookup(QueryIterator input, OpPath opPath, Node predicate, Node start, Node end, boolean zeroLength) {
+            super(input, ClosurePathExecutor.this.execCxt);
+            this.opPath = opPath;
+            this.predicate = predicate;
+            this.start = start;
+            this.end = end;
+            this.zeroLength = zeroLength;
+        }
+
+        @Override
+        protected QueryIterator nextStage(Binding binding) {
+            Node from = Substitute.substitute(start, binding);
+            Node to = Substitute.substitute(end, binding);
+            ClosureIndex.PredicateClosure closure = index.closure(predicate);
+            if (!from.isVariable() && !to.isVariable()) {
+                return closure.reaches(from, to, zeroLength)
+                       ? QueryIterSingleton.create(binding, getExecContext())
+                       : QueryIterNullIterator.create(getExecContext());
+            }
+            if (!from.isVariable()) {
+                return bind(binding, Var.alloc(to), closure.reachableFrom(from, zeroLength));
+            }
+            if (!to.isVariable()) {
+                return bind(binding, Var.alloc(from), closure.reaching(to, zeroLength));
+            }
+            // Both ends unbound: a zero-length path matches every node of the graph, not just of the index.
+            return walk(opPath, QueryIterSingleton.create(binding, getExecContext()));
+        }
+
+        private QueryIterator bind(Binding binding, Var var, List<Node> nodes) {
+            return QueryIterPlainWrapper.create(nodes.stream()
+                                                     .map(node -> BindingFactory.binding(binding, var, node))
+                                                     .iterator(), getExecContext());
+        }
+    }
+
+    private QueryIterator walk(OpPath opPath, QueryIterator input) {
+        return super.execute(opPath, input);
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package zone.cogni.semanticz.jena.federation.core;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnel;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.sparql.algebra.Op;
+import org.apache.jena.sparql.algebra.op.OpBGP;
+import org.apache.jena.sparql.algebra.op.OpConditional;
+import org.apache.jena.sparql.algebra.op.OpDistinct;
+import org.apache.jena.sparql.algebra.op.OpExtend;
+import org.apache.jena.sparql.algebra.op.OpFilter;
+import org.apache.jena.sparql.algebra.op.OpGraph;
+import org.apache.jena.sparql.algebra.op.OpJoin;
+import org.apache.jena.sparql.algebra.op.OpLeftJoin;
+import org.apache.jena.sparql.algebra.op.OpMinus;
+import org.apache.jena.sparql.algebra.op.OpOrder;
+import org.apache.jena.sparql.algebra.op.OpProject;
+import org.apache.jena.sparql.algebra.op.OpReduced;
+import org.apache.jena.sparql.algebra.op.OpSequence;
+import org.apache.jena.sparql.algebra.op.OpSlice;
+import org.apache.jena.sparql.algebra.op.OpTopN;
+import org.apache.jena.sparql.algebra.op.OpTriple;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * A Bloom filter over the subject and object IRIs of a service.
+ * <p>
+ * Only IRIs are tracked: literals can be stored in a canonical form that differs from the
+ * term in the query (TDB2 does so for numbers), and blank nodes in a query are variables. The
+ * filter never forgets an IRI, so deletes only make it less selective, never wrong.
+ */
+final class ExistenceFilter {
+
+    private static final long MIN_EXPECTED_INSERTIONS = 1_024;
+
+    @SuppressWarnings("UnstableApiUsage")
+    private static final Funnel<Node> IRI_FUNNEL = (node, into) -> into.putString(node.getURI(), StandardCharsets.UTF_8);
+
+    private final BloomFilter<Node> filter;
+
+    private ExistenceFilter(long expectedInsertions, double falsePositiveRate) {
+        this.filter = BloomFilter.create(IRI_FUNNEL, Math.max(MIN_EXPECTED_INSERTIONS, expectedInsertions),
+                                         falsePositiveRate);
+    }
+
+    /**
+     * Builds a filter over the subjects and objects of the given triples.
+     *
+     * @param tripleCount The number of triples, used to size the filter for growth up to twice as many IRIs.
+     */
+    static ExistenceFilter build(Iterator<Triple> triples, long tripleCount, double falsePositiveRate) {
+        ExistenceFilter existenceFilter = new ExistenceFilter(tripleCount * 4, falsePositiveRate);
+        triples.forEachRemaining(existenceFilter::add);
+        return existenceFilter;
+    }
+
+    /**
+     * Adds the subject and object of a triple. Safe to call concurrently with lookups.
+     */
+    void add(Triple triple) {
+        add(triple.getSubject());
+        add(triple.getObject());
+    }
+
+    private void add(Node node) {
+        if (node.isURI()) {
+            filter.put(node);
+        }
+    }
+
+    /**
+     * Checks whether every IRI the sub-query requires in a subject or object position might be in
+     * the service. False means the sub-query has no solutions.
+     */
+    boolean mightMatch(Op subOp) {
+        for (Node iri : requiredIris(subOp)) {
+            if (!filter.mightContain(iri)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Collects the subject and object IRIs of triple patterns every solution of the op must match.
+     * Optional, alternative and negated parts, and property paths (which can match zero-length),
+     * are left out.
+     */
+    static Set<Node> requiredIris(Op op) {
+        Set<Node> iris = new LinkedHashSet<>();
+        collectRequired(op, triple -> {
+            if (triple.getSubject().isURI()) {
+                iris.add(triple.getSubject());
+            }
+            if (triple.getObject().isURI()) {
+                iris.add(triple.getObject());
+            }
+        });
+        return iris;
+    }
+
+    private static void collectRequired(Op op, Consumer<Triple> required) {
+        if (op instanceof OpBGP bgp) {
+            bgp.getPattern().forEach(required);
+        } else if (op instanceof OpTriple triple) {
+            required.accept(triple.getTriple());
+        } else if (op instanceof OpJoin join) {
+            collectRequired(join.getLeft(), required);
+            collectRequired(join.getRight(), required);
+        } else if (op instanceof OpSequence sequence) {
+            sequence.getElements().forEach(element -> collectRequired(element, required));
+        } else if (op instanceof OpLeftJoin leftJoin) {
+            collectRequired(leftJoin.getLeft(), required);
+        } else if (op instanceof OpConditional conditional) {
+            collectRequired(conditional.getLeft(), required);
+        } else if (op instanceof OpMinus minus) {
+            collectRequired(minus.getLeft(), required);
+        } else if (op instanceof OpFilter filter) {
+            collectRequired(filter.getSubOp(), required);
+        } else if (op instanceof OpGraph graph) {
+            collectRequired(graph.getSubOp(), required);
+        } else if (op instanceof OpExtend extend) {
+            collectRequired(extend.getSubOp(), required);
+        } else if (op instanceof OpProject project) {
+            collectRequired(project.getSubOp(), required);
+        } else if (op instanceof OpDistinct distinct) {
+            collectRequired(distinct.getSubOp(), required);
+        } else if (op instanceof OpReduced reduced) {
+            collectRequired(reduced.getSubOp(), required);
+        } else if (op instanceof OpOrder order) {
+            collectRequired(order.getSubOp(), required);
+        } else if (op instanceof OpSlice slice) {
+            collectRequired(slice.getSubOp(), required);
+        } else if (op instanceof OpTopN topN) {
+            collectRequired(topN.getSubOp(), required);
+        }
+    }
+}
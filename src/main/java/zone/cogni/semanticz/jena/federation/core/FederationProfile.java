@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package zone.cogni.semanticz.jena.federation.core;
+
+import org.apache.jena.sparql.algebra.Op;
+import org.apache.jena.sparql.util.Context;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Execution profile of the local SERVICE calls made by one query.
+ * <p>
+ * Profiling is switched on by putting an instance in the query's ARQ context under
+ * {@link LocalFederationSymbols#PROFILE}:
+ * <pre>
+ * FederationProfile profile = new FederationProfile();
+ * try (QueryExecution qExec = QueryExecutionFactory.create(query, model)) {
+ *     qExec.getContext().set(LocalFederationSymbols.PROFILE, profile);
+ *     ResultSetFormatter.consume(qExec.execSelect());
+ * }
+ * log.info("Federation profile:\n{}", profile.render());
+ * </pre>
+ * The profile holds one {@link ServiceProfile} per SERVICE clause of the query, so two equal
+ * clauses at different places in the query are profiled apart. SERVICE
+ * clauses nested inside a local service's sub-query are recorded as children of that
+ * service's profile, giving a tree that mirrors the federation structure.
+ */
+public class FederationProfile {
+
+    // Keyed by identity: equal SERVICE operators in different places of a query are different clauses.
+    private final Map<Op, ServiceProfile> services = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    /**
+     * Gets the profile stored in the given context, if profiling is switched on.
+     *
+     * @param context The ARQ context of a query execution. May be null.
+     * @return The profile, or null when profiling is off.
+     */
+    public static FederationProfile fromContext(Context context) {
+        if (context == null) {
+            return null;
+        }
+        Object value = context.get(LocalFederationSymbols.PROFILE);
+        return value instanceof FederationProfile profile ? profile : null;
+    }
+
+    /**
+     * Gets or creates the profile of a SERVICE clause.
+     *
+     * @param serviceUri The service URI.
+     * @param original   The SERVICE operator as it appears in the query, before substitution.
+     */
+    ServiceProfile serviceProfile(String serviceUri, Op original) {
+        return services.computeIfAbsent(original, op -> new ServiceProfile(serviceUri, op));
+    }
+
+    /**
+     * Gets the profiles of all SERVICE clauses executed so far.
+     */
+    public List<ServiceProfile> getServices() {
+        synchronized (services) {
+            return new ArrayList<>(services.values());
+        }
+    }
+
+    /**
+     * Checks whether no local SERVICE call was recorded.
+     */
+    public boolean isEmpty() {
+        return services.isEmpty();
+    }
+
+    /**
+     * Renders the profile tree as indented text.
+     */
+    public String render() {
+        StringBuilder out = new StringBuilder();
+        render(out, 0);
+        return out.toString();
+    }
+
+    void render(StringBuilder out, int indent) {
+        for (ServiceProfile service : getServices()) {
+            service.render(out, indent);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return render();
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package zone.cogni.semanticz.jena.federation.core;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.sparql.algebra.Algebra;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Materialized SERVICE results, indexed for joining with outer bindings.
+ * <p>
+ * Rows are indexed on the variables that every row binds and the outer binding also
+ * binds; remaining variables are checked for compatibility row by row. Indexes are built
+ * lazily per key-variable combination. Not thread-safe: a table belongs to one query iterator.
+ * <p>
+ * The table needs random access and therefore stays on the heap; it stops reading once it
+ * would hold more than {@code maxRows} rows and reports itself as {@link #isOverflowed() overflowed}.
+ */
+class HashJoinTable {
+
+    private final List<Binding> rows = new ArrayList<>();
+    private final Set<Var> alwaysBound;
+    private final Map<List<Var>, Map<List<Node>, List<Binding>>> indexes = new HashMap<>();
+    private boolean overflowed;
+
+    /**
+     * @param source  The SERVICE results.
+     * @param maxRows The maximum number of rows to hold, or zero or less for no limit.
+     */
+    HashJoinTable(Iterator<Binding> source, long maxRows) {
+        Set<Var> bound = null;
+        while (source.hasNext()) {
+            if (maxRows > 0 && rows.size() >= maxRows) {
+                overflowed = true;
+                break;
+            }
+            Binding row = source.next();
+            rows.add(row);
+            Set<Var> rowVars = new LinkedHashSet<>();
+            row.vars().forEachRemaining(rowVars::add);
+            if (bound == null) {
+                bound = rowVars;
+            } else {
+                bound.retainAll(rowVars);
+            }
+        }
+        this.alwaysBound = bound == null ? Set.of() : bound;
+    }
+
+    int size() {
+        return rows.size();
+    }
+
+    /**
+     * Checks whether the source had more rows than the table may hold; the table is then incomplete.
+     */
+    boolean isOverflowed() {
+        return overflowed;
+    }
+
+    /**
+     * Gets the rows compatible with the outer binding, merged with it.
+     */
+    List<Binding> join(Binding outer) {
+        List<Var> keyVars = new ArrayList<>();
+        for (Var var : alwaysBound) {
+            if (outer.contains(var)) {
+                keyVars.add(var);
+            }
+        }
+
+        Collection<Binding> candidates = keyVars.isEmpty()
+                                         ? rows
+                                         : index(keyVars).getOrDefault(key(outer, keyVars), List.of());
+
+        List<Binding> joined = new ArrayList<>();
+        for (Binding row : candidates) {
+            if (Algebra.compatible(outer, row)) {
+                joined.add(Algebra.merge(outer, row));
+            }
+        }
+        return joined;
+    }
+
+    private Map<List<Node>, List<Binding>> index(List<Var> keyVars) {
+        return indexes.computeIfAbsent(keyVars, vars -> {
+            Map<List<Node>, List<Binding>> index = new HashMap<>();
+            for (Binding row : rows) {
+                index.computeIfAbsent(key(row, vars), k -> new ArrayList<>()).add(row);
+            }
+            return index;
+        });
+    }
+
+    private static List<Node> key(Binding binding, List<Var> keyVars) {
+        List<Node> key = new ArrayList<>(keyVars.size());
+        for (Var var : keyVars) {
+            key.add(binding.get(var));
+        }
+        return key;
+    }
+}
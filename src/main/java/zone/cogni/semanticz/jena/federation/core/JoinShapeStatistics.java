@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package zone.cogni.semanticz.jena.federation.core;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runtime observations of one SERVICE query shape, used by the adaptive join to pick
+ * between {@link JoinStrategy#PER_BINDING} and {@link JoinStrategy#HASH_JOIN}.
+ * <p>
+ * The figures are cumulative over all executions of the shape, so the learned choice
+ * carries over to later queries.
+ */
+class JoinShapeStatistics {
+
+    private final LongAdder executions = new LongAdder();
+    private final LongAdder inputRows = new LongAdder();
+    private final LongAdder perBindingCalls = new LongAdder();
+    private final LongAdder perBindingRows = new LongAdder();
+    private final LongAdder perBindingNanos = new LongAdder();
+    private final LongAdder materializations = new LongAdder();
+    private final LongAdder materializedRows = new LongAdder();
+    private final LongAdder materializeNanos = new LongAdder();
+    private volatile boolean materializationOverflowed;
+
+    void recordPerBindingCall(long rows, long nanos) {
+        perBindingCalls.increment();
+        perBindingRows.add(rows);
+        perBindingNanos.add(nanos);
+    }
+
+    void recordMaterialization(long rows, long nanos) {
+        materializations.increment();
+        materializedRows.add(rows);
+        materializeNanos.add(nanos);
+    }
+
+    /**
+     * Records that materializing the service exceeded the memory limit; the shape is
+     * executed per binding from then on.
+     */
+    void recordMaterializationOverflow() {
+        materializationOverflowed = true;
+    }
+
+    void recordExecution(long inputCount) {
+        executions.increment();
+        inputRows.add(inputCount);
+    }
+
+    /**
+     * Gets the strategy a new execution of this shape should start with.
+     */
+    JoinStrategy preferredStrategy() {
+        if (materializationOverflowed) {
+            return JoinStrategy.PER_BINDING;
+        }
+        if (materializations.sum() == 0 || perBindingCalls.sum() == 0 || executions.sum() == 0) {
+            return JoinStrategy.PER_BINDING;
+        }
+        double perBindingCost = averagePerBindingNanos() * averageInputRows();
+        return averageMaterializeNanos() < perBindingCost ? JoinStrategy.HASH_JOIN : JoinStrategy.PER_BINDING;
+    }
+
+    /**
+     * Decides whether a per-binding execution that already made {@code callsSoFar} calls
+     * should switch to a single materialization for the remaining bindings. Only asked when the
+     * hash join has a row budget, so a first try on a service that is too large overflows the
+     * budget instead of loading the whole service.
+     */
+    boolean shouldMaterialize(long callsSoFar) {
+        if (materializationOverflowed) {
+            return false;
+        }
+        if (materializations.sum() == 0 || executions.sum() == 0) {
+            // Nothing learned yet about materializing: try it.
+            return true;
+        }
+        double expectedRemaining = Math.max(1.0, averageInputRows() - callsSoFar);
+        return averageMaterializeNanos() < averagePerBindingNanos() * expectedRemaining;
+    }
+
+    double averagePerBindingNanos() {
+        long calls = perBindingCalls.sum();
+        return calls == 0 ? 0 : perBindingNanos.sum() / (double) calls;
+    }
+
+    double averagePerBindingRows() {
+        long calls = perBindingCalls.sum();
+        return calls == 0 ? 0 : perBindingRows.sum() / (double) calls;
+    }
+
+    double averageMaterializeNanos() {
+        long count = materializations.sum();
+        return count == 0 ? 0 : materializeNanos.sum() / (double) count;
+    }
+
+    double averageMaterializedRows() {
+        long count = materializations.sum();
+        return count == 0 ? 0 : materializedRows.sum() / (double) count;
+    }
+
+    double averageInputRows() {
+        long count = executions.sum();
+        return count == 0 ? 0 : inputRows.sum() / (double) count;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("executions=%d avgInput=%.1f perBinding[avgRows=%.1f avgNanos=%.0f] materialized[avgRows=%.1f avgNanos=%.0f] preferred=%s",
+                             executions.sum(), averageInputRows(), averagePerBindingRows(), averagePerBindingNanos(),
+                             averageMaterializedRows(), averageMaterializeNanos(), preferredStrategy());
+    }
+}
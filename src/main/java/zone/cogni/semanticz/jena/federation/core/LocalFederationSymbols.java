@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package zone.cogni.semanticz.jena.federation.core;
+
+import org.apache.jena.sparql.util.Symbol;
+
+/**
+ * ARQ {@link org.apache.jena.sparql.util.Context} symbols understood by the
+ * {@link LocalSparqlServiceRegistry}.
+ * <p>
+ * Set them on the context of a query execution, e.g. {@code qExec.getContext().set(symbol, value)}.
+ */
+public final class LocalFederationSymbols {
+
+    private LocalFederationSymbols() {
+        // Utility class
+    }
+
+    /**
+     * The namespace used for all local federation symbols.
+     */
+    public static final String SYMBOL_NAMESPACE = "urn:semanticz:jena:federation:";
+
+    /**
+     * A {@link FederationProfile} instance that collects execution statistics for every
+     * local SERVICE call of the query. Profiling is off when the symbol is absent.
+     */
+    public static final Symbol PROFILE = Symbol.create(SYMBOL_NAMESPACE + "profile");
+
+    /**
+     * Boolean switch for the adaptive join of local SERVICE calls, overriding the
+     * registry-wide setting for a single query.
+     *
+     * @see LocalSparqlServiceRegistry#setAdaptiveJoin(boolean)
+     */
+    public static final Symbol ADAPTIVE_JOIN = Symbol.create(SYMBOL_NAMESPACE + "adaptiveJoin");
+
+    /**
+     * Boolean switch for memoizing binding-independent SERVICE calls within a query,
+     * overriding the registry-wide setting for a single query.
+     *
+     * @see LocalSparqlServiceRegistry#setMemoization(boolean)
+     */
+    public static final Symbol MEMOIZE_SERVICES = Symbol.create(SYMBOL_NAMESPACE + "memoizeServices");
+
+    /**
+     * Boolean switch for pushing {@code ORDER BY ... LIMIT} into a local SERVICE call,
+     * overriding the registry-wide setting for a single query.
+     *
+     * @see LocalSparqlServiceRegistry#setTopKPushdown(boolean)
+     */
+    public static final Symbol TOP_K_PUSHDOWN = Symbol.create(SYMBOL_NAMESPACE + "topKPushdown");
+
+    /**
+     * Number of outer bindings whose SERVICE calls run ahead of consumption, for a single query;
+     * 0 or 1 for no pipelining.
+     *
+     * @see LocalSparqlServiceRegistry#setPipelineWindow(int)
+     */
+    public static final Symbol PIPELINE_WINDOW = Symbol.create(SYMBOL_NAMESPACE + "pipelineWindow");
+
+    /**
+     * Number of rows of a materialized SERVICE result kept on the heap before spilling to
+     * a temporary file, for a single query. When the service also has a
+     * {@link ServiceOptions#getSpillThreshold() threshold}, the lower one applies.
+     */
+    public static final Symbol SPILL_THRESHOLD = Symbol.create(SYMBOL_NAMESPACE + "spillThreshold");
+}
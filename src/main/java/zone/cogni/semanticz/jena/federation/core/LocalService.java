@@ -0,0 +1,566 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package zone.cogni.semanticz.jena.federation.core;
+
+import org.apache.jena.atlas.iterator.Iter;
+import org.apache.jena.graph.GraphEvents;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.ARQ;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QueryExecution;
+import org.apache.jena.query.QueryExecutionFactory;
+import org.apache.jena.rdf.listeners.StatementListener;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.Statement;
+import org.apache.jena.sparql.ARQConstants;
+import org.apache.jena.sparql.algebra.Op;
+import org.apache.jena.sparql.core.DatasetGraph;
+import org.apache.jena.sparql.core.Quad;
+import org.apache.jena.sparql.engine.ExecutionContext;
+import org.apache.jena.sparql.engine.main.QC;
+import org.apache.jena.sparql.util.Context;
+import org.apache.jena.tdb2.TDB2;
+import org.apache.jena.tdb2.sys.TDBInternal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * A registered local data source together with its {@link ServiceOptions}.
+ */
+final class LocalService {
+
+    private static final Logger log = LoggerFactory.getLogger(LocalService.class);
+
+    private final String serviceUri;
+    private final Dataset dataset;
+    private final Model model;
+    private final TabularSource table;
+    private final MaterializedView view;
+    private final RemoteMirror mirror;
+    private final ServiceOptions options;
+    private final ServiceBulkhead bulkhead;
+    private final LongAdder skippedCalls = new LongAdder();
+    private final StatementListener existenceFilterMaintainer;
+    private volatile ExistenceFilter existenceFilter;
+    // For a TDB2 Dataset service: every commit drops the filter and queues a rebuild on a thread of
+    // its own; a rebuild overtaken by a later commit is discarded.
+    private final Tdb2CommitHook existenceFilterHook;
+    private final ExecutorService existenceFilterRebuilder;
+    private final AtomicBoolean existenceFilterRebuildQueued = new AtomicBoolean();
+    private final Object existenceFilterLock = new Object();
+    private long existenceFilterGeneration;
+    private final ClosureIndex closureIndex;
+    private final StatementListener closureIndexMaintainer;
+    private final AtomicInteger readers = new AtomicInteger();
+    private final AtomicBoolean disposed = new AtomicBoolean();
+    private volatile boolean retired;
+    private volatile boolean ownsSource;
+
+    private LocalService(String serviceUri, Dataset dataset, Model model, TabularSource table, MaterializedView view,
+                         RemoteMirror mirror, ServiceOptions options) {
+        this.serviceUri = serviceUri;
+        this.dataset = dataset;
+        this.model = model;
+        this.table = table;
+        this.view = view;
+        this.mirror = mirror;
+        this.options = Objects.requireNonNull(options, "Service options cannot be null");
+        this.bulkhead = ServiceBulkhead.fromOptions(options);
+        this.existenceFilterMaintainer = options.hasExistenceFilter() && model != null ? new ExistenceFilterMaintainer() : null;
+        if (options.hasExistenceFilter() && isTdb2Dataset()) {
+            this.existenceFilterRebuilder = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "local-federation-filter-" + serviceUri);
+                thread.setDaemon(true);
+                return thread;
+            });
+            // Registered before the first build, so no commit goes unnoticed.
+            this.existenceFilterHook = Tdb2CommitHook.register(dataset, this::existenceFilterStale);
+        } else {
+            this.existenceFilterRebuilder = null;
+            this.existenceFilterHook = null;
+        }
+        if (options.hasExistenceFilter()) {
+            initExistenceFilter();
+        }
+        if (model != null && !options.getClosurePredicates().isEmpty()) {
+            this.closureIndex = new ClosureIndex(model.getGraph(), options.getClosurePredicates().stream()
+                                                                          .map(NodeFactory::createURI)
+                                                                          .collect(Collectors.toSet()));
+            this.closureIndexMaintainer = new ClosureIndexMaintainer();
+            model.register(closureIndexMaintainer);
+        } else {
+            this.closureIndex = null;
+            this.closureIndexMaintainer = null;
+        }
+    }
+
+    private void initExistenceFilter() {
+        double falsePositiveRate = options.getExistenceFilterFalsePositiveRate();
+        if (mirror != null) {
+            mirror.onBeforeCommit(synced -> existenceFilter = ExistenceFilter.build(
+                    synced.find(), synced.size(), falsePositiveRate));
+        }
+        if (dataset != null || model != null) {
+            rebuildExistenceFilter();
+        }
+        if (model != null) {
+            model.register(existenceFilterMaintainer);
+        }
+    }
+
+    static LocalService ofDataset(String serviceUri, Dataset dataset, ServiceOptions options) {
+        return new LocalService(serviceUri, dataset, null, null, null, null, options);
+    }
+
+    static LocalService ofModel(String serviceUri, Model model, ServiceOptions options) {
+        return new LocalService(serviceUri, null, model, null, null, null, options);
+    }
+
+    static LocalService ofTable(String serviceUri, TabularSource table, ServiceOptions options) {
+        return new LocalService(serviceUri, null, null, table, null, null, options);
+    }
+
+    static LocalService ofView(MaterializedView view, ServiceOptions options) {
+        return new LocalService(view.getServiceUri(), null, null, null, view, null, options);
+    }
+
+    static LocalService ofMirror(String endpointUri, RemoteMirror mirror, ServiceOptions options) {
+        return new LocalService(endpointUri, mirror.getDataset(), null, null, null, mirror, options);
+    }
+
+    String getServiceUri() {
+        return serviceUri;
+    }
+
+    boolean isDataset() {
+        return dataset != null && mirror == null;
+    }
+
+    boolean isModel() {
+        return model != null;
+    }
+
+    /**
+     * Checks whether this is a Dataset service stored in TDB2.
+     */
+    boolean isTdb2Dataset() {
+        return isDataset() && TDBInternal.isTDB2(dataset.asDatasetGraph());
+    }
+
+    /**
+     * Checks whether the service reads a TDB2 dataset, as a Dataset service or a mirror, so its
+     * commits can be followed with {@link #onCommit(Runnable)}.
+     */
+    boolean isTdb2Stored() {
+        return Tdb2CommitHook.supports(dataset);
+    }
+
+    /**
+     * Registers a listener on the commits to the TDB2 dataset of the service.
+     *
+     * @param onCommit Called on the committing thread after each write transaction.
+     */
+    Tdb2CommitHook onCommit(Runnable onCommit) {
+        return Tdb2CommitHook.register(dataset, onCommit);
+    }
+
+    boolean isTable() {
+        return table != null;
+    }
+
+    boolean isView() {
+        return view != null;
+    }
+
+    boolean isMirror() {
+        return mirror != null;
+    }
+
+    /**
+     * Gets the remote mirror of the service, or null when it is not a mirror.
+     */
+    RemoteMirror getMirror() {
+        return mirror;
+    }
+
+    /**
+     * Checks whether SERVICE calls are answered locally. Only a mirror that is cold
+     * leaves them to the remote endpoint.
+     */
+    boolean isServedLocally() {
+        return mirror == null || mirror.isFresh();
+    }
+
+    Model getModel() {
+        return model;
+    }
+
+    /**
+     * Gets the dataset SERVICE calls read, for Dataset services and mirrors, or null otherwise.
+     */
+    Dataset getDataset() {
+        return dataset;
+    }
+
+    /**
+     * Checks whether the default graph of the dataset is the union of its named graphs.
+     */
+    boolean isUnionDefaultGraph() {
+        return dataset != null
+               && Context.setupContextForDataset(ARQ.getContext(), dataset.asDatasetGraph()).isTrue(TDB2.symUnionDefaultGraph);
+    }
+
+    /**
+     * Gets the materialized view of the service, or null when it is not a view.
+     */
+    MaterializedView getView() {
+        return view;
+    }
+
+    /**
+     * Gets the tabular source of the service, or null when it is neither a table nor a view.
+     * For a view this is its current materialization, refreshed first if the view is stale.
+     */
+    TabularSource getTable() {
+        return view != null ? view.current() : table;
+    }
+
+    /**
+     * Registers a SERVICE call running against this instance.
+     *
+     * @return false if the instance was retired meanwhile; the caller should look up the
+     * service again instead.
+     */
+    boolean acquire() {
+        readers.incrementAndGet();
+        if (retired) {
+            release();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Ends a SERVICE call registered with {@link #acquire()}.
+     */
+    void release() {
+        if (readers.decrementAndGet() == 0 && retired) {
+            dispose();
+        }
+    }
+
+    /**
+     * Hands the Dataset or Model of the service to the registry, which closes it when the
+     * instance is disposed of. Only for sources the registry loaded itself; sources passed in by
+     * a caller stay owned by the caller.
+     *
+     * @return This instance.
+     */
+    LocalService ownSource() {
+        ownsSource = true;
+        return this;
+    }
+
+    /**
+     * Takes the instance out of service. It is disposed of as soon as no SERVICE call runs
+     * against it any more, closing its source if the registry {@link #ownSource() owns} it.
+     */
+    void retire() {
+        retired = true;
+        if (readers.get() == 0) {
+            dispose();
+        }
+    }
+
+    private void dispose() {
+        if (!disposed.compareAndSet(false, true)) {
+            return;
+        }
+        close();
+        if (ownsSource) {
+            if (dataset != null) {
+                dataset.close();
+            } else if (model != null) {
+                model.close();
+            }
+        }
+    }
+
+    /**
+     * Releases what the service holds on to, such as change listeners on the source of a view.
+     */
+    private void close() {
+        if (view != null) {
+            view.close();
+        }
+        if (mirror != null) {
+            mirror.close();
+        }
+        if (existenceFilterMaintainer != null) {
+            model.unregister(existenceFilterMaintainer);
+        }
+        if (existenceFilterHook != null) {
+            existenceFilterHook.close();
+            // Not interrupted: an interrupt during file I/O would close TDB2's file channels.
+            existenceFilterRebuilder.shutdown();
+        }
+        if (closureIndexMaintainer != null) {
+            model.unregister(closureIndexMaintainer);
+        }
+    }
+
+    ServiceOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * Gets the concurrency limit of the service, or null when its concurrency is unlimited.
+     */
+    ServiceBulkhead getBulkhead() {
+        return bulkhead;
+    }
+
+    /**
+     * Checks whether a sub-query can have solutions according to the existence filter. Always
+     * true for services without one.
+     */
+    boolean mightMatch(Op subOp) {
+        ExistenceFilter filter = existenceFilter;
+        if (filter == null || filter.mightMatch(subOp)) {
+            return true;
+        }
+        skippedCalls.increment();
+        return false;
+    }
+
+    /**
+     * Gets the number of SERVICE calls the existence filter ruled out.
+     */
+    long getSkippedCallCount() {
+        return skippedCalls.sum();
+    }
+
+    /**
+     * Rebuilds the existence filter from the current content, e.g. to drop the IRIs of statements
+     * removed from a Model, or to add those written to a Dataset that is not stored in TDB2.
+     *
+     * @return false if the service has no existence filter.
+     */
+    boolean rebuildExistenceFilter() {
+        if (!options.hasExistenceFilter() || (dataset == null && model == null)) {
+            return false;
+        }
+        long generation;
+        synchronized (existenceFilterLock) {
+            generation = existenceFilterGeneration;
+        }
+        double falsePositiveRate = options.getExistenceFilterFalsePositiveRate();
+        ExistenceFilter rebuilt;
+        if (model != null) {
+            rebuilt = ExistenceFilter.build(model.getGraph().find(), model.size(), falsePositiveRate);
+        } else {
+            rebuilt = dataset.calculateRead(() -> {
+                DatasetGraph datasetGraph = dataset.asDatasetGraph();
+                long quads = Iter.count(datasetGraph.find());
+                return ExistenceFilter.build(Iter.map(datasetGraph.find(), Quad::asTriple), quads, falsePositiveRate);
+            });
+        }
+        synchronized (existenceFilterLock) {
+            // A commit since the start may have written IRIs the rebuilt filter lacks.
+            if (generation == existenceFilterGeneration) {
+                existenceFilter = rebuilt;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drops the existence filter of a TDB2 Dataset service after a commit, so calls are not skipped
+     * on outdated content, and queues a rebuild. Runs on the committing thread.
+     */
+    private void existenceFilterStale() {
+        synchronized (existenceFilterLock) {
+            existenceFilterGeneration++;
+            existenceFilter = null;
+        }
+        if (existenceFilterRebuildQueued.compareAndSet(false, true)) {
+            try {
+                existenceFilterRebuilder.execute(() -> {
+                    existenceFilterRebuildQueued.set(false);
+                    try {
+                        rebuildExistenceFilter();
+                    } catch (RuntimeException e) {
+                        log.warn("Could not rebuild the existence filter of {}, calls are not filtered", serviceUri, e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // The service is closed.
+                existenceFilterRebuildQueued.set(false);
+            }
+        }
+    }
+
+    /**
+     * Counts the triples matching a pattern, in any graph, stopping at the given limit. Variables
+     * match anything.
+     *
+     * @return The number of matches, at most {@code limit}; 0 for tables and views.
+     */
+    long countMatches(Triple pattern, long limit) {
+        Node subject = pattern.getSubject().isVariable() ? Node.ANY : pattern.getSubject();
+        Node predicate = pattern.getPredicate().isVariable() ? Node.ANY : pattern.getPredicate();
+        Node object = pattern.getObject().isVariable() ? Node.ANY : pattern.getObject();
+        if (model != null) {
+            return countUpTo(model.getGraph().find(subject, predicate, object), limit);
+        }
+        if (dataset != null) {
+            return dataset.calculateRead(() -> countUpTo(
+                    dataset.asDatasetGraph().find(Node.ANY, subject, predicate, object), limit));
+        }
+        return 0;
+    }
+
+    private static long countUpTo(Iterator<?> matches, long limit) {
+        long count = 0;
+        try {
+            while (count < limit && matches.hasNext()) {
+                matches.next();
+                count++;
+            }
+        } finally {
+            Iter.close(matches);
+        }
+        return count;
+    }
+
+    /**
+     * Creates the execution context for evaluating a sub-query directly in an outer query over the
+     * same TDB2 storage, within its read transaction. The active graph is the default graph of this
+     * dataset, whatever graph the outer query is in, and settings such as the union default graph
+     * come from this dataset instead of the outer query. Only the query time is carried over.
+     *
+     * @return null if the sub-query cannot be evaluated in place, because the storage differs or
+     * the default graph of this dataset is the union of its named graphs.
+     */
+    ExecutionContext inPlaceContext(ExecutionContext outer) {
+        if (!sharesTdb2StorageWith(outer.getDataset())) {
+            return null;
+        }
+        Context context = Context.setupContextForDataset(ARQ.getContext(), dataset.asDatasetGraph());
+        if (context.isTrue(TDB2.symUnionDefaultGraph)) {
+            return null;
+        }
+        Object now = outer.getContext().get(ARQConstants.sysCurrentTime);
+        if (now != null) {
+            context.set(ARQConstants.sysCurrentTime, now);
+        }
+        DatasetGraph storage = TDBInternal.getDatasetGraphTDB(outer.getDataset());
+        return new ExecutionContext(context, storage.getDefaultGraph(), storage, outer.getExecutor());
+    }
+
+    /**
+     * Checks whether this is a Dataset service stored in the same TDB2 database as the given
+     * dataset, so its sub-queries can be evaluated directly in a query over that dataset.
+     */
+    boolean sharesTdb2StorageWith(DatasetGraph other) {
+        if (dataset == null || mirror != null || other == null) {
+            return false;
+        }
+        DatasetGraph own = dataset.asDatasetGraph();
+        return TDBInternal.isTDB2(own) && TDBInternal.isTDB2(other)
+               && TDBInternal.getDatasetGraphTDB(own) == TDBInternal.getDatasetGraphTDB(other);
+    }
+
+    /**
+     * Creates an execution of the given query over this data source.
+     */
+    QueryExecution createQueryExecution(Query query) {
+        if (dataset != null) {
+            return QueryExecutionFactory.create(query, dataset);
+        }
+        if (table != null || view != null) {
+            return QueryExecutionFactory.create(query, ModelFactory.createModelForGraph(getTable().asGraph()));
+        }
+        QueryExecution queryExecution = QueryExecutionFactory.create(query, model);
+        if (closureIndex != null) {
+            QC.setFactory(queryExecution.getContext(), ClosurePathExecutor.factory(closureIndex));
+        }
+        return queryExecution;
+    }
+
+    @Override
+    public String toString() {
+        String kind = isMirror() ? "Mirror" : isDataset() ? "Dataset" : isTable() ? "Table" : isView() ? "View" : "Model";
+        return kind + " <" + serviceUri + ">";
+    }
+
+    /**
+     * Adds the IRIs of statements added to a Model service to its existence filter.
+     */
+    private final class ExistenceFilterMaintainer extends StatementListener {
+
+        @Override
+        public void addedStatement(Statement statement) {
+            ExistenceFilter filter = existenceFilter;
+            if (filter != null) {
+                filter.add(statement.asTriple());
+            }
+        }
+    }
+
+    /**
+     * Drops the closure of an indexed predicate when statements with it are added to or removed
+     * from a Model service.
+     */
+    private final class ClosureIndexMaintainer extends StatementListener {
+
+        @Override
+        public void addedStatement(Statement statement) {
+            closureIndex.invalidate(statement.getPredicate().asNode());
+        }
+
+        @Override
+        public void removedStatement(Statement statement) {
+            closureIndex.invalidate(statement.getPredicate().asNode());
+        }
+
+        @Override
+        public void notifyEvent(Model model, Object event) {
+            // Bulk removals such as removeAll() are reported as a single event
+            if (event instanceof GraphEvents) {
+                closureIndex.invalidateAll();
+            }
+        }
+    }
+}
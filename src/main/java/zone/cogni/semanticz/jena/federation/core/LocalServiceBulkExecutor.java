@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package zone.cogni.semanticz.jena.federation.core;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.jena.graph.Node;
+import org.apache.jena.sparql.algebra.Op;
+import org.apache.jena.sparql.algebra.op.OpService;
+import org.apache.jena.sparql.engine.ExecutionContext;
+import org.apache.jena.sparql.engine.QueryIterator;
+import org.apache.jena.sparql.service.bulk.ChainingServiceExecutorBulk;
+import org.apache.jena.sparql.service.bulk.ServiceExecutorBulk;
+import org.apache.jena.sparql.util.Context;
+import org.apache.jena.sparql.util.Symbol;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bulk link of the {@link LocalSparqlServiceRegistry} in Jena's service executor chain.
+ * <p>
+ * Unlike the per-binding {@link org.apache.jena.sparql.service.single.ServiceExecutor},
+ * a bulk link sees the whole stream of outer bindings for a SERVICE clause, which is what
+ * query-scoped strategies need. Calls it does not take over are passed down the chain,
+ * where they end up in the registry's per-binding executor as before.
+ */
+class LocalServiceBulkExecutor implements ChainingServiceExecutorBulk {
+
+    static final int DEFAULT_ADAPTIVE_JOIN_THRESHOLD = 32;
+    private static final long MAX_LEARNED_SHAPES = 1_000;
+
+    private final LocalSparqlServiceRegistry registry;
+    private final Cache<Op, JoinShapeStatistics> joinStatistics =
+            CacheBuilder.newBuilder().maximumSize(MAX_LEARNED_SHAPES).build();
+
+    private volatile boolean adaptiveJoin;
+    private volatile boolean memoization = true;
+    private volatile int adaptiveJoinThreshold = DEFAULT_ADAPTIVE_JOIN_THRESHOLD;
+    private volatile long hashJoinMaxRows;
+    private volatile int pipelineWindow;
+
+    LocalServiceBulkExecutor(LocalSparqlServiceRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public QueryIterator createExecution(OpService opService, QueryIterator input, ExecutionContext execCxt,
+                                         ServiceExecutorBulk chain) {
+        Node service = opService.getService();
+        if (!service.isURI() || !registry.isServedLocally(service.getURI())) {
+            return chain.createExecution(opService, input, execCxt);
+        }
+
+        Context context = execCxt.getContext();
+        boolean adaptive = isEnabled(context, LocalFederationSymbols.ADAPTIVE_JOIN, adaptiveJoin);
+        boolean memoize = context != null && isEnabled(context, LocalFederationSymbols.MEMOIZE_SERVICES, memoization);
+        int window = context == null ? pipelineWindow : context.getInt(LocalFederationSymbols.PIPELINE_WINDOW, pipelineWindow);
+        if (!adaptive && window > 1 && !registry.isOnPoolThread()) {
+            // The adaptive join may drop per-binding calls altogether, so it takes precedence.
+            ServiceMemo memo = memoize ? ServiceMemo.acquire(context) : null;
+            return new PipelinedServiceJoin(input, opService, registry, memo, window, registry.pipelineExecutor(), execCxt);
+        }
+        if (!adaptive && !memoize) {
+            return chain.createExecution(opService, input, execCxt);
+        }
+
+        JoinShapeStatistics statistics = adaptive
+                                         ? joinStatistics.asMap().computeIfAbsent(opService, op -> new JoinShapeStatistics())
+                                         : null;
+        ServiceMemo memo = memoize ? ServiceMemo.acquire(context) : null;
+        return new LocalServiceJoin(input, opService, registry, statistics, adaptiveJoinThreshold,
+                                    hashJoinBudget(service.getURI(), execCxt), memo, execCxt);
+    }
+
+    /**
+     * Gets the most rows a hash join of the service may hold in a query: the lower of the spill
+     * threshold and the registry's cap, or zero when neither is set.
+     */
+    private long hashJoinBudget(String serviceUri, ExecutionContext execCxt) {
+        long spillThreshold = registry.spillThreshold(serviceUri, execCxt);
+        long cap = hashJoinMaxRows;
+        if (spillThreshold <= 0) {
+            return Math.max(0, cap);
+        }
+        return cap <= 0 ? spillThreshold : Math.min(spillThreshold, cap);
+    }
+
+    private static boolean isEnabled(Context context, Symbol symbol, boolean registryDefault) {
+        if (context != null && context.isDefined(symbol)) {
+            return context.isTrue(symbol);
+        }
+        return registryDefault;
+    }
+
+    void setAdaptiveJoin(boolean adaptiveJoin) {
+        this.adaptiveJoin = adaptiveJoin;
+    }
+
+    void setMemoization(boolean memoization) {
+        this.memoization = memoization;
+    }
+
+    void setPipelineWindow(int pipelineWindow) {
+        if (pipelineWindow < 0) {
+            throw new IllegalArgumentException("Pipeline window must not be negative");
+        }
+        this.pipelineWindow = pipelineWindow;
+    }
+
+    void setAdaptiveJoinThreshold(int adaptiveJoinThreshold) {
+        if (adaptiveJoinThreshold < 1) {
+            throw new IllegalArgumentException("Adaptive join threshold must be at least 1");
+        }
+        this.adaptiveJoinThreshold = adaptiveJoinThreshold;
+    }
+
+    void setHashJoinMaxRows(long hashJoinMaxRows) {
+        if (hashJoinMaxRows < 0) {
+            throw new IllegalArgumentException("Hash join row limit must not be negative");
+        }
+        this.hashJoinMaxRows = hashJoinMaxRows;
+    }
+
+    Map<Op, JoinStrategy> getLearnedJoinStrategies() {
+        Map<Op, JoinStrategy> strategies = new LinkedHashMap<>();
+        joinStatistics.asMap().forEach((op, statistics) -> strategies.put(op, statistics.preferredStrategy()));
+        return strategies;
+    }
+
+    void clear() {
+        joinStatistics.invalidateAll();
+    }
+}
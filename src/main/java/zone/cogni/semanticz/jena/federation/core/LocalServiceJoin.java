@@ -0,0 +1,242 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package zone.cogni.semanticz.jena.federation.core;
+
+import org.apache.jena.sparql.algebra.OpVars;
+import org.apache.jena.sparql.algebra.op.OpService;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.ExecutionContext;
+import org.apache.jena.sparql.engine.QueryIterator;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.engine.iterator.QueryIterCommonParent;
+import org.apache.jena.sparql.engine.iterator.QueryIterNullIterator;
+import org.apache.jena.sparql.engine.iterator.QueryIterPlainWrapper;
+import org.apache.jena.sparql.engine.iterator.QueryIterRepeatApply;
+import org.apache.jena.sparql.engine.iterator.QueryIteratorWrapper;
+import org.apache.jena.sparql.engine.main.QC;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Joins the outer bindings of a query with a local SERVICE clause.
+ * <p>
+ * Two optional, query-scoped optimizations are applied on top of ARQ's per-binding execution:
+ * <ul>
+ *   <li><b>Memoization</b> – when an outer binding shares no variable with the sub-query, the
+ *   call is binding-independent: the service is evaluated once through the query's
+ *   {@link ServiceMemo} and its rows are replayed for every such binding.</li>
+ *   <li><b>Adaptive join</b> – the iterator starts with the strategy learned for the query
+ *   shape. While executing per binding, it re-evaluates after every {@code switchThreshold}
+ *   calls and switches to materializing the service once for a hash join when the statistics
+ *   say that is cheaper for the remaining bindings. Bindings that bind variables which the
+ *   sub-query only uses in filters (and therefore need substitution) stay per binding. The hash
+ *   table lives on the heap, so a service larger than its spill threshold stays per binding.</li>
+ * </ul>
+ */
+class LocalServiceJoin extends QueryIterRepeatApply {
+
+    private static final Logger log = LoggerFactory.getLogger(LocalServiceJoin.class);
+
+    private final LocalSparqlServiceRegistry registry;
+    private final OpService opService;
+    private final JoinShapeStatistics statistics;
+    private final int switchThreshold;
+    private final long maxRows;
+    private final ServiceMemo memo;
+    private final Set<Var> mentionedVars;
+    private final Set<Var> substitutionOnlyVars;
+
+    private JoinStrategy strategy;
+    private HashJoinTable table;
+    private long inputCount;
+    private long perBindingCalls;
+
+    /**
+     * @param statistics The statistics of the query shape, or null to disable the adaptive join.
+     * @param maxRows    The most rows a hash join may hold, or zero or less to never switch to one:
+     *                   without a limit, materializing could load a whole service onto the heap.
+     * @param memo       The memo of the outer query, or null to disable memoization.
+     */
+    LocalServiceJoin(QueryIterator input, OpService opService, LocalSparqlServiceRegistry registry,
+                     JoinShapeStatistics statistics, int switchThreshold, long maxRows, ServiceMemo memo,
+                     ExecutionContext execCxt) {
+        super(input, execCxt);
+        this.registry = registry;
+        this.opService = opService;
+        this.statistics = statistics;
+        this.switchThreshold = Math.max(1, switchThreshold);
+        this.maxRows = maxRows;
+        this.memo = memo;
+        this.mentionedVars = new HashSet<>(OpVars.mentionedVars(opService.getSubOp()));
+        this.substitutionOnlyVars = new HashSet<>(mentionedVars);
+        this.substitutionOnlyVars.removeAll(OpVars.visibleVars(opService.getSubOp()));
+        this.strategy = statistics == null || maxRows <= 0 ? JoinStrategy.PER_BINDING : statistics.preferredStrategy();
+    }
+
+    @Override
+    protected QueryIterator nextStage(Binding outer) {
+        inputCount++;
+        if (memo != null && isBindingIndependent(outer)) {
+            BindingBuffer rows = memo.computeIfAbsent(opService, op -> evaluateOnce(registry, op, getExecContext()));
+            return new QueryIterCommonParent(rows.toQueryIterator(getExecContext(), false), outer, getExecContext());
+        }
+
+        if (statistics == null || requiresSubstitution(outer)) {
+            return perBinding(outer);
+        }
+
+        if (strategy == JoinStrategy.PER_BINDING
+            && maxRows > 0
+            && perBindingCalls > 0
+            && perBindingCalls % switchThreshold == 0
+            && statistics.shouldMaterialize(perBindingCalls)) {
+            log.debug("Switching SERVICE <{}> to hash join after {} per-binding calls",
+                      opService.getService().getURI(), perBindingCalls);
+            strategy = JoinStrategy.HASH_JOIN;
+        }
+
+        if (strategy == JoinStrategy.HASH_JOIN && table == null) {
+            table = materialize();
+            if (table.isOverflowed()) {
+                log.debug("SERVICE <{}> too large to hash join in memory, staying per binding",
+                          opService.getService().getURI());
+                statistics.recordMaterializationOverflow();
+                table = null;
+                strategy = JoinStrategy.PER_BINDING;
+            }
+        }
+
+        if (strategy == JoinStrategy.HASH_JOIN) {
+            return QueryIterPlainWrapper.create(table.join(outer).iterator(), getExecContext());
+        }
+        return perBinding(outer);
+    }
+
+    private boolean isBindingIndependent(Binding outer) {
+        for (Var var : mentionedVars) {
+            if (outer.contains(var)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean requiresSubstitution(Binding outer) {
+        for (Var var : substitutionOnlyVars) {
+            if (outer.contains(var)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private QueryIterator perBinding(Binding outer) {
+        perBindingCalls++;
+        OpService substituted = (OpService) QC.substitute(opService, outer);
+        long start = System.nanoTime();
+        QueryIterator results = registry.createLocalExecution(substituted, opService, outer, getExecContext());
+        long nanos = System.nanoTime() - start;
+        if (results == null) {
+            if (statistics != null) {
+                statistics.recordPerBindingCall(0, nanos);
+            }
+            return QueryIterNullIterator.create(getExecContext());
+        }
+        if (statistics != null) {
+            results = new CountingIterator(results, nanos);
+        }
+        return new QueryIterCommonParent(results, outer, getExecContext());
+    }
+
+    /**
+     * Evaluates a binding-independent SERVICE operation for a {@link ServiceMemo}.
+     */
+    static BindingBuffer evaluateOnce(LocalSparqlServiceRegistry registry, OpService op, ExecutionContext execCxt) {
+        long spillThreshold = registry.spillThreshold(op.getService().getURI(), execCxt);
+        QueryIterator results = registry.createLocalExecution(op, op, BindingFactory.empty(), execCxt);
+        if (results == null) {
+            return BindingBuffer.create(spillThreshold);
+        }
+        try {
+            return BindingBuffer.drain(results, spillThreshold);
+        } finally {
+            results.close();
+        }
+    }
+
+    private HashJoinTable materialize() {
+        long start = System.nanoTime();
+        QueryIterator results = registry.createLocalExecution(opService, opService, BindingFactory.empty(), getExecContext());
+        if (results == null) {
+            results = QueryIterNullIterator.create(getExecContext());
+        }
+        try {
+            HashJoinTable materialized = new HashJoinTable(results, maxRows);
+            if (!materialized.isOverflowed()) {
+                statistics.recordMaterialization(materialized.size(), System.nanoTime() - start);
+            }
+            return materialized;
+        } finally {
+            results.close();
+        }
+    }
+
+    @Override
+    protected void closeSubIterator() {
+        super.closeSubIterator();
+        if (statistics != null) {
+            statistics.recordExecution(inputCount);
+        }
+        if (memo != null) {
+            memo.release();
+        }
+        table = null;
+    }
+
+    /**
+     * Counts the rows of one per-binding call and reports them once the call is consumed.
+     */
+    private class CountingIterator extends QueryIteratorWrapper {
+
+        private final long nanos;
+        private long rows;
+
+        CountingIterator(QueryIterator results, long nanos) {
+            super(results);
+            this.nanos = nanos;
+        }
+
+        @Override
+        protected Binding moveToNextBinding() {
+            rows++;
+            return super.moveToNextBinding();
+        }
+
+        @Override
+        protected void closeIterator() {
+            statistics.recordPerBindingCall(rows, nanos);
+            super.closeIterator();
+        }
+    }
+}
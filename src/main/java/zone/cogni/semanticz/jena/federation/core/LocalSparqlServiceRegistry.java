@@ -21,81 +21,315 @@ package zone.cogni.semanticz.jena.federation.core;
 
 import org.apache.jena.query.Dataset;
 import org.apache.jena.query.Query;
+import org.apache.jena.query.QueryExecution;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.query.ResultSetFactory;
+import org.apache.jena.query.ResultSetRewindable;
 import org.apache.jena.rdf.model.Model;
+import org.apache.jena.sparql.ARQConstants;
+import org.apache.jena.sparql.algebra.Op;
+import org.apache.jena.sparql.algebra.OpAsQuery;
 import org.apache.jena.sparql.algebra.op.OpService;
+import org.apache.jena.sparql.algebra.optimize.RewriteFactory;
 import org.apache.jena.sparql.engine.ExecutionContext;
 import org.apache.jena.sparql.engine.QueryIterator;
+import org.apache.jena.sparql.engine.main.QC;
 import org.apache.jena.sparql.engine.binding.Binding;
 import org.apache.jena.sparql.engine.iterator.QueryIterNullIterator;
+import org.apache.jena.sparql.engine.iterator.QueryIterRoot;
+import org.apache.jena.sparql.engine.iterator.QueryIteratorWrapper;
+import org.apache.jena.sparql.engine.iterator.QueryIterPlainWrapper;
 import org.apache.jena.sparql.engine.iterator.QueryIteratorResultSet;
 import org.apache.jena.sparql.service.ServiceExecutorRegistry;
 import org.apache.jena.sparql.service.single.ServiceExecutor;
+import org.apache.jena.sparql.util.Context;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 /**
  * A registry for local Jena Models and Datasets that enables them to be accessed
  * through custom SERVICE URIs in SPARQL queries.
  * 
  * This implementation is framework-agnostic and thread-safe.
+ * <p>
+ * SERVICE calls are profiled when the query context carries a {@link FederationProfile}
+ * under {@link LocalFederationSymbols#PROFILE}. With the {@link #setAdaptiveJoin(boolean) adaptive join}
+ * switched on, the registry chooses per query shape between executing a SERVICE once per outer
+ * binding and materializing it once for a hash join, based on observed cardinalities and latency.
+ * Materialized SERVICE results spill to disk above the {@link ServiceOptions#getSpillThreshold()
+ * threshold} of the service or the query's {@link LocalFederationSymbols#SPILL_THRESHOLD}.
+ * Services registered with a {@link ServiceOptions#getMaxConcurrency() concurrency limit} admit
+ * SERVICE calls through a bounded queue and reject them with a {@link ServiceRejectedException}
+ * when saturated. {@link #registerTable Tables} and {@link #registerView views} are answered from
+ * indexed columns instead of a triple store, and {@link #registerMirror mirrors} answer SERVICE
+ * calls to remote endpoints locally while they are fresh.
+ * <p>
+ * {@link #initialize()} activates the registry for every query in the JVM through Jena's global
+ * ServiceExecutorRegistry. To keep it out of unrelated queries, or to give tenants isolated
+ * service maps, {@link #attachTo(Context) attach} separate registries to the ARQ context of a
+ * dataset or a single query execution instead.
  */
 public class LocalSparqlServiceRegistry implements ServiceRegistry, ServiceExecutor {
 
     private static final Logger log = LoggerFactory.getLogger(LocalSparqlServiceRegistry.class);
 
-    private final Map<String, Dataset> localDatasets = new ConcurrentHashMap<>();
-    private final Map<String, Model> localModels = new ConcurrentHashMap<>();
+    private final Map<String, LocalService> services = new ConcurrentHashMap<>();
     private final AtomicBoolean initialized = new AtomicBoolean(false);
+    private final AtomicInteger attachedContexts = new AtomicInteger();
+    private final LocalServiceBulkExecutor bulkExecutor = new LocalServiceBulkExecutor(this);
+    private ScheduledExecutorService mirrorScheduler;
+    private ExecutorService reloadExecutor;
+    private ExecutorService pipelineExecutor;
+    private ExecutorService scanPool;
+    private int pipelineParallelism = Runtime.getRuntime().availableProcessors();
+    private volatile boolean topKPushdown = true;
 
     @Override
-    public void registerDataset(String serviceUri, Dataset dataset) {
+    public void registerDataset(String serviceUri, Dataset dataset, ServiceOptions options) {
         Objects.requireNonNull(serviceUri, "Service URI cannot be null");
         Objects.requireNonNull(dataset, "Dataset cannot be null");
 
-        if (localDatasets.containsKey(serviceUri) || localModels.containsKey(serviceUri)) {
-            throw new IllegalArgumentException("Service URI already registered: " + serviceUri);
+        register(LocalService.ofDataset(serviceUri, dataset, options));
+    }
+
+    @Override
+    public void registerModel(String serviceUri, Model model, ServiceOptions options) {
+        Objects.requireNonNull(serviceUri, "Service URI cannot be null");
+        Objects.requireNonNull(model, "Model cannot be null");
+
+        register(LocalService.ofModel(serviceUri, model, options));
+    }
+
+    @Override
+    public void registerTable(String serviceUri, TabularSource table, ServiceOptions options) {
+        Objects.requireNonNull(serviceUri, "Service URI cannot be null");
+        Objects.requireNonNull(table, "Table cannot be null");
+
+        register(LocalService.ofTable(serviceUri, table, options));
+    }
+
+    @Override
+    public CompletableFuture<Void> replaceDataset(String serviceUri, Supplier<Dataset> loader, ServiceOptions options) {
+        Objects.requireNonNull(serviceUri, "Service URI cannot be null");
+        Objects.requireNonNull(loader, "Loader cannot be null");
+        Objects.requireNonNull(options, "Service options cannot be null");
+        return CompletableFuture.supplyAsync(loader, reloadExecutor())
+                .thenAccept(dataset -> swap(LocalService.ofDataset(serviceUri,
+                        Objects.requireNonNull(dataset, "Loaded dataset cannot be null"), options).ownSource()));
+    }
+
+    @Override
+    public CompletableFuture<Void> replaceModel(String serviceUri, Supplier<Model> loader, ServiceOptions options) {
+        Objects.requireNonNull(serviceUri, "Service URI cannot be null");
+        Objects.requireNonNull(loader, "Loader cannot be null");
+        Objects.requireNonNull(options, "Service options cannot be null");
+
+        return CompletableFuture.supplyAsync(loader, reloadExecutor())
+                .thenAccept(model -> swap(LocalService.ofModel(serviceUri,
+                        Objects.requireNonNull(model, "Loaded model cannot be null"), options).ownSource()));
+    }
+
+    /**
+     * Puts a freshly loaded instance in place of the registered one in a single map update, so
+     * SERVICE calls always find one of both. Calls running on the old instance finish on it; it
+     * is disposed of when the last of them completes, closing its source only if the registry
+     * loaded it.
+     */
+    private void swap(LocalService fresh) {
+        LocalService old = services.put(fresh.getServiceUri(), fresh);
+        sourceChanged(fresh.getServiceUri(), fresh);
+        if (old == null) {
+            log.info("Registered {} with {}", fresh, fresh.getOptions());
+        } else {
+            old.retire();
+            log.info("Replaced {} with a new instance", fresh);
         }
+    }
 
-        if (!ServiceUriConstants.isLocalServiceUri(serviceUri)) {
-            log.warn("Registering service URI '{}' which does not follow the recommended pattern '{}'",
-                    serviceUri, ServiceUriConstants.SERVICE_URI_PREFIX);
+    private synchronized ExecutorService reloadExecutor() {
+        if (reloadExecutor == null) {
+            AtomicInteger counter = new AtomicInteger();
+            reloadExecutor = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "local-federation-reload-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
         }
+        return reloadExecutor;
+    }
+
+    /**
+     * Gets the pool running pipelined SERVICE calls ahead of consumption, creating it on first use.
+     */
+    synchronized ExecutorService pipelineExecutor() {
+        if (pipelineExecutor == null) {
+            AtomicInteger counter = new AtomicInteger();
+            pipelineExecutor = Executors.newFixedThreadPool(pipelineParallelism, runnable -> {
+                Thread thread = new PoolThread(runnable, "local-federation-pipeline-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return pipelineExecutor;
+    }
 
-        localDatasets.put(serviceUri, dataset);
-        log.info("Registered Dataset with service URI: {}", serviceUri);
+    /**
+     * Checks whether the calling thread belongs to the pipeline pool or the scan pool. SERVICE calls
+     * nested in a call running there are not pipelined: a pool thread waiting for calls queued on a
+     * bounded pool that is busy with such waiting threads would never continue.
+     */
+    boolean isOnPoolThread() {
+        return Thread.currentThread() instanceof PoolThread;
+    }
+
+    private static final class PoolThread extends Thread {
+
+        PoolThread(Runnable runnable, String name) {
+            super(runnable, name);
+        }
+    }
+
+    /**
+     * Gets the pool running the partitions of parallel scans, creating it on first use. It is kept
+     * apart from the pipeline pool, whose threads wait for the scans they start.
+     */
+    private synchronized ExecutorService scanPool() {
+        if (scanPool == null) {
+            // Unbounded, since every running scan needs a thread per partition at once.
+            AtomicInteger counter = new AtomicInteger();
+            scanPool = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new PoolThread(runnable, "local-federation-scan-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return scanPool;
     }
 
     @Override
-    public void registerModel(String serviceUri, Model model) {
+    public void registerView(String serviceUri, ViewDefinition view, ServiceOptions options) {
         Objects.requireNonNull(serviceUri, "Service URI cannot be null");
-        Objects.requireNonNull(model, "Model cannot be null");
+        Objects.requireNonNull(view, "View cannot be null");
 
-        if (localDatasets.containsKey(serviceUri) || localModels.containsKey(serviceUri)) {
-            throw new IllegalArgumentException("Service URI already registered: " + serviceUri);
+        LocalService source = services.get(view.getSourceServiceUri());
+        if (source == null) {
+            throw new IllegalArgumentException("Source service of view not registered: " + view.getSourceServiceUri());
+        }
+        if (!MaterializedView.canFollow(source)) {
+            throw new IllegalArgumentException("Source service of view must be a Model or a TDB2 dataset: "
+                                               + view.getSourceServiceUri());
+        }
+        LocalService service = LocalService.ofView(new MaterializedView(serviceUri, view, this::acquire), options);
+        try {
+            register(service);
+        } catch (IllegalArgumentException e) {
+            service.retire();
+            throw e;
         }
+    }
+
+    @Override
+    public void registerMirror(String endpointUri, Dataset mirror, MirrorOptions mirrorOptions, ServiceOptions options) {
+        Objects.requireNonNull(endpointUri, "Endpoint URI cannot be null");
+        Objects.requireNonNull(mirror, "Mirror dataset cannot be null");
+        Objects.requireNonNull(mirrorOptions, "Mirror options cannot be null");
+
+        RemoteMirror remoteMirror = new RemoteMirror(endpointUri, mirror, mirrorOptions);
+        register(LocalService.ofMirror(endpointUri, remoteMirror, options));
+        remoteMirror.schedule(mirrorScheduler());
+    }
 
-        if (!ServiceUriConstants.isLocalServiceUri(serviceUri)) {
+    @Override
+    public boolean syncMirror(String endpointUri) {
+        LocalService service = services.get(endpointUri);
+        if (service == null || !service.isMirror()) {
+            return false;
+        }
+        service.getMirror().sync();
+        return true;
+    }
+
+    private synchronized ScheduledExecutorService mirrorScheduler() {
+        if (mirrorScheduler == null) {
+            mirrorScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "local-federation-mirror-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return mirrorScheduler;
+    }
+
+    @Override
+    public boolean rebuildExistenceFilter(String serviceUri) {
+        LocalService service = services.get(serviceUri);
+        return service != null && service.rebuildExistenceFilter();
+    }
+
+    @Override
+    public boolean refreshView(String serviceUri) {
+        LocalService service = services.get(serviceUri);
+        if (service == null || !service.isView()) {
+            return false;
+        }
+        service.getView().invalidate();
+        return true;
+    }
+
+    private void register(LocalService service) {
+        String serviceUri = service.getServiceUri();
+        if (!service.isMirror() && !ServiceUriConstants.isLocalServiceUri(serviceUri)) {
             log.warn("Registering service URI '{}' which does not follow the recommended pattern '{}'",
                     serviceUri, ServiceUriConstants.SERVICE_URI_PREFIX);
         }
+        if (!service.isModel() && !service.getOptions().getClosurePredicates().isEmpty()) {
+            log.warn("Closure predicates of {} are ignored, only Model services index them", service);
+        }
+        if (!service.isTdb2Dataset() && service.getOptions().getScanParallelism() > 1) {
+            log.warn("Scan parallelism of {} is ignored, only TDB2 Dataset services are scanned in parallel", service);
+        }
 
-        localModels.put(serviceUri, model);
-        log.info("Registered Model with service URI: {}", serviceUri);
+        if (services.putIfAbsent(serviceUri, service) != null) {
+            throw new IllegalArgumentException("Service URI already registered: " + serviceUri);
+        }
+        sourceChanged(serviceUri, service);
+        log.info("Registered {} with {}", service, service.getOptions());
+    }
+
+    /**
+     * Points the views over a service URI at the instance now registered for it, before a
+     * replaced or unregistered instance is retired.
+     */
+    private void sourceChanged(String serviceUri, LocalService source) {
+        for (LocalService service : services.values()) {
+            if (service.isView() && service.getView().getSourceServiceUri().equals(serviceUri)) {
+                service.getView().sourceChanged(source);
+            }
+        }
     }
 
     @Override
     public boolean unregisterService(String serviceUri) {
-        boolean removed = localDatasets.remove(serviceUri) != null;
-        removed |= localModels.remove(serviceUri) != null;
+        LocalService service = services.remove(serviceUri);
+        boolean removed = service != null;
         if (removed) {
+            sourceChanged(serviceUri, null);
+            service.retire();
             log.info("Unregistered service URI: {}", serviceUri);
         }
         return removed;
@@ -103,20 +337,25 @@ public class LocalSparqlServiceRegistry implements ServiceRegistry, ServiceExecu
 
     @Override
     public boolean isRegistered(String serviceUri) {
-        return localDatasets.containsKey(serviceUri) || localModels.containsKey(serviceUri);
+        return services.containsKey(serviceUri);
     }
 
     @Override
     public Set<String> getRegisteredServices() {
-        Set<String> allServices = new HashSet<>(localDatasets.keySet());
-        allServices.addAll(localModels.keySet());
-        return Collections.unmodifiableSet(allServices);
+        return Collections.unmodifiableSet(new HashSet<>(services.keySet()));
+    }
+
+    @Override
+    public ServiceOptions getServiceOptions(String serviceUri) {
+        LocalService service = services.get(serviceUri);
+        return service == null ? null : service.getOptions();
     }
 
     @Override
     public void clear() {
-        localDatasets.clear();
-        localModels.clear();
+        services.values().forEach(service -> service.retire());
+        services.clear();
+        bulkExecutor.clear();
         log.info("Cleared all registered services");
     }
 
@@ -127,6 +366,7 @@ public class LocalSparqlServiceRegistry implements ServiceRegistry, ServiceExecu
 
             ServiceExecutorRegistry registry = ServiceExecutorRegistry.get();
             registry.add(this); // uses add(ServiceExecutor), which wraps it in a ChainingServiceExecutorWrapper
+            registry.addBulkLink(bulkExecutor); // sees the whole input of a SERVICE clause, e.g. for the adaptive join
 
             log.info("LocalSparqlServiceRegistry registered successfully");
         } else {
@@ -140,7 +380,27 @@ public class LocalSparqlServiceRegistry implements ServiceRegistry, ServiceExecu
             log.info("Unregistering LocalSparqlServiceRegistry from Jena ServiceExecutorRegistry");
 
             ServiceExecutorRegistry.get().remove(this); // this uses object equality to find the correct delegate
+            ServiceExecutorRegistry.get().getBulkChain().remove(bulkExecutor);
             clear();
+            synchronized (this) {
+                if (mirrorScheduler != null) {
+                    mirrorScheduler.shutdownNow();
+                    mirrorScheduler = null;
+                }
+                if (reloadExecutor != null) {
+                    reloadExecutor.shutdown();
+                    reloadExecutor = null;
+                }
+                if (pipelineExecutor != null) {
+                    pipelineExecutor.shutdownNow();
+                    pipelineExecutor = null;
+                }
+                if (scanPool != null) {
+                    // Not interrupted: an interrupt during file I/O would close TDB2's file channels.
+                    scanPool.shutdown();
+                    scanPool = null;
+                }
+            }
 
             log.info("LocalSparqlServiceRegistry unregistered and cleared");
         } else {
@@ -148,27 +408,100 @@ public class LocalSparqlServiceRegistry implements ServiceRegistry, ServiceExecu
         }
     }
 
+    @Override
+    public void attachTo(Context context) {
+        Objects.requireNonNull(context, "Context cannot be null");
+        synchronized (context) {
+            ServiceExecutorRegistry current = ServiceExecutorRegistry.get(context);
+            if (current != null && current.getBulkChain().contains(bulkExecutor)) {
+                log.debug("LocalSparqlServiceRegistry is already attached to this context");
+                return;
+            }
+
+            // Copy whatever the context resolves to today (its own chain or the global one),
+            // so the global registry is never modified.
+            ServiceExecutorRegistry scoped = ServiceExecutorRegistry.chooseRegistry(context).copy();
+            scoped.add(this);
+            scoped.addBulkLink(bulkExecutor);
+            ServiceExecutorRegistry.set(context, scoped);
+            // The top-k pushdown is scoped to the context as well; the global optimizer is never replaced.
+            RewriteFactory optimizer = context.get(ARQConstants.sysOptimizerFactory);
+            context.set(ARQConstants.sysOptimizerFactory, new TopKPushdown(this, optimizer));
+            attachedContexts.incrementAndGet();
+        }
+        log.debug("Attached LocalSparqlServiceRegistry to a query context");
+    }
+
+    @Override
+    public boolean detachFrom(Context context) {
+        Objects.requireNonNull(context, "Context cannot be null");
+        synchronized (context) {
+            ServiceExecutorRegistry scoped = ServiceExecutorRegistry.get(context);
+            if (scoped == null || !scoped.getBulkChain().remove(bulkExecutor)) {
+                return false;
+            }
+            scoped.remove(this);
+            if (context.get(ARQConstants.sysOptimizerFactory) instanceof TopKPushdown pushdown
+                    && pushdown.getRegistry() == this) {
+                RewriteFactory previous = pushdown.getDelegate();
+                if (previous == null) {
+                    context.remove(ARQConstants.sysOptimizerFactory);
+                } else {
+                    context.set(ARQConstants.sysOptimizerFactory, previous);
+                }
+            }
+            attachedContexts.decrementAndGet();
+        }
+        log.debug("Detached LocalSparqlServiceRegistry from a query context");
+        return true;
+    }
+
     // --- Implementation of ServiceExecutorFactory ---
 
     @Override
     public QueryIterator createExecution(OpService opExecute, OpService original, Binding binding, ExecutionContext execCxt) {
-        if (!initialized.get()) {
-            log.trace("Registry not initialized. Skipping service URI: {}", opExecute.getService().getURI());
+        LocalService service = services.get(opExecute.getService().getURI());
+        if (service != null && !service.isServedLocally()) {
+            log.debug("Mirror of {} is cold, passing the SERVICE call to the endpoint", service.getServiceUri());
             return null;
         }
+        return createLocalExecution(opExecute, original, binding, execCxt);
+    }
 
-        String serviceUri = opExecute.getService().getURI();
+    /**
+     * Executes a SERVICE call against a registered service, also when it is a cold mirror. Used once
+     * the bulk link has decided to handle a SERVICE clause locally, so the clause is evaluated
+     * consistently even if a mirror turns stale halfway through the query.
+     */
+    QueryIterator createLocalExecution(OpService opExecute, OpService original, Binding binding, ExecutionContext execCxt) {
+        return createLocalExecution(opExecute, original, binding, execCxt, true);
+    }
 
-        Dataset dataset = localDatasets.get(serviceUri);
-        if (dataset != null) {
-            log.debug("Handling SERVICE call to registered Dataset: {}", serviceUri);
-            return executeLocallyOnDataset(opExecute, dataset, execCxt);
+    /**
+     * Executes a SERVICE call against a registered service, see
+     * {@link #createLocalExecution(OpService, OpService, Binding, ExecutionContext)}.
+     *
+     * @param inPlace Whether a service sharing TDB2 storage with the outer query may be evaluated in
+     *                its read transaction. Calls running on another thread than the query must not.
+     */
+    QueryIterator createLocalExecution(OpService opExecute, OpService original, Binding binding, ExecutionContext execCxt,
+                                       boolean inPlace) {
+        if (!isActive(execCxt.getContext())) {
+            log.trace("Registry not initialized or attached. Skipping service URI: {}", opExecute.getService().getURI());
+            return null;
         }
 
-        Model model = localModels.get(serviceUri);
-        if (model != null) {
-            log.debug("Handling SERVICE call to registered Model: {}", serviceUri);
-            return executeLocallyOnModel(opExecute, model, execCxt);
+        String serviceUri = opExecute.getService().getURI();
+
+        LocalService service = acquire(serviceUri);
+        if (service != null) {
+            log.debug("Handling SERVICE call to registered {}", service);
+            try {
+                return executeAdmitted(service, opExecute, original, execCxt, inPlace);
+            } finally {
+                // Results are materialized by now, so a replaced instance can be disposed of.
+                service.release();
+            }
         }
 
         // Let other registered ServiceExecutors try to handle it
@@ -176,63 +509,435 @@ public class LocalSparqlServiceRegistry implements ServiceRegistry, ServiceExecu
         return null;
     }
 
-    private QueryIterator executeLocallyOnDataset(OpService opExecute, Dataset dataset, ExecutionContext execCxt) {
-        try {
-            Query subQuery = org.apache.jena.sparql.algebra.OpAsQuery.asQuery(opExecute.getSubOp());
-
-            if (!subQuery.isSelectType()) {
-                log.warn("Local SERVICE execution currently only supports SELECT queries");
-                return QueryIterNullIterator.create(execCxt);
+    /**
+     * Looks up a service and registers a SERVICE call against it, retrying when the instance
+     * found was replaced in between.
+     */
+    private LocalService acquire(String serviceUri) {
+        while (true) {
+            LocalService service = services.get(serviceUri);
+            if (service == null || service.acquire()) {
+                return service;
             }
+        }
+    }
 
-            try (var qExec = org.apache.jena.query.QueryExecutionFactory.create(subQuery, dataset)) {
-                var results = qExec.execSelect();
-                var rewindable = org.apache.jena.query.ResultSetFactory.copyResults(results);
-                return new QueryIteratorResultSet(rewindable);
+    private QueryIterator executeAdmitted(LocalService service, OpService opExecute, OpService original,
+                                          ExecutionContext execCxt, boolean inPlace) {
+        if (!service.mightMatch(opExecute.getSubOp())) {
+            log.debug("Existence filter of {} rules out the SERVICE call", service);
+            FederationProfile profile = FederationProfile.fromContext(execCxt.getContext());
+            if (profile != null) {
+                profile.serviceProfile(service.getServiceUri(), original).record(opExecute.getSubOp(), 1, 0, 0, 0);
             }
+            return QueryIterNullIterator.create(execCxt);
+        }
+        ServiceBulkhead bulkhead = service.getBulkhead();
+        if (bulkhead == null) {
+            return executeLocally(service, opExecute, original, execCxt, inPlace);
+        }
+        if (!bulkhead.tryEnter()) {
+            return rejectSaturated(opExecute, execCxt);
+        }
+        try {
+            // Never in place: lazily evaluated results would hold the permit while the outer query
+            // streams, and its later SERVICE calls to the same service would wait for their own query.
+            return executeLocally(service, opExecute, original, execCxt, false);
+        } finally {
+            bulkhead.exit();
+        }
+    }
 
-        } catch (Exception e) {
-            log.error("Error executing local SERVICE sub-query for URI {}: {}",
-                      opExecute.getService().getURI(), opExecute.getSubOp(), e);
+    private QueryIterator rejectSaturated(OpService opExecute, ExecutionContext execCxt) {
+        String serviceUri = opExecute.getService().getURI();
+        if (opExecute.getSilent()) {
+            log.debug("Service {} is saturated, SERVICE SILENT call yields no rows", serviceUri);
             return QueryIterNullIterator.create(execCxt);
         }
+        log.warn("Rejecting SERVICE call, service {} is saturated", serviceUri);
+        throw new ServiceRejectedException(serviceUri, "Local service is saturated: " + serviceUri);
     }
 
-    private QueryIterator executeLocallyOnModel(OpService opExecute, Model model, ExecutionContext execCxt) {
+    private QueryIterator executeLocally(LocalService service, OpService opExecute, OpService original,
+                                         ExecutionContext execCxt, boolean inPlace) {
+        String serviceUri = service.getServiceUri();
+        FederationProfile profile = FederationProfile.fromContext(execCxt.getContext());
+        ExecutionContext inPlaceCxt = inPlace ? service.inPlaceContext(execCxt) : null;
+        if (inPlaceCxt != null && service.acquire()) {
+            return executeInPlace(service, opExecute, original, execCxt, inPlaceCxt, profile);
+        }
         try {
-            Query subQuery = org.apache.jena.sparql.algebra.OpAsQuery.asQuery(opExecute.getSubOp());
+            long start = System.nanoTime();
+            if (service.isTable() || service.isView()) {
+                List<Binding> rows = TabularEvaluator.evaluate(service.getTable(), opExecute.getSubOp(), execCxt);
+                if (rows != null) {
+                    if (profile != null) {
+                        profile.serviceProfile(serviceUri, original)
+                               .record(opExecute.getSubOp(), 1, rows.size(), 0, System.nanoTime() - start);
+                    }
+                    return QueryIterPlainWrapper.create(rows.iterator(), execCxt);
+                }
+                log.debug("Sub-query not covered by the table of {}, executing over its triples", serviceUri);
+            }
+
+            if (service.getOptions().getScanParallelism() > 1) {
+                QueryIterator partitioned = ParallelScan.evaluate(service, opExecute.getSubOp(),
+                                                                  ServiceExecutorRegistry.get(execCxt.getContext()), scanPool(), execCxt);
+                if (partitioned != null) {
+                    log.debug("Scanning {} in partitions", serviceUri);
+                    ServiceProfile serviceProfile = profile == null ? null : profile.serviceProfile(serviceUri, original);
+                    if (serviceProfile != null) {
+                        serviceProfile.recordPartitionedScan();
+                    }
+                    if (service.getBulkhead() == null && service.acquire()) {
+                        return new StreamedResults(partitioned, service, serviceProfile, opExecute.getSubOp(), start);
+                    }
+                    // A bulkhead permit is returned with the call, so its results must be complete by then.
+                    try {
+                        BindingBuffer buffer = BindingBuffer.drain(partitioned, spillThreshold(service, execCxt));
+                        if (serviceProfile != null) {
+                            serviceProfile.record(opExecute.getSubOp(), 1, buffer.size(), 0, System.nanoTime() - start);
+                        }
+                        return buffer.toQueryIterator(execCxt, true);
+                    } finally {
+                        partitioned.close();
+                    }
+                }
+            }
+
+            Query subQuery = OpAsQuery.asQuery(opExecute.getSubOp());
 
             if (!subQuery.isSelectType()) {
                 log.warn("Local SERVICE execution currently only supports SELECT queries");
                 return QueryIterNullIterator.create(execCxt);
             }
 
-            try (var qExec = org.apache.jena.query.QueryExecutionFactory.create(subQuery, model)) {
-                var results = qExec.execSelect();
-                var rewindable = org.apache.jena.query.ResultSetFactory.copyResults(results);
-                return new QueryIteratorResultSet(rewindable);
+            try (QueryExecution qExec = service.createQueryExecution(subQuery)) {
+                ServiceProfile serviceProfile = profile == null ? null : profile.serviceProfile(serviceUri, original);
+                if (serviceProfile != null) {
+                    qExec.getContext().set(LocalFederationSymbols.PROFILE, serviceProfile.getNested());
+                }
+                ServiceExecutorRegistry scopedRegistry = ServiceExecutorRegistry.get(execCxt.getContext());
+                if (scopedRegistry != null) {
+                    // SERVICE calls nested in the sub-query resolve through the same context-scoped chain.
+                    ServiceExecutorRegistry.set(qExec.getContext(), scopedRegistry);
+                }
+
+                ResultSet results = qExec.execSelect();
+                long compiled = System.nanoTime();
+                long spillThreshold = spillThreshold(service, execCxt);
+                QueryIterator materialized;
+                long rowCount;
+                if (spillThreshold > 0) {
+                    BindingBuffer buffer = BindingBuffer.create(spillThreshold);
+                    while (results.hasNext()) {
+                        buffer.add(results.nextBinding());
+                    }
+                    rowCount = buffer.size();
+                    if (serviceProfile != null && buffer.isSpilled()) {
+                        serviceProfile.recordSpill();
+                    }
+                    materialized = buffer.toQueryIterator(execCxt, true);
+                } else {
+                    ResultSetRewindable rewindable = ResultSetFactory.copyResults(results);
+                    rowCount = rewindable.size();
+                    materialized = new QueryIteratorResultSet(rewindable);
+                }
+
+                if (serviceProfile != null) {
+                    serviceProfile.record(opExecute.getSubOp(), 1, rowCount,
+                                          compiled - start, System.nanoTime() - compiled);
+                }
+                return materialized;
             }
 
         } catch (Exception e) {
             log.error("Error executing local SERVICE sub-query for URI {}: {}",
-                      opExecute.getService().getURI(), opExecute.getSubOp(), e);
+                      serviceUri, opExecute.getSubOp(), e);
             return QueryIterNullIterator.create(execCxt);
         }
     }
 
+    /**
+     * Checks whether SERVICE calls to a URI are answered by this registry right now.
+     */
+    boolean isServedLocally(String serviceUri) {
+        LocalService service = services.get(serviceUri);
+        return service != null && service.isServedLocally();
+    }
+
+    /**
+     * Evaluates a sub-query in the execution context of the outer query, which runs over the same
+     * TDB2 database and is already inside its read transaction. TDB2's executor then matches the
+     * sub-query on NodeIds and streams NodeId-backed bindings straight into the outer join: there
+     * is no separate query execution, no materialized copy and no re-encoding of the results.
+     * The caller has acquired the service; it is released when the results are closed.
+     */
+    private QueryIterator executeInPlace(LocalService service, OpService opExecute, OpService original,
+                                         ExecutionContext execCxt, ExecutionContext inPlaceCxt, FederationProfile profile) {
+        log.debug("{} shares TDB2 storage with the outer query, evaluating in place", service);
+        long start = System.nanoTime();
+        ServiceProfile serviceProfile = profile == null ? null : profile.serviceProfile(service.getServiceUri(), original);
+        if (serviceProfile != null) {
+            inPlaceCxt.getContext().set(LocalFederationSymbols.PROFILE, serviceProfile.getNested());
+        }
+        ServiceExecutorRegistry scopedRegistry = ServiceExecutorRegistry.get(execCxt.getContext());
+        if (scopedRegistry != null) {
+            ServiceExecutorRegistry.set(inPlaceCxt.getContext(), scopedRegistry);
+        }
+        QueryIterator results;
+        try {
+            results = QC.execute(opExecute.getSubOp(), QueryIterRoot.create(inPlaceCxt), inPlaceCxt);
+        } catch (RuntimeException e) {
+            service.release();
+            throw e;
+        }
+        return new StreamedResults(results, service, serviceProfile, opExecute.getSubOp(), start);
+    }
+
+    /**
+     * Results of a SERVICE call streamed to the outer query, evaluated in place or by a parallel
+     * scan, holding on to the service until they are closed.
+     */
+    private static final class StreamedResults extends QueryIteratorWrapper {
+
+        private final LocalService service;
+        private final ServiceProfile serviceProfile;
+        private final Op subOp;
+        private final long start;
+        private long rows;
+
+        StreamedResults(QueryIterator results, LocalService service, ServiceProfile serviceProfile, Op subOp, long start) {
+            super(results);
+            this.service = service;
+            this.serviceProfile = serviceProfile;
+            this.subOp = subOp;
+            this.start = start;
+        }
+
+        @Override
+        protected Binding moveToNextBinding() {
+            rows++;
+            return super.moveToNextBinding();
+        }
+
+        @Override
+        protected void closeIterator() {
+            try {
+                super.closeIterator();
+            } finally {
+                if (serviceProfile != null) {
+                    serviceProfile.record(subOp, 1, rows, 0, System.nanoTime() - start);
+                }
+                service.release();
+            }
+        }
+    }
+
+    /**
+     * Gets the effective spill threshold of a SERVICE call: the lower of the service's
+     * threshold and the query's {@link LocalFederationSymbols#SPILL_THRESHOLD}.
+     */
+    long spillThreshold(LocalService service, ExecutionContext execCxt) {
+        long serviceThreshold = service == null ? ServiceOptions.UNLIMITED : service.getOptions().getSpillThreshold();
+        long queryThreshold = execCxt.getContext() == null
+                              ? ServiceOptions.UNLIMITED
+                              : execCxt.getContext().getLong(LocalFederationSymbols.SPILL_THRESHOLD, ServiceOptions.UNLIMITED);
+        if (serviceThreshold <= 0) {
+            return queryThreshold;
+        }
+        if (queryThreshold <= 0) {
+            return serviceThreshold;
+        }
+        return Math.min(serviceThreshold, queryThreshold);
+    }
+
+    /**
+     * Gets the spill threshold applying to buffered results of the given service in a query.
+     */
+    long spillThreshold(String serviceUri, ExecutionContext execCxt) {
+        return spillThreshold(services.get(serviceUri), execCxt);
+    }
+
     // Utility methods for inspection
     /**
      * Gets the number of registered datasets.
      */
     public int getDatasetCount() {
-        return localDatasets.size();
+        return (int) services.values().stream().filter(LocalService::isDataset).count();
     }
 
     /**
      * Gets the number of registered models.
      */
     public int getModelCount() {
-        return localModels.size();
+        return (int) services.values().stream().filter(LocalService::isModel).count();
+    }
+
+    /**
+     * Gets the number of registered tables.
+     */
+    public int getTableCount() {
+        return (int) services.values().stream().filter(LocalService::isTable).count();
+    }
+
+    /**
+     * Gets the number of SERVICE calls to a service that its existence filter ruled out without
+     * executing them.
+     *
+     * @param serviceUri The URI of the service.
+     * @return The number of skipped calls, or 0 if the service is not registered or has no filter.
+     */
+    public long getSkippedCallCount(String serviceUri) {
+        LocalService service = services.get(serviceUri);
+        return service == null ? 0 : service.getSkippedCallCount();
+    }
+
+    /**
+     * Checks whether SERVICE calls to a mirrored endpoint are currently answered from its mirror.
+     *
+     * @param endpointUri The URI of the remote endpoint.
+     * @return true if the mirror is synced within its staleness bound, false if it is cold or not registered.
+     */
+    public boolean isMirrorFresh(String endpointUri) {
+        LocalService service = services.get(endpointUri);
+        return service != null && service.isMirror() && service.isServedLocally();
+    }
+
+    /**
+     * Gets how many times the query of a view has been run, including its initial materialization.
+     *
+     * @param serviceUri The URI of the view.
+     * @return The number of refreshes, or -1 if the URI is not a registered view.
+     */
+    public long getViewRefreshCount(String serviceUri) {
+        LocalService service = services.get(serviceUri);
+        return service == null || !service.isView() ? -1 : service.getView().getRefreshCount();
+    }
+
+    /**
+     * Gets the admission control metrics of a service: running calls, queue depth and wait times.
+     *
+     * @param serviceUri The URI of the service.
+     * @return The metrics, or null if the service is not registered or has no concurrency limit.
+     */
+    public BulkheadMetrics getBulkheadMetrics(String serviceUri) {
+        LocalService service = services.get(serviceUri);
+        return service == null || service.getBulkhead() == null ? null : service.getBulkhead().metrics();
+    }
+
+    /**
+     * Switches the adaptive join for all queries. A query can override this through
+     * {@link LocalFederationSymbols#ADAPTIVE_JOIN}. Off by default.
+     */
+    public void setAdaptiveJoin(boolean adaptiveJoin) {
+        bulkExecutor.setAdaptiveJoin(adaptiveJoin);
+    }
+
+    /**
+     * Switches the top-k pushdown for all queries. When on, an {@code ORDER BY ... LIMIT k} over a
+     * single local SERVICE call is pushed into the call, so it hands only its best k rows to the
+     * outer query. The rewrite is part of the optimizer of the contexts the registry is
+     * {@link #attachTo(Context) attached} to; {@link #initialize()} leaves Jena's global optimizer
+     * alone, so queries outside those contexts are not rewritten. A query can override this through
+     * {@link LocalFederationSymbols#TOP_K_PUSHDOWN}. On by default.
+     */
+    public void setTopKPushdown(boolean topKPushdown) {
+        this.topKPushdown = topKPushdown;
+    }
+
+    boolean isTopKPushdown(Context context) {
+        if (!isActive(context)) {
+            return false;
+        }
+        if (context.isDefined(LocalFederationSymbols.TOP_K_PUSHDOWN)) {
+            return context.isTrue(LocalFederationSymbols.TOP_K_PUSHDOWN);
+        }
+        return topKPushdown;
+    }
+
+    /**
+     * Sets how many outer bindings ahead SERVICE calls are run when they are executed per binding.
+     * With a window above 1, the calls for the next bindings run on a pool of
+     * {@link #setPipelineParallelism(int) pipeline threads} while the query consumes the results of
+     * the current one; results keep the order of the outer bindings. A query can override this
+     * through {@link LocalFederationSymbols#PIPELINE_WINDOW}. Pipelining does not apply while the
+     * adaptive join is on. Off (0) by default.
+     */
+    public void setPipelineWindow(int bindings) {
+        bulkExecutor.setPipelineWindow(bindings);
+    }
+
+    /**
+     * Sets the number of threads running pipelined SERVICE calls, shared by all queries. Takes effect
+     * if set before the first pipelined query. Defaults to the number of available processors.
+     */
+    public synchronized void setPipelineParallelism(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Pipeline parallelism must be at least 1");
+        }
+        if (pipelineExecutor != null) {
+            log.warn("Pipeline executor already running, parallelism {} applies after a restart", threads);
+        }
+        this.pipelineParallelism = threads;
+    }
+
+    /**
+     * Switches memoization of binding-independent SERVICE calls for all queries. When on,
+     * a SERVICE clause that shares no variables with the outer binding is evaluated once per
+     * query and its results are replayed for every outer row. A query can override this
+     * through {@link LocalFederationSymbols#MEMOIZE_SERVICES}. On by default.
+     */
+    public void setMemoization(boolean memoization) {
+        bulkExecutor.setMemoization(memoization);
+    }
+
+    /**
+     * Sets after how many per-binding calls the adaptive join re-evaluates whether to
+     * materialize the service instead. Defaults to {@value LocalServiceBulkExecutor#DEFAULT_ADAPTIVE_JOIN_THRESHOLD}.
+     */
+    public void setAdaptiveJoinThreshold(int calls) {
+        bulkExecutor.setAdaptiveJoinThreshold(calls);
+    }
+
+    /**
+     * Sets the most rows the adaptive join may materialize to hash join a SERVICE clause; a clause
+     * with more rows stays per binding. The lower of this and the
+     * {@link ServiceOptions#getSpillThreshold() spill threshold} applies. With neither set, the
+     * adaptive join never switches to a hash join, as the table stays on the heap. Not set (0) by
+     * default.
+     */
+    public void setHashJoinMaxRows(long rows) {
+        bulkExecutor.setHashJoinMaxRows(rows);
+    }
+
+    /**
+     * Gets the join strategy the adaptive join currently prefers for each SERVICE
+     * query shape it has seen.
+     */
+    public Map<Op, JoinStrategy> getLearnedJoinStrategies() {
+        return bulkExecutor.getLearnedJoinStrategies();
+    }
+
+    /**
+     * Gets the number of ARQ contexts the registry is currently attached to, for diagnostics. A
+     * context counts until it is {@link #detachFrom(Context) detached}; whether a query is handled
+     * only depends on its own context.
+     */
+    public int getAttachedContextCount() {
+        return attachedContexts.get();
+    }
+
+    /**
+     * Checks if the registry handles the SERVICE calls of a query: it is initialized on the global
+     * chain, or attached to the query's context.
+     */
+    private boolean isActive(Context context) {
+        if (initialized.get()) {
+            return true;
+        }
+        ServiceExecutorRegistry scoped = context != null ? ServiceExecutorRegistry.get(context) : null;
+        return scoped != null && scoped.getBulkChain().contains(bulkExecutor);
     }
 
     /**
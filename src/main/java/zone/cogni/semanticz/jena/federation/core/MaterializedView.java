@@ -0,0 +1,342 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package zone.cogni.semanticz.jena.federation.core;
+
+import org.apache.jena.graph.GraphEvents;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.QueryExecException;
+import org.apache.jena.query.QueryExecution;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.rdf.listeners.StatementListener;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.Statement;
+import org.apache.jena.sparql.algebra.Algebra;
+import org.apache.jena.sparql.algebra.Op;
+import org.apache.jena.sparql.algebra.OpVisitorBase;
+import org.apache.jena.sparql.algebra.OpWalker;
+import org.apache.jena.sparql.algebra.op.OpBGP;
+import org.apache.jena.sparql.algebra.op.OpPath;
+import org.apache.jena.sparql.algebra.op.OpService;
+import org.apache.jena.sparql.algebra.op.OpTriple;
+import org.apache.jena.sparql.core.TriplePath;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.path.P_Link;
+import org.apache.jena.sparql.path.P_NegPropSet;
+import org.apache.jena.sparql.path.P_ReverseLink;
+import org.apache.jena.sparql.path.PathVisitorBase;
+import org.apache.jena.sparql.path.PathWalker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * The materialized result of a {@link ViewDefinition}, kept up to date from change events.
+ * <p>
+ * When the source service is a Model, a listener on it marks the view stale whenever a statement
+ * that can affect the view query is added or removed: statements whose predicate does not occur in
+ * the query are ignored, unless the query has variable predicates or negated property paths. Of the
+ * bulk events, only removals ({@code removeAll()} and pattern removes) mark the view stale. The
+ * next SERVICE call against a stale view re-runs the whole query once; calls in between are
+ * answered from the materialized table. When the source is stored in TDB2, a Dataset service or a
+ * mirror, every committed write transaction marks the view stale, as a commit does not tell what
+ * changed. Either way the view is recomputed in full; changes are not applied to the table
+ * incrementally. Other sources cannot be followed, so {@link #canFollow(LocalService)} keeps them
+ * out at registration.
+ * <p>
+ * The source is looked up by URI for every refresh, so a replaced source is picked up. The registry
+ * reports replacements through {@link #sourceChanged(LocalService)}, which moves the listener to
+ * the new instance and marks the view stale. A replacement that cannot be followed is logged, and
+ * the view is then only refreshed through {@link #invalidate()}.
+ */
+final class MaterializedView {
+
+    private static final Logger log = LoggerFactory.getLogger(MaterializedView.class);
+
+    private final String serviceUri;
+    private final ViewDefinition definition;
+    private final Function<String, LocalService> sources;
+    private final Set<Node> relevantPredicates;
+    private final ChangeListener listener = new ChangeListener();
+    private final AtomicLong refreshes = new AtomicLong();
+
+    // The source instance the listener is registered with, and its commit hook when it is stored
+    // in TDB2; guarded by this.
+    private LocalService listenedSource;
+    private Tdb2CommitHook commitHook;
+
+    private volatile TabularSource table;
+    private volatile boolean stale = true;
+
+    /**
+     * Creates and materializes a view.
+     *
+     * @param sources Acquires the registered instance of a service URI, or gives null when it is not
+     *                registered; the view releases the instance when done.
+     */
+    MaterializedView(String serviceUri, ViewDefinition definition, Function<String, LocalService> sources) {
+        this.serviceUri = serviceUri;
+        this.definition = definition;
+        this.sources = sources;
+        this.relevantPredicates = predicatesOf(Algebra.compile(definition.getQuery()));
+        current();
+    }
+
+    /**
+     * Gets the predicates the query can match, or null when any predicate can affect the result.
+     */
+    private static Set<Node> predicatesOf(Op op) {
+        Set<Node> predicates = new HashSet<>();
+        boolean[] anyPredicate = {false};
+        PathVisitorBase pathVisitor = new PathVisitorBase() {
+            @Override
+            public void visit(P_Link pathNode) {
+                predicates.add(pathNode.getNode());
+            }
+
+            @Override
+            public void visit(P_ReverseLink pathNode) {
+                predicates.add(pathNode.getNode());
+            }
+
+            @Override
+            public void visit(P_NegPropSet pathNotOneOf) {
+                anyPredicate[0] = true;
+            }
+        };
+        OpWalker.walk(op, new OpVisitorBase() {
+            @Override
+            public void visit(OpBGP opBGP) {
+                opBGP.getPattern().forEach(triple -> addPredicate(triple.getPredicate()));
+            }
+
+            @Override
+            public void visit(OpTriple opTriple) {
+                addPredicate(opTriple.getTriple().getPredicate());
+            }
+
+            @Override
+            public void visit(OpPath opPath) {
+                TriplePath triplePath = opPath.getTriplePath();
+                if (triplePath.isTriple()) {
+                    addPredicate(triplePath.getPredicate());
+                } else {
+                    PathWalker.walk(triplePath.getPath(), pathVisitor);
+                }
+            }
+
+            @Override
+            public void visit(OpService opService) {
+                anyPredicate[0] = true;
+            }
+
+            private void addPredicate(Node predicate) {
+                if (predicate.isConcrete()) {
+                    predicates.add(predicate);
+                } else {
+                    anyPredicate[0] = true;
+                }
+            }
+        });
+        return anyPredicate[0] ? null : predicates;
+    }
+
+    /**
+     * Checks whether a view can follow the changes of a source: a Model, or a dataset stored in TDB2.
+     */
+    static boolean canFollow(LocalService source) {
+        return source.isModel() || source.isTdb2Stored();
+    }
+
+    String getServiceUri() {
+        return serviceUri;
+    }
+
+    String getSourceServiceUri() {
+        return definition.getSourceServiceUri();
+    }
+
+    /**
+     * Gets the up-to-date materialized table, re-running the view query first if it is stale.
+     */
+    TabularSource current() {
+        if (stale) {
+            synchronized (this) {
+                if (stale) {
+                    // Cleared before materializing, so changes made meanwhile trigger another refresh.
+                    stale = false;
+                    try {
+                        table = materialize();
+                    } catch (RuntimeException e) {
+                        stale = true;
+                        throw e;
+                    }
+                }
+            }
+        }
+        return table;
+    }
+
+    private TabularSource materialize() {
+        long start = System.nanoTime();
+        Var key = Var.alloc(definition.getKeyVariable());
+        List<Var> variables = new ArrayList<>();
+        TabularSource.Builder builder = TabularSource.builder().keyColumn(definition.getKeyVariable());
+        for (Map.Entry<String, String> entry : definition.getPredicatesByVariable().entrySet()) {
+            if (definition.getIndexedVariables().contains(entry.getKey())) {
+                builder.indexedColumn(entry.getKey(), entry.getValue());
+            } else {
+                builder.column(entry.getKey(), entry.getValue());
+            }
+            variables.add(Var.alloc(entry.getKey()));
+        }
+
+        LocalService source = sources.apply(getSourceServiceUri());
+        if (source == null) {
+            throw new QueryExecException("Source service of view " + serviceUri + " is not registered: "
+                                         + getSourceServiceUri());
+        }
+        try (QueryExecution qExec = source.createQueryExecution(definition.getQuery())) {
+            // Listening before the query runs, so changes made meanwhile mark the view stale again.
+            listenTo(source);
+            ResultSet results = qExec.execSelect();
+            while (results.hasNext()) {
+                Binding binding = results.nextBinding();
+                Node[] row = new Node[variables.size() + 1];
+                row[0] = binding.get(key);
+                for (int i = 0; i < variables.size(); i++) {
+                    row[i + 1] = binding.get(variables.get(i));
+                }
+                builder.row(row);
+            }
+        } finally {
+            source.release();
+        }
+
+        TabularSource result = builder.build();
+        refreshes.incrementAndGet();
+        log.debug("Materialized view {} with {} rows in {} ms", serviceUri, result.getRowCount(),
+                  (System.nanoTime() - start) / 1_000_000);
+        return result;
+    }
+
+    /**
+     * Marks the view stale, so the next SERVICE call re-runs its query.
+     */
+    void invalidate() {
+        stale = true;
+    }
+
+    boolean isStale() {
+        return stale;
+    }
+
+    /**
+     * Gets how many times the view query has been run.
+     */
+    long getRefreshCount() {
+        return refreshes.get();
+    }
+
+    /**
+     * Follows a replaced or unregistered source: moves the listener to the new instance and marks
+     * the view stale.
+     *
+     * @param source The instance now registered for the source URI, or null when there is none.
+     */
+    synchronized void sourceChanged(LocalService source) {
+        listenTo(source);
+        invalidate();
+    }
+
+    /**
+     * Stops listening to changes of the source.
+     */
+    synchronized void close() {
+        listenTo(null);
+    }
+
+    private synchronized void listenTo(LocalService source) {
+        if (source == listenedSource) {
+            return;
+        }
+        if (listenedSource != null && listenedSource.isModel()) {
+            listenedSource.getModel().unregister(listener);
+        }
+        if (commitHook != null) {
+            commitHook.close();
+            commitHook = null;
+        }
+        listenedSource = source;
+        if (source == null) {
+            return;
+        }
+        if (source.isModel()) {
+            source.getModel().register(listener);
+        } else if (source.isTdb2Stored()) {
+            commitHook = source.onCommit(this::invalidate);
+        } else {
+            log.warn("View {} cannot follow changes of its source {}; refresh it with refreshView",
+                     serviceUri, getSourceServiceUri());
+        }
+    }
+
+    private final class ChangeListener extends StatementListener {
+
+        @Override
+        public void addedStatement(Statement statement) {
+            changed(statement);
+        }
+
+        @Override
+        public void removedStatement(Statement statement) {
+            changed(statement);
+        }
+
+        @Override
+        public void notifyEvent(Model model, Object event) {
+            // Bulk removals carry no statements; other events such as startRead/finishRead change nothing.
+            if (event == GraphEvents.removeAll) {
+                invalidate();
+            } else if (event instanceof GraphEvents graphEvent && "remove".equals(graphEvent.getTitle())
+                       && graphEvent.getContent() instanceof Triple pattern) {
+                changed(pattern.getPredicate());
+            }
+        }
+
+        private void changed(Statement statement) {
+            changed(statement.getPredicate().asNode());
+        }
+
+        private void changed(Node predicate) {
+            if (relevantPredicates == null || !predicate.isConcrete() || relevantPredicates.contains(predicate)) {
+                invalidate();
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package zone.cogni.semanticz.jena.federation.core;
+
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QueryFactory;
+
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * Settings of a local mirror of a remote SPARQL endpoint.
+ * <p>
+ * The mirror is filled by running {@link #getSyncQuery() a CONSTRUCT query} against the endpoint,
+ * in pages of {@link #getPageSize()} solutions, either every {@link #getSyncInterval()} or on
+ * demand. SERVICE calls to the endpoint are answered from the mirror while its last sync is no
+ * older than {@link #getMaxStaleness()}, and go to the endpoint itself otherwise.
+ * <pre>
+ * MirrorOptions options = MirrorOptions.builder()
+ *         .syncInterval(Duration.ofMinutes(15))
+ *         .maxStaleness(Duration.ofHours(1))
+ *         .build();
+ * registry.registerMirror("https://example.org/sparql", DatasetFactory.createTxnMem(), options);
+ * </pre>
+ * Instances are immutable.
+ */
+public final class MirrorOptions {
+
+    private static final String DEFAULT_SYNC_QUERY = "CONSTRUCT { ?s ?p ?o } WHERE { ?s ?p ?o } ORDER BY ?s ?p ?o";
+    private static final int DEFAULT_PAGE_SIZE = 10_000;
+
+    private final Query syncQuery;
+    private final int pageSize;
+    private final Duration syncInterval;
+    private final Duration maxStaleness;
+
+    private MirrorOptions(Builder builder) {
+        this.syncQuery = builder.syncQuery;
+        this.pageSize = builder.pageSize;
+        this.syncInterval = builder.syncInterval;
+        this.maxStaleness = builder.maxStaleness;
+    }
+
+    /**
+     * Gets options mirroring the default graph of the endpoint, synced on demand only.
+     */
+    public static MirrorOptions defaults() {
+        return builder().build();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Gets the CONSTRUCT query whose result is the content of the mirror.
+     */
+    public Query getSyncQuery() {
+        return syncQuery;
+    }
+
+    /**
+     * Gets the number of solutions fetched per request, or {@link ServiceOptions#UNLIMITED}
+     * to fetch everything at once.
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Gets the delay between periodic syncs, or null when the mirror is only synced on demand.
+     */
+    public Duration getSyncInterval() {
+        return syncInterval;
+    }
+
+    /**
+     * Gets how old the last sync may be for SERVICE calls to be answered from the mirror,
+     * or null when any completed sync is good enough.
+     */
+    public Duration getMaxStaleness() {
+        return maxStaleness;
+    }
+
+    @Override
+    public String toString() {
+        return "MirrorOptions{pageSize=" + pageSize + ", syncInterval=" + syncInterval
+               + ", maxStaleness=" + maxStaleness + "}";
+    }
+
+    /**
+     * Builder for {@link MirrorOptions}.
+     */
+    public static final class Builder {
+
+        private Query syncQuery = QueryFactory.create(DEFAULT_SYNC_QUERY);
+        private int pageSize = DEFAULT_PAGE_SIZE;
+        private Duration syncInterval;
+        private Duration maxStaleness;
+
+        private Builder() {
+        }
+
+        /**
+         * Sets the CONSTRUCT query run against the endpoint. When paging, it must have an ORDER BY
+         * so pages are stable.
+         */
+        public Builder syncQuery(String constructQuery) {
+            Query query = QueryFactory.create(Objects.requireNonNull(constructQuery, "Sync query cannot be null"));
+            if (!query.isConstructType()) {
+                throw new IllegalArgumentException("A mirror must be synced with a CONSTRUCT query");
+            }
+            this.syncQuery = query;
+            return this;
+        }
+
+        public Builder pageSize(int pageSize) {
+            if (pageSize < 1 && pageSize != ServiceOptions.UNLIMITED) {
+                throw new IllegalArgumentException("Page size must be positive or UNLIMITED");
+            }
+            this.pageSize = pageSize;
+            return this;
+        }
+
+        public Builder syncInterval(Duration syncInterval) {
+            if (syncInterval != null && (syncInterval.isNegative() || syncInterval.isZero())) {
+                throw new IllegalArgumentException("Sync interval must be positive");
+            }
+            this.syncInterval = syncInterval;
+            return this;
+        }
+
+        public Builder maxStaleness(Duration maxStaleness) {
+            if (maxStaleness != null && maxStaleness.isNegative()) {
+                throw new IllegalArgumentException("Max staleness cannot be negative");
+            }
+            this.maxStaleness = maxStaleness;
+            return this;
+        }
+
+        public MirrorOptions build() {
+            if (pageSize != ServiceOptions.UNLIMITED && !syncQuery.hasOrderBy()) {
+                throw new IllegalArgumentException("A paged sync query must have an ORDER BY, or set the page size to UNLIMITED");
+            }
+            return new MirrorOptions(this);
+        }
+    }
+}
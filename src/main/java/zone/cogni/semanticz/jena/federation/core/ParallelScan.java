@@ -0,0 +1,559 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package zone.cogni.semanticz.jena.federation.core;
+
+import org.apache.jena.atlas.io.IndentedWriter;
+import org.apache.jena.atlas.lib.tuple.Tuple;
+import org.apache.jena.atlas.lib.tuple.TupleFactory;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.ARQ;
+import org.apache.jena.query.QueryCancelledException;
+import org.apache.jena.query.QueryExecException;
+import org.apache.jena.query.TxnType;
+import org.apache.jena.sparql.algebra.Op;
+import org.apache.jena.sparql.algebra.Table;
+import org.apache.jena.sparql.algebra.TableFactory;
+import org.apache.jena.sparql.algebra.op.Op1;
+import org.apache.jena.sparql.algebra.op.OpBGP;
+import org.apache.jena.sparql.algebra.op.OpConditional;
+import org.apache.jena.sparql.algebra.op.OpDistinct;
+import org.apache.jena.sparql.algebra.op.OpExtend;
+import org.apache.jena.sparql.algebra.op.OpFilter;
+import org.apache.jena.sparql.algebra.op.OpJoin;
+import org.apache.jena.sparql.algebra.op.OpLeftJoin;
+import org.apache.jena.sparql.algebra.op.OpMinus;
+import org.apache.jena.sparql.algebra.op.OpProject;
+import org.apache.jena.sparql.algebra.op.OpReduced;
+import org.apache.jena.sparql.algebra.op.OpSequence;
+import org.apache.jena.sparql.algebra.op.OpTable;
+import org.apache.jena.sparql.core.BasicPattern;
+import org.apache.jena.sparql.core.DatasetGraph;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.ExecutionContext;
+import org.apache.jena.sparql.engine.QueryEngineRegistry;
+import org.apache.jena.sparql.engine.QueryIterator;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.engine.binding.BindingRoot;
+import org.apache.jena.sparql.engine.iterator.QueryIter;
+import org.apache.jena.sparql.engine.optimizer.reorder.ReorderTransformation;
+import org.apache.jena.sparql.serializer.SerializationContext;
+import org.apache.jena.sparql.service.ServiceExecutorRegistry;
+import org.apache.jena.sparql.util.Context;
+import org.apache.jena.tdb2.store.DatasetGraphTDB;
+import org.apache.jena.tdb2.store.NodeId;
+import org.apache.jena.tdb2.store.nodetable.NodeTable;
+import org.apache.jena.tdb2.store.tupletable.TupleIndex;
+import org.apache.jena.tdb2.sys.TDBInternal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evaluates a SERVICE sub-query against a TDB2 Dataset service in partitions on parallel threads.
+ * <p>
+ * The leading triple pattern is the first one TDB2's reorder transformation picks for the first
+ * basic graph pattern every solution must match. One thread walks the TDB2 index that serves that
+ * pattern, where the matches are ordered by the first variable after its constants. It reads each
+ * distinct value of that variable once, decoding only the NodeIds where the value changes, and
+ * hands the values out in batches. Each partition thread evaluates the whole sub-query joined with
+ * {@code VALUES} for a batch, so TDB2 starts from index lookups for those values and orders the
+ * rest of the pattern itself. Every solution binds the variable to exactly one value, which is in
+ * exactly one batch, so the partitions together yield every solution once. Their solutions are
+ * streamed to the caller as they come, in no particular order.
+ * <p>
+ * Every thread reads in a TDB2 read transaction of its own, and none of them starts reading until
+ * all transactions are known to see the same storage and data version. A write committed while
+ * the transactions begin makes them differ; the scan is then abandoned and started again, up to
+ * {@value #MAX_ATTEMPTS} times before the caller falls back to a sequential evaluation.
+ * <p>
+ * Sub-queries that order or slice their solutions, or whose leading pattern lies in a named graph,
+ * are left alone, as are services with a union default graph, and a leading pattern matching
+ * fewer rows than the {@link ServiceOptions#getParallelScanThreshold() threshold} of the service.
+ * The partitions need one thread each besides the reading thread, so the pool must not be bounded
+ * below that.
+ */
+final class ParallelScan {
+
+    private static final Logger log = LoggerFactory.getLogger(ParallelScan.class);
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int BATCH_SIZE = 64;
+    private static final int OUTPUT_CAPACITY = 1_024;
+    private static final long POLL_MILLIS = 100;
+    private static final String SLOTS = "SPO";
+
+    private ParallelScan() {
+        // Utility class
+    }
+
+    /**
+     * Starts a partitioned evaluation of a sub-query.
+     *
+     * @param scopedRegistry The context-scoped executor chain of the outer query, or null, so SERVICE
+     *                       calls nested in the sub-query resolve through it.
+     * @return The streamed solutions of all partitions, or null when the sub-query is not scanned in
+     *         parallel.
+     */
+    static QueryIterator evaluate(LocalService service, Op subOp, ServiceExecutorRegistry scopedRegistry,
+                                  ExecutorService pool, ExecutionContext execCxt) {
+        int partitions = service.getOptions().getScanParallelism();
+        if (partitions < 2 || !service.isTdb2Dataset() || service.isUnionDefaultGraph()) {
+            return null;
+        }
+        Op body = subOp;
+        while (body instanceof OpProject || body instanceof OpDistinct || body instanceof OpReduced) {
+            body = ((Op1) body).getSubOp();
+        }
+        BasicPattern pattern = leadingPattern(body);
+        if (pattern == null) {
+            return null;
+        }
+        DatasetGraph dataset = service.getDataset().asDatasetGraph();
+        DatasetGraphTDB storage = TDBInternal.getDatasetGraphTDB(dataset);
+        ReorderTransformation reorder = storage.getReorderTransform();
+        Triple leading = (reorder == null ? pattern : reorder.reorder(pattern)).get(0);
+        IndexScan indexScan = IndexScan.choose(storage, leading);
+        if (indexScan == null) {
+            return null;
+        }
+        long threshold = service.getOptions().getParallelScanThreshold();
+        if (service.countMatches(leading, threshold) < threshold) {
+            return null;
+        }
+
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            PartitionedScan scan = new PartitionedScan(dataset, storage, indexScan, subOp, partitions, scopedRegistry, execCxt);
+            if (scan.start(pool)) {
+                return scan;
+            }
+            log.debug("Partitions of a parallel scan of {} began on different data versions, attempt {}",
+                      service.getServiceUri(), attempt);
+        }
+        return null;
+    }
+
+    /**
+     * Finds the first basic graph pattern every solution of the sub-query must match, following the
+     * same required parts as the {@link ExistenceFilter}. Nested projections are not entered, as a
+     * variable they hide may be bound differently, or not at all, outside of them, and neither are
+     * named graphs, as the scan walks the default graph.
+     */
+    private static BasicPattern leadingPattern(Op op) {
+        if (op instanceof OpBGP bgp) {
+            return bgp.getPattern().isEmpty() ? null : bgp.getPattern();
+        } else if (op instanceof OpJoin join) {
+            BasicPattern left = leadingPattern(join.getLeft());
+            return left != null ? left : leadingPattern(join.getRight());
+        } else if (op instanceof OpSequence sequence) {
+            for (Op element : sequence.getElements()) {
+                BasicPattern pattern = leadingPattern(element);
+                if (pattern != null) {
+                    return pattern;
+                }
+            }
+            return null;
+        } else if (op instanceof OpLeftJoin leftJoin) {
+            return leadingPattern(leftJoin.getLeft());
+        } else if (op instanceof OpConditional conditional) {
+            return leadingPattern(conditional.getLeft());
+        } else if (op instanceof OpMinus minus) {
+            return leadingPattern(minus.getLeft());
+        } else if (op instanceof OpFilter filter) {
+            return leadingPattern(filter.getSubOp());
+        } else if (op instanceof OpExtend extend) {
+            return leadingPattern(extend.getSubOp());
+        }
+        // Ordering, slicing and grouping do not survive a split into partitions.
+        return null;
+    }
+
+    /**
+     * Joins a sub-query with the values of a batch, below the root projection.
+     */
+    private static Op withValues(Op op, Var var, List<Node> values) {
+        if (op instanceof OpProject || op instanceof OpDistinct || op instanceof OpReduced) {
+            Op1 op1 = (Op1) op;
+            return op1.copy(withValues(op1.getSubOp(), var, values));
+        }
+        Table table = TableFactory.create(List.of(var));
+        for (Node value : values) {
+            table.addBinding(BindingFactory.binding(var, value));
+        }
+        return OpJoin.create(OpTable.create(table), op);
+    }
+
+    /**
+     * The TDB2 index serving the leading pattern, and the slot of the variable its matches are
+     * ordered by.
+     */
+    private record IndexScan(TupleIndex index, NodeTable nodeTable, Triple leading, int slot, Var var) {
+
+        /**
+         * Picks the index whose key starts with the most constants of the pattern, as TDB2 does.
+         *
+         * @return The scan, or null when no index is ordered by a variable of the pattern.
+         */
+        static IndexScan choose(DatasetGraphTDB storage, Triple leading) {
+            Node[] terms = {leading.getSubject(), leading.getPredicate(), leading.getObject()};
+            TupleIndex best = null;
+            int bestPrefix = -1;
+            for (TupleIndex index : storage.getTripleTable().getNodeTupleTable().getTupleTable().getIndexes()) {
+                String order = index.getName().toUpperCase(Locale.ROOT);
+                if (order.length() != 3) {
+                    continue;
+                }
+                int prefix = 0;
+                while (prefix < 3 && SLOTS.indexOf(order.charAt(prefix)) >= 0
+                       && terms[SLOTS.indexOf(order.charAt(prefix))].isConcrete()) {
+                    prefix++;
+                }
+                if (prefix < 3 && SLOTS.indexOf(order.charAt(prefix)) >= 0 && prefix > bestPrefix) {
+                    best = index;
+                    bestPrefix = prefix;
+                }
+            }
+            if (best == null) {
+                return null;
+            }
+            int slot = SLOTS.indexOf(best.getName().toUpperCase(Locale.ROOT).charAt(bestPrefix));
+            if (!Var.isVar(terms[slot])) {
+                return null;
+            }
+            return new IndexScan(best, storage.getTripleTable().getNodeTupleTable().getNodeTable(), leading, slot,
+                                 Var.alloc(terms[slot]));
+        }
+
+        /**
+         * Gets the NodeId pattern of the leading triple, or null when one of its constants is not
+         * in the node table, so nothing matches.
+         */
+        Tuple<NodeId> pattern() {
+            Node[] terms = {leading.getSubject(), leading.getPredicate(), leading.getObject()};
+            NodeId[] ids = new NodeId[3];
+            for (int i = 0; i < 3; i++) {
+                if (terms[i].isConcrete()) {
+                    ids[i] = nodeTable.getNodeIdForNode(terms[i]);
+                    if (NodeId.isDoesNotExist(ids[i])) {
+                        return null;
+                    }
+                } else {
+                    ids[i] = NodeId.NodeIdAny;
+                }
+            }
+            return TupleFactory.create3(ids[0], ids[1], ids[2]);
+        }
+    }
+
+    /**
+     * The storage and data version a read transaction sees.
+     */
+    private record Snapshot(DatasetGraphTDB storage, long version) {
+
+        static Snapshot current(DatasetGraph dataset) {
+            DatasetGraphTDB storage = TDBInternal.getDatasetGraphTDB(dataset);
+            return new Snapshot(storage, storage.getTxnSystem().getThreadTransaction().getDataVersion());
+        }
+    }
+
+    /**
+     * A failure of one of the scanning threads, handed to the caller with the solutions.
+     */
+    private record Failure(Throwable error) {
+    }
+
+    /**
+     * The threads of one partitioned evaluation, and the iterator over their solutions.
+     */
+    private static final class PartitionedScan extends QueryIter {
+
+        // Handed to each partition once the values are exhausted.
+        private static final List<Node> NO_MORE_VALUES = List.of();
+        // Put by each partition when it is done.
+        private static final Object PARTITION_DONE = new Object();
+
+        private final DatasetGraph dataset;
+        private final DatasetGraphTDB storage;
+        private final IndexScan indexScan;
+        private final Op subOp;
+        private final int partitions;
+        private final ServiceExecutorRegistry scopedRegistry;
+        private final BlockingQueue<List<Node>> batches;
+        private final BlockingQueue<Object> solutions = new ArrayBlockingQueue<>(OUTPUT_CAPACITY);
+        private final List<CompletableFuture<Snapshot>> snapshots = new ArrayList<>();
+        private final CompletableFuture<Boolean> proceed = new CompletableFuture<>();
+        private volatile boolean stopped;
+
+        private int runningPartitions;
+        private Binding next;
+
+        PartitionedScan(DatasetGraph dataset, DatasetGraphTDB storage, IndexScan indexScan, Op subOp, int partitions,
+                        ServiceExecutorRegistry scopedRegistry, ExecutionContext execCxt) {
+            super(execCxt);
+            this.dataset = dataset;
+            this.storage = storage;
+            this.indexScan = indexScan;
+            this.subOp = subOp;
+            this.partitions = partitions;
+            this.scopedRegistry = scopedRegistry;
+            this.batches = new ArrayBlockingQueue<>(2 * partitions);
+            this.runningPartitions = partitions;
+        }
+
+        /**
+         * Starts the threads and lets them read once their transactions all see the same snapshot.
+         *
+         * @return false if they do not, in which case the threads have been told to stop.
+         */
+        boolean start(ExecutorService pool) {
+            for (int i = 0; i <= partitions; i++) {
+                snapshots.add(new CompletableFuture<>());
+            }
+            try {
+                pool.execute(this::readValues);
+                for (int partition = 0; partition < partitions; partition++) {
+                    int index = partition;
+                    pool.execute(() -> evaluatePartition(index));
+                }
+                Snapshot first = snapshots.get(0).join();
+                boolean same = first.storage() == storage;
+                for (CompletableFuture<Snapshot> snapshot : snapshots) {
+                    same &= snapshot.join().equals(first);
+                }
+                if (!same) {
+                    stop();
+                    return false;
+                }
+                proceed.complete(true);
+                return true;
+            } catch (RuntimeException e) {
+                stop();
+                throw e instanceof CompletionException && e.getCause() instanceof RuntimeException cause ? cause : e;
+            }
+        }
+
+        /**
+         * Walks the index and hands the distinct values of the partition variable out in batches.
+         */
+        private void readValues() {
+            CompletableFuture<Snapshot> snapshot = snapshots.get(partitions);
+            try {
+                dataset.begin(TxnType.READ);
+            } catch (Throwable e) {
+                snapshot.completeExceptionally(e);
+                return;
+            }
+            try {
+                snapshot.complete(Snapshot.current(dataset));
+                if (!proceed.join()) {
+                    return;
+                }
+                Tuple<NodeId> pattern = indexScan.pattern();
+                if (pattern == null) {
+                    return;
+                }
+                Iterator<Tuple<NodeId>> matches = indexScan.index().find(pattern);
+                List<Node> batch = new ArrayList<>(BATCH_SIZE);
+                NodeId last = null;
+                while (!stopped && matches.hasNext()) {
+                    NodeId id = matches.next().get(indexScan.slot());
+                    if (id.equals(last)) {
+                        continue;
+                    }
+                    last = id;
+                    batch.add(indexScan.nodeTable().getNodeForNodeId(id));
+                    if (batch.size() == BATCH_SIZE) {
+                        if (!offer(batches, batch)) {
+                            return;
+                        }
+                        batch = new ArrayList<>(BATCH_SIZE);
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    offer(batches, batch);
+                }
+            } catch (Throwable e) {
+                offer(solutions, new Failure(e));
+            } finally {
+                try {
+                    for (int i = 0; i < partitions; i++) {
+                        if (!offer(batches, NO_MORE_VALUES)) {
+                            break;
+                        }
+                    }
+                } finally {
+                    dataset.end();
+                }
+            }
+        }
+
+        /**
+         * Evaluates the sub-query for the batches this partition takes, until the values run out.
+         */
+        private void evaluatePartition(int partition) {
+            CompletableFuture<Snapshot> snapshot = snapshots.get(partition);
+            try {
+                dataset.begin(TxnType.READ);
+            } catch (Throwable e) {
+                snapshot.completeExceptionally(e);
+                return;
+            }
+            try {
+                snapshot.complete(Snapshot.current(dataset));
+                if (!proceed.join()) {
+                    return;
+                }
+                List<Node> batch;
+                while ((batch = poll(batches)) != null && batch != NO_MORE_VALUES) {
+                    Op op = withValues(subOp, indexScan.var(), batch);
+                    Context context = Context.setupContextForDataset(ARQ.getContext(), dataset);
+                    if (scopedRegistry != null) {
+                        ServiceExecutorRegistry.set(context, scopedRegistry);
+                    }
+                    QueryIterator rows = QueryEngineRegistry.findFactory(op, dataset, context)
+                            .create(op, dataset, BindingRoot.create(), context).iterator();
+                    try {
+                        while (rows.hasNext()) {
+                            if (!offer(solutions, rows.nextBinding())) {
+                                return;
+                            }
+                        }
+                    } finally {
+                        rows.close();
+                    }
+                }
+            } catch (Throwable e) {
+                offer(solutions, new Failure(e));
+            } finally {
+                try {
+                    offer(solutions, PARTITION_DONE);
+                } finally {
+                    dataset.end();
+                }
+            }
+        }
+
+        /**
+         * Puts an item on a queue, waiting for room until the scan is stopped.
+         *
+         * @return false if the scan was stopped first.
+         */
+        private <T> boolean offer(BlockingQueue<T> queue, T item) {
+            try {
+                while (!stopped) {
+                    if (queue.offer(item, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                        return true;
+                    }
+                }
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        /**
+         * Takes an item from a queue, waiting until one arrives or the scan is stopped.
+         *
+         * @return The item, or null if the scan was stopped first.
+         */
+        private <T> T poll(BlockingQueue<T> queue) {
+            try {
+                while (!stopped) {
+                    T item = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (item != null) {
+                        return item;
+                    }
+                }
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        @Override
+        protected boolean hasNextBinding() {
+            while (next == null) {
+                if (runningPartitions == 0) {
+                    return false;
+                }
+                Object item = poll(solutions);
+                if (item == null) {
+                    throw new QueryCancelledException();
+                } else if (item == PARTITION_DONE) {
+                    runningPartitions--;
+                } else if (item instanceof Failure failure) {
+                    stop();
+                    throw failure.error() instanceof RuntimeException e ? e : new QueryExecException(failure.error());
+                } else {
+                    next = (Binding) item;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        protected Binding moveToNextBinding() {
+            if (!hasNextBinding()) {
+                throw new NoSuchElementException();
+            }
+            Binding binding = next;
+            next = null;
+            return binding;
+        }
+
+        @Override
+        protected void closeIterator() {
+            stop();
+        }
+
+        @Override
+        protected void requestCancel() {
+            stop();
+        }
+
+        /**
+         * Tells the threads to stop at the next row or batch. They are not interrupted, as an
+         * interrupt during file I/O would close TDB2's file channels.
+         */
+        private void stop() {
+            stopped = true;
+            proceed.complete(false);
+        }
+
+        @Override
+        public void output(IndentedWriter out, SerializationContext sCxt) {
+            out.print("ParallelScan[" + partitions + " partitions on " + indexScan.var() + "]");
+        }
+    }
+}
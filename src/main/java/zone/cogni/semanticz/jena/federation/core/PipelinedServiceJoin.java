@@ -0,0 +1,228 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package zone.cogni.semanticz.jena.federation.core;
+
+import org.apache.jena.query.QueryCancelledException;
+import org.apache.jena.query.QueryExecException;
+import org.apache.jena.sparql.algebra.OpVars;
+import org.apache.jena.sparql.algebra.op.OpService;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.ExecutionContext;
+import org.apache.jena.sparql.engine.QueryIterator;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.iterator.QueryIter1;
+import org.apache.jena.sparql.engine.iterator.QueryIterCommonParent;
+import org.apache.jena.sparql.engine.iterator.QueryIterNullIterator;
+import org.apache.jena.sparql.engine.main.QC;
+
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Joins the outer bindings of a query with a local SERVICE clause, running the per-binding
+ * calls ahead of consumption.
+ * <p>
+ * ARQ runs one call per outer binding and only starts the next once the previous one is drained.
+ * This iterator keeps up to {@code window} calls for the next outer bindings running on a shared
+ * executor while the query consumes the current one, which hides per-call latency such as TDB2
+ * reads on a cold page cache. Results are handed out in the order of the outer bindings. Closing
+ * or cancelling the iterator skips calls that have not started and discards the results of those
+ * that have; a query thread waiting for a call is woken up at once.
+ * <p>
+ * Calls on the executor never evaluate in place on shared TDB2 storage, since the read
+ * transaction of the outer query belongs to its own thread. SERVICE clauses nested in those calls
+ * run one by one on the executor thread, see {@link LocalSparqlServiceRegistry#isOnPoolThread()}.
+ * Binding-independent calls are served from the {@link ServiceMemo} as in {@link LocalServiceJoin}.
+ */
+class PipelinedServiceJoin extends QueryIter1 {
+
+    private final OpService opService;
+    private final LocalSparqlServiceRegistry registry;
+    private final ServiceMemo memo;
+    private final int window;
+    private final ExecutorService executor;
+    private final Set<Var> mentionedVars;
+    // Concurrent, since a cancel from another thread discards the calls the query thread is adding.
+    private final Deque<PendingCall> pending = new ConcurrentLinkedDeque<>();
+    private final AtomicBoolean cancelled = new AtomicBoolean();
+    // Completed on cancel, to wake up the query thread waiting for a call.
+    private final CompletableFuture<Void> cancelSignal = new CompletableFuture<>();
+
+    private QueryIterator current;
+
+    /**
+     * @param memo   The memo of the outer query, or null to disable memoization.
+     * @param window The maximum number of calls running ahead.
+     */
+    PipelinedServiceJoin(QueryIterator input, OpService opService, LocalSparqlServiceRegistry registry,
+                         ServiceMemo memo, int window, ExecutorService executor, ExecutionContext execCxt) {
+        super(input, execCxt);
+        this.opService = opService;
+        this.registry = registry;
+        this.memo = memo;
+        this.window = window;
+        this.executor = executor;
+        this.mentionedVars = new HashSet<>(OpVars.mentionedVars(opService.getSubOp()));
+    }
+
+    @Override
+    protected boolean hasNextBinding() {
+        while (true) {
+            if (current != null) {
+                if (current.hasNext()) {
+                    return true;
+                }
+                current.close();
+                current = null;
+            }
+            fillWindow();
+            PendingCall next = pending.poll();
+            if (next == null) {
+                return false;
+            }
+            current = new QueryIterCommonParent(next.await(), next.outer, getExecContext());
+        }
+    }
+
+    @Override
+    protected Binding moveToNextBinding() {
+        if (!hasNextBinding()) {
+            throw new NoSuchElementException();
+        }
+        return current.nextBinding();
+    }
+
+    private void fillWindow() {
+        QueryIterator input = getInput();
+        while (pending.size() < window && input.hasNext()) {
+            Binding outer = input.nextBinding();
+            pending.add(new PendingCall(outer, submit(outer)));
+        }
+    }
+
+    private CompletableFuture<QueryIterator> submit(Binding outer) {
+        if (memo != null && isBindingIndependent(outer)) {
+            BindingBuffer rows = memo.computeIfAbsent(
+                    opService, op -> LocalServiceJoin.evaluateOnce(registry, op, getExecContext()));
+            return CompletableFuture.completedFuture(rows.toQueryIterator(getExecContext(), false));
+        }
+        OpService substituted = (OpService) QC.substitute(opService, outer);
+        return CompletableFuture.supplyAsync(() -> {
+            if (cancelled.get()) {
+                return null;
+            }
+            return registry.createLocalExecution(substituted, opService, outer, getExecContext(), false);
+        }, executor);
+    }
+
+    private boolean isBindingIndependent(Binding outer) {
+        for (Var var : mentionedVars) {
+            if (outer.contains(var)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    protected void closeSubIterator() {
+        discardPending();
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+        if (memo != null) {
+            memo.release();
+        }
+    }
+
+    @Override
+    protected void requestSubCancel() {
+        discardPending();
+    }
+
+    private void discardPending() {
+        cancelled.set(true);
+        cancelSignal.complete(null);
+        PendingCall call;
+        while ((call = pending.poll()) != null) {
+            call.discard();
+        }
+    }
+
+    /**
+     * A SERVICE call for one outer binding, running or done.
+     */
+    private final class PendingCall {
+
+        private final Binding outer;
+        private final CompletableFuture<QueryIterator> results;
+
+        PendingCall(Binding outer, CompletableFuture<QueryIterator> results) {
+            this.outer = outer;
+            this.results = results;
+        }
+
+        /**
+         * Waits for the results of the call.
+         *
+         * @throws QueryCancelledException if the iterator is cancelled or the thread interrupted meanwhile.
+         */
+        QueryIterator await() {
+            try {
+                CompletableFuture.anyOf(results, cancelSignal).get();
+                if (!results.isDone()) {
+                    discard();
+                    throw new QueryCancelledException();
+                }
+                QueryIterator rows = results.get();
+                return rows != null ? rows : QueryIterNullIterator.create(getExecContext());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                discard();
+                throw new QueryCancelledException();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException runtimeException) {
+                    throw runtimeException;
+                }
+                throw new QueryExecException(e.getCause());
+            }
+        }
+
+        /**
+         * Drops the call. A call not started yet sees the cancel flag and returns nothing; a
+         * running one has its results closed when done.
+         */
+        void discard() {
+            results.whenComplete((rows, error) -> {
+                if (rows != null) {
+                    rows.close();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package zone.cogni.semanticz.jena.federation.core;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QueryExecution;
+import org.apache.jena.sparql.exec.http.QueryExecutionHTTP;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * A local copy of a remote SPARQL endpoint, kept in a transactional Dataset.
+ * <p>
+ * A sync streams the content of the endpoint into one write transaction that first clears the
+ * mirror, so SERVICE calls never see a half-synced mirror and the content is never held on the
+ * heap as a whole. A failed sync aborts the transaction and the mirror keeps its previous content.
+ * Closing the mirror aborts a running sync.
+ */
+final class RemoteMirror {
+
+    private static final Logger log = LoggerFactory.getLogger(RemoteMirror.class);
+
+    private final String endpointUri;
+    private final Dataset dataset;
+    private final MirrorOptions options;
+    private final AtomicLong syncs = new AtomicLong();
+
+    private final Object syncLock = new Object();
+
+    private volatile Consumer<Graph> beforeCommit = graph -> { };
+    private volatile long lastSyncNanos;
+    private volatile boolean synced;
+    private volatile boolean closed;
+    private volatile QueryExecution fetching;
+    private ScheduledFuture<?> schedule;
+
+    RemoteMirror(String endpointUri, Dataset dataset, MirrorOptions options) {
+        if (!dataset.supportsTransactions()) {
+            throw new IllegalArgumentException("A mirror needs a transactional Dataset: " + endpointUri);
+        }
+        this.endpointUri = endpointUri;
+        this.dataset = dataset;
+        this.options = options;
+    }
+
+    /**
+     * Sets a callback receiving the mirror graph at the end of every sync, inside its write
+     * transaction, so it sees the synced content before SERVICE calls do.
+     */
+    void onBeforeCommit(Consumer<Graph> callback) {
+        this.beforeCommit = callback;
+    }
+
+    Dataset getDataset() {
+        return dataset;
+    }
+
+    MirrorOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * Checks whether SERVICE calls can be answered from the mirror: it has been synced,
+     * and not longer ago than the staleness bound.
+     */
+    boolean isFresh() {
+        if (!synced) {
+            return false;
+        }
+        return options.getMaxStaleness() == null
+               || System.nanoTime() - lastSyncNanos <= options.getMaxStaleness().toNanos();
+    }
+
+    long getSyncCount() {
+        return syncs.get();
+    }
+
+    /**
+     * Fetches the content of the endpoint and replaces the mirror with it. Does nothing once the
+     * mirror is closed.
+     *
+     * @throws IllegalStateException if the mirror is closed during the sync.
+     */
+    void sync() {
+        synchronized (syncLock) {
+            if (closed) {
+                log.debug("Mirror of {} is closed, not syncing", endpointUri);
+                return;
+            }
+            long start = System.nanoTime();
+            long fetched = dataset.calculateWrite(() -> {
+                Graph mirror = dataset.getDefaultModel().getGraph();
+                mirror.clear();
+                long count = 0;
+                Query syncQuery = options.getSyncQuery();
+                if (options.getPageSize() == ServiceOptions.UNLIMITED) {
+                    count = fetchInto(syncQuery, mirror);
+                } else {
+                    for (long offset = 0; ; offset += options.getPageSize()) {
+                        Query page = syncQuery.cloneQuery();
+                        page.setLimit(options.getPageSize());
+                        page.setOffset(offset);
+                        long triples = fetchInto(page, mirror);
+                        if (triples == 0) {
+                            break;
+                        }
+                        count += triples;
+                    }
+                }
+                beforeCommit.accept(mirror);
+                return count;
+            });
+            lastSyncNanos = System.nanoTime();
+            synced = true;
+            syncs.incrementAndGet();
+            log.info("Synced mirror of {} with {} fetched triples in {} ms", endpointUri, fetched,
+                     TimeUnit.NANOSECONDS.toMillis(lastSyncNanos - start));
+        }
+    }
+
+    /**
+     * Adds the result of a CONSTRUCT query to the mirror graph as it arrives.
+     *
+     * @return The number of triples fetched.
+     */
+    private long fetchInto(Query query, Graph mirror) {
+        try (QueryExecution qExec = QueryExecutionHTTP.service(endpointUri).query(query).build()) {
+            fetching = qExec;
+            // Checked after publishing the execution, so a close in between is not missed.
+            checkNotClosed();
+            long count = 0;
+            Iterator<Triple> triples = qExec.execConstructTriples();
+            while (triples.hasNext()) {
+                mirror.add(triples.next());
+                count++;
+            }
+            checkNotClosed();
+            return count;
+        } catch (RuntimeException e) {
+            checkNotClosed();
+            throw e;
+        } finally {
+            fetching = null;
+        }
+    }
+
+    private void checkNotClosed() {
+        if (closed) {
+            throw new IllegalStateException("Mirror of " + endpointUri + " was closed during a sync");
+        }
+    }
+
+    /**
+     * Starts the periodic sync, the first one right away, if the options ask for one.
+     */
+    synchronized void schedule(ScheduledExecutorService scheduler) {
+        if (options.getSyncInterval() != null && schedule == null) {
+            long interval = options.getSyncInterval().toMillis();
+            schedule = scheduler.scheduleWithFixedDelay(this::syncQuietly, 0, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void syncQuietly() {
+        try {
+            sync();
+        } catch (RuntimeException e) {
+            if (closed) {
+                log.debug("Sync of mirror of {} stopped, the mirror is closed", endpointUri);
+            } else {
+                log.warn("Failed to sync mirror of {}, it keeps its previous content: {}", endpointUri, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Stops the periodic sync and aborts a running one, without waiting for it to roll back.
+     */
+    synchronized void close() {
+        closed = true;
+        if (schedule != null) {
+            // Not interrupted: an interrupt during file I/O would close TDB2's file channels.
+            schedule.cancel(false);
+            schedule = null;
+        }
+        QueryExecution running = fetching;
+        if (running != null) {
+            running.abort();
+        }
+    }
+}
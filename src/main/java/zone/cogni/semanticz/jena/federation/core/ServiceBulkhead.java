@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package zone.cogni.semanticz.jena.federation.core;
+
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrency limit of one local service.
+ * <p>
+ * At most {@code maxConcurrency} SERVICE calls run against the service at once. Further
+ * calls wait in a bounded queue for at most {@code maxQueueWait}; a call that finds the
+ * queue full, or times out waiting, is rejected immediately. With fair queueing, waiting
+ * calls are admitted in arrival order.
+ */
+class ServiceBulkhead {
+
+    private final int maxConcurrency;
+    private final int maxQueueDepth;
+    private final long maxQueueWaitNanos;
+    private final boolean fair;
+    private final Semaphore permits;
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    ServiceBulkhead(int maxConcurrency, int maxQueueDepth, Duration maxQueueWait, boolean fair) {
+        this.maxConcurrency = maxConcurrency;
+        this.maxQueueDepth = maxQueueDepth;
+        this.maxQueueWaitNanos = maxQueueWait.toNanos();
+        this.fair = fair;
+        this.permits = new Semaphore(maxConcurrency, fair);
+    }
+
+    /**
+     * Creates the bulkhead configured by the options, or null when concurrency is unlimited.
+     */
+    static ServiceBulkhead fromOptions(ServiceOptions options) {
+        if (options.getMaxConcurrency() == ServiceOptions.UNLIMITED) {
+            return null;
+        }
+        return new ServiceBulkhead(options.getMaxConcurrency(), options.getMaxQueueDepth(),
+                                   options.getMaxQueueWait(), options.isFairQueueing());
+    }
+
+    /**
+     * Tries to admit a call. Every successful call must be followed by {@link #exit()}.
+     *
+     * @return true if the call may run, false if it is rejected.
+     */
+    boolean tryEnter() {
+        if (tryAcquireImmediately()) {
+            admitted.increment();
+            return true;
+        }
+
+        int depth = queueDepth.incrementAndGet();
+        try {
+            if (maxQueueDepth != ServiceOptions.UNLIMITED && depth > maxQueueDepth) {
+                rejected.increment();
+                return false;
+            }
+
+            long start = System.nanoTime();
+            boolean acquired = permits.tryAcquire(maxQueueWaitNanos, TimeUnit.NANOSECONDS);
+            recordWait(System.nanoTime() - start);
+            if (acquired) {
+                admitted.increment();
+            } else {
+                rejected.increment();
+            }
+            return acquired;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            rejected.increment();
+            return false;
+        } finally {
+            queueDepth.decrementAndGet();
+        }
+    }
+
+    private boolean tryAcquireImmediately() {
+        if (!fair) {
+            return permits.tryAcquire();
+        }
+        // The untimed tryAcquire() barges past waiting calls even on a fair semaphore.
+        try {
+            return permits.tryAcquire(0, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    void exit() {
+        permits.release();
+    }
+
+    private void recordWait(long nanos) {
+        totalWaitNanos.add(nanos);
+        maxWaitNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    BulkheadMetrics metrics() {
+        return new BulkheadMetrics(maxConcurrency,
+                                   maxConcurrency - permits.availablePermits(),
+                                   queueDepth.get(),
+                                   admitted.sum(),
+                                   rejected.sum(),
+                                   totalWaitNanos.sum(),
+                                   maxWaitNanos.get());
+    }
+}
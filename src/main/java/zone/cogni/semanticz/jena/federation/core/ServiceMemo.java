@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package zone.cogni.semanticz.jena.federation.core;
+
+import org.apache.jena.sparql.algebra.op.OpService;
+import org.apache.jena.sparql.util.Context;
+import org.apache.jena.sparql.util.Symbol;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Query-scoped memo of binding-independent SERVICE results.
+ * <p>
+ * The memo lives in the ARQ context of the outer query's execution context, so all SERVICE
+ * clauses of one query share it, and nothing outlives the query: every SERVICE iterator
+ * using the memo acquires it and releases it when it closes, and the stored results are
+ * dropped when the last one does. Because the results never leave the query that computed
+ * them, they cannot go stale. Results above the spill threshold are kept on disk.
+ */
+class ServiceMemo {
+
+    private static final Symbol MEMO = Symbol.create(LocalFederationSymbols.SYMBOL_NAMESPACE + "serviceMemo");
+
+    private final Map<OpService, BindingBuffer> results = new ConcurrentHashMap<>();
+    private final AtomicInteger users = new AtomicInteger();
+
+    /**
+     * Gets the memo of the query that owns the given context, creating it if needed, and
+     * registers one more user of it.
+     */
+    static ServiceMemo acquire(Context context) {
+        synchronized (context) {
+            ServiceMemo memo = context.get(MEMO);
+            if (memo == null) {
+                memo = new ServiceMemo();
+                context.set(MEMO, memo);
+            }
+            memo.users.incrementAndGet();
+            return memo;
+        }
+    }
+
+    /**
+     * Gets the memoized rows of a SERVICE operation, evaluating it on first use.
+     */
+    BindingBuffer computeIfAbsent(OpService opService, Function<OpService, BindingBuffer> evaluation) {
+        return results.computeIfAbsent(opService, evaluation);
+    }
+
+    /**
+     * Releases one user of the memo; the stored results are dropped when the last user is gone.
+     */
+    void release() {
+        if (users.decrementAndGet() <= 0) {
+            results.values().forEach(BindingBuffer::close);
+            results.clear();
+        }
+    }
+
+    int size() {
+        return results.size();
+    }
+}
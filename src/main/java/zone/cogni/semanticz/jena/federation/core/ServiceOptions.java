@@ -0,0 +1,352 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package zone.cogni.semanticz.jena.federation.core;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Per-service settings supplied when registering a local data source.
+ * <p>
+ * Instances are immutable; create them with {@link #builder()}:
+ * <pre>
+ * ServiceOptions options = ServiceOptions.builder()
+ *         .spillThreshold(100_000)
+ *         .maxConcurrency(4)
+ *         .maxQueueDepth(32)
+ *         .build();
+ * registry.registerDataset("urn:jena:service:archive", dataset, options);
+ * </pre>
+ */
+public final class ServiceOptions {
+
+    /**
+     * Value of a numeric option that is not set.
+     */
+    public static final int UNLIMITED = -1;
+
+    private static final Duration DEFAULT_MAX_QUEUE_WAIT = Duration.ofSeconds(30);
+
+    /**
+     * Default number of rows the leading triple pattern must match before a sub-query is scanned in parallel.
+     */
+    public static final long DEFAULT_PARALLEL_SCAN_THRESHOLD = 10_000;
+
+    private static final ServiceOptions DEFAULTS = builder().build();
+
+    private final long spillThreshold;
+    private final int maxConcurrency;
+    private final int maxQueueDepth;
+    private final Duration maxQueueWait;
+    private final boolean fairQueueing;
+    private final double existenceFilterFalsePositiveRate;
+    private final Set<String> closurePredicates;
+    private final int scanParallelism;
+    private final long parallelScanThreshold;
+
+    private ServiceOptions(Builder builder) {
+        this.spillThreshold = builder.spillThreshold;
+        this.maxConcurrency = builder.maxConcurrency;
+        this.maxQueueDepth = builder.maxQueueDepth;
+        this.maxQueueWait = builder.maxQueueWait;
+        this.fairQueueing = builder.fairQueueing;
+        this.existenceFilterFalsePositiveRate = builder.existenceFilterFalsePositiveRate;
+        this.closurePredicates = builder.closurePredicates;
+        this.scanParallelism = builder.scanParallelism;
+        this.parallelScanThreshold = builder.parallelScanThreshold;
+    }
+
+    /**
+     * Gets the options used when none are given at registration.
+     */
+    public static ServiceOptions defaults() {
+        return DEFAULTS;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Gets the number of result rows of one SERVICE call kept on the heap before the
+     * remaining rows are spilled to a temporary file, or {@link #UNLIMITED}. The threshold
+     * counts rows, not bytes: size it for the width of the service's rows.
+     */
+    public long getSpillThreshold() {
+        return spillThreshold;
+    }
+
+    /**
+     * Gets the maximum number of SERVICE calls running against the service at once, or
+     * {@link #UNLIMITED}.
+     */
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * Gets the maximum number of SERVICE calls waiting for admission when the service is
+     * saturated, or {@link #UNLIMITED}. Calls arriving at a full queue are rejected.
+     */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    /**
+     * Gets how long a SERVICE call waits for admission before it is rejected.
+     */
+    public Duration getMaxQueueWait() {
+        return maxQueueWait;
+    }
+
+    /**
+     * Checks whether waiting SERVICE calls are admitted in arrival order.
+     */
+    public boolean isFairQueueing() {
+        return fairQueueing;
+    }
+
+    /**
+     * Checks whether the service keeps an existence filter over the IRIs it contains, so SERVICE
+     * calls binding an IRI the service cannot contain are skipped.
+     */
+    public boolean hasExistenceFilter() {
+        return existenceFilterFalsePositiveRate > 0;
+    }
+
+    /**
+     * Gets the false positive rate the existence filter is sized for, or 0 when the service has none.
+     */
+    public double getExistenceFilterFalsePositiveRate() {
+        return existenceFilterFalsePositiveRate;
+    }
+
+    /**
+     * Gets the IRIs of the predicates whose transitive closure is indexed, so paths such as
+     * {@code skos:broader*} over them are answered by lookup. Empty when there are none.
+     */
+    public Set<String> getClosurePredicates() {
+        return closurePredicates;
+    }
+
+    /**
+     * Gets the number of partitions a single SERVICE sub-query is scanned in, 1 when it is not scanned in parallel.
+     */
+    public int getScanParallelism() {
+        return scanParallelism;
+    }
+
+    /**
+     * Gets the number of rows the leading triple pattern of a sub-query must at least match for a
+     * {@link #getScanParallelism() parallel scan}.
+     */
+    public long getParallelScanThreshold() {
+        return parallelScanThreshold;
+    }
+
+    /**
+     * Creates a builder initialized with these options.
+     */
+    public Builder toBuilder() {
+        return new Builder()
+                .spillThreshold(spillThreshold)
+                .maxConcurrency(maxConcurrency)
+                .maxQueueDepth(maxQueueDepth)
+                .maxQueueWait(maxQueueWait)
+                .fairQueueing(fairQueueing)
+                .existenceFilter(existenceFilterFalsePositiveRate)
+                .closurePredicates(closurePredicates)
+                .scanParallelism(scanParallelism)
+                .parallelScanThreshold(parallelScanThreshold);
+    }
+
+    @Override
+    public String toString() {
+        return "ServiceOptions{spillThreshold=" + spillThreshold
+               + ", maxConcurrency=" + maxConcurrency
+               + ", maxQueueDepth=" + maxQueueDepth
+               + ", maxQueueWait=" + maxQueueWait
+               + ", fairQueueing=" + fairQueueing
+               + ", existenceFilterFalsePositiveRate=" + existenceFilterFalsePositiveRate
+               + ", closurePredicates=" + closurePredicates
+               + ", scanParallelism=" + scanParallelism
+               + ", parallelScanThreshold=" + parallelScanThreshold + '}';
+    }
+
+    /**
+     * Builder for {@link ServiceOptions}.
+     */
+    public static final class Builder {
+
+        private long spillThreshold = UNLIMITED;
+        private int maxConcurrency = UNLIMITED;
+        private int maxQueueDepth = UNLIMITED;
+        private Duration maxQueueWait = DEFAULT_MAX_QUEUE_WAIT;
+        private boolean fairQueueing;
+        private double existenceFilterFalsePositiveRate;
+        private Set<String> closurePredicates = Set.of();
+        private int scanParallelism = 1;
+        private long parallelScanThreshold = DEFAULT_PARALLEL_SCAN_THRESHOLD;
+
+        private Builder() {
+        }
+
+        /**
+         * Sets the number of rows of one SERVICE call kept in memory before spilling to disk.
+         *
+         * @param rows A positive row count, or {@link #UNLIMITED} to keep all rows in memory.
+         */
+        public Builder spillThreshold(long rows) {
+            if (rows <= 0 && rows != UNLIMITED) {
+                throw new IllegalArgumentException("Spill threshold must be positive or UNLIMITED");
+            }
+            this.spillThreshold = rows;
+            return this;
+        }
+
+        /**
+         * Limits the number of SERVICE calls running against the service at once.
+         *
+         * @param calls A positive number of calls, or {@link #UNLIMITED}.
+         */
+        public Builder maxConcurrency(int calls) {
+            if (calls <= 0 && calls != UNLIMITED) {
+                throw new IllegalArgumentException("Max concurrency must be positive or UNLIMITED");
+            }
+            this.maxConcurrency = calls;
+            return this;
+        }
+
+        /**
+         * Limits the number of SERVICE calls waiting for admission; only used with a
+         * {@link #maxConcurrency(int) concurrency limit}.
+         *
+         * @param calls Zero to reject as soon as the service is saturated, a positive queue
+         *              depth, or {@link #UNLIMITED}.
+         */
+        public Builder maxQueueDepth(int calls) {
+            if (calls < 0 && calls != UNLIMITED) {
+                throw new IllegalArgumentException("Max queue depth must not be negative, or UNLIMITED");
+            }
+            this.maxQueueDepth = calls;
+            return this;
+        }
+
+        /**
+         * Sets how long a SERVICE call waits for admission before it is rejected.
+         * Defaults to 30 seconds.
+         */
+        public Builder maxQueueWait(Duration maxQueueWait) {
+            Objects.requireNonNull(maxQueueWait, "Max queue wait cannot be null");
+            if (maxQueueWait.isNegative()) {
+                throw new IllegalArgumentException("Max queue wait must not be negative");
+            }
+            this.maxQueueWait = maxQueueWait;
+            return this;
+        }
+
+        /**
+         * Admits waiting SERVICE calls in arrival order, at some cost in throughput.
+         */
+        public Builder fairQueueing(boolean fairQueueing) {
+            this.fairQueueing = fairQueueing;
+            return this;
+        }
+
+        /**
+         * Keeps a Bloom filter over the subject and object IRIs of the service. SERVICE calls whose
+         * sub-query requires an IRI the filter rules out return no rows without being executed.
+         * Only IRIs are tracked: a call that binds a literal or a blank node is never skipped, nor
+         * is one that only binds a predicate.
+         * <p>
+         * Model services add new statements to the filter as they are added, and mirrors rebuild it
+         * with every sync. A Dataset service stored in TDB2 drops the filter after every commit and
+         * rebuilds it in the background; calls are not skipped until the rebuild is done. Other
+         * Dataset services build it once, on registration: after writing to them, rebuild it with
+         * {@link ServiceRegistry#rebuildExistenceFilter(String)}, or calls for the IRIs written
+         * since are skipped.
+         *
+         * @param falsePositiveRate The rate, between 0 and 1 exclusive, at which absent IRIs still pass
+         *                          the filter; 0 for no filter.
+         */
+        public Builder existenceFilter(double falsePositiveRate) {
+            if (falsePositiveRate < 0 || falsePositiveRate >= 1) {
+                throw new IllegalArgumentException("False positive rate must be at least 0 and below 1");
+            }
+            this.existenceFilterFalsePositiveRate = falsePositiveRate;
+            return this;
+        }
+
+        /**
+         * Declares predicates whose transitive closure is indexed. SERVICE calls against a Model
+         * service then answer {@code p*} and {@code p+} paths over them, and their inverses, by
+         * lookup instead of walking the graph. The index is rebuilt after the Model changes.
+         *
+         * @param predicateUris The IRIs of the predicates, e.g. of {@code skos:broader} or {@code rdfs:subClassOf}.
+         */
+        public Builder closurePredicates(String... predicateUris) {
+            return closurePredicates(List.of(predicateUris));
+        }
+
+        /**
+         * Declares predicates whose transitive closure is indexed, see {@link #closurePredicates(String...)}.
+         */
+        public Builder closurePredicates(Collection<String> predicateUris) {
+            Objects.requireNonNull(predicateUris, "Closure predicates cannot be null");
+            this.closurePredicates = Set.copyOf(predicateUris);
+            return this;
+        }
+
+        /**
+         * Scans large SERVICE sub-queries against a TDB2 Dataset service in parallel; other services
+         * ignore it. The values of a variable of the leading triple pattern are read once from its
+         * index and split into batches, which the partitions evaluate on their own threads, in read
+         * transactions on the same data version.
+         *
+         * @param partitions The number of partitions, 1 for no parallel scan.
+         */
+        public Builder scanParallelism(int partitions) {
+            if (partitions < 1) {
+                throw new IllegalArgumentException("Scan parallelism must be at least 1");
+            }
+            this.scanParallelism = partitions;
+            return this;
+        }
+
+        /**
+         * Sets how many rows the leading triple pattern must at least match for a parallel scan, so small
+         * sub-queries are not split. Defaults to {@value ServiceOptions#DEFAULT_PARALLEL_SCAN_THRESHOLD}.
+         */
+        public Builder parallelScanThreshold(long rows) {
+            if (rows < 0) {
+                throw new IllegalArgumentException("Parallel scan threshold must not be negative");
+            }
+            this.parallelScanThreshold = rows;
+            return this;
+        }
+
+        public ServiceOptions build() {
+            return new ServiceOptions(this);
+        }
+    }
+}
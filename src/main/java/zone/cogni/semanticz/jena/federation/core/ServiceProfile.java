@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package zone.cogni.semanticz.jena.federation.core;
+
+import org.apache.jena.sparql.algebra.Op;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Execution statistics of one SERVICE clause, collected while profiling is switched on.
+ *
+ * @see FederationProfile
+ */
+public class ServiceProfile {
+
+    private final String serviceUri;
+    private final Op original;
+    private final FederationProfile nested = new FederationProfile();
+    private final LongAdder invocations = new LongAdder();
+    private final LongAdder inputRows = new LongAdder();
+    private final LongAdder outputRows = new LongAdder();
+    private final LongAdder compileNanos = new LongAdder();
+    private final LongAdder executeNanos = new LongAdder();
+    private final LongAdder spilledInvocations = new LongAdder();
+    private final LongAdder partitionedInvocations = new LongAdder();
+    private volatile Op executedSubOp;
+
+    ServiceProfile(String serviceUri, Op original) {
+        this.serviceUri = serviceUri;
+        this.original = original;
+    }
+
+    /**
+     * Records one invocation of the service.
+     *
+     * @param subOp        The sub-operation actually executed, after substitution and rewriting.
+     * @param inputCount   The number of outer bindings the invocation was made for.
+     * @param outputCount  The number of rows the invocation produced.
+     * @param compileNanos Time spent turning the sub-operation into an executable plan.
+     * @param executeNanos Time spent executing the plan and collecting its rows.
+     */
+    void record(Op subOp, long inputCount, long outputCount, long compileNanos, long executeNanos) {
+        this.executedSubOp = subOp;
+        this.invocations.increment();
+        this.inputRows.add(inputCount);
+        this.outputRows.add(outputCount);
+        this.compileNanos.add(compileNanos);
+        this.executeNanos.add(executeNanos);
+    }
+
+    /**
+     * Records that the rows of one invocation exceeded the spill threshold and were written to disk.
+     */
+    void recordSpill() {
+        spilledInvocations.increment();
+    }
+
+    /**
+     * Records that one invocation was scanned in parallel partitions.
+     */
+    void recordPartitionedScan() {
+        partitionedInvocations.increment();
+    }
+
+    public String getServiceUri() {
+        return serviceUri;
+    }
+
+    /**
+     * Gets the SERVICE operator as it appears in the outer query.
+     */
+    public Op getOriginal() {
+        return original;
+    }
+
+    /**
+     * Gets the most recently executed sub-operation, after substitution of the outer binding
+     * and any rewriting done by the registry.
+     */
+    public Op getExecutedSubOp() {
+        return executedSubOp;
+    }
+
+    public long getInvocations() {
+        return invocations.sum();
+    }
+
+    public long getInputRows() {
+        return inputRows.sum();
+    }
+
+    public long getOutputRows() {
+        return outputRows.sum();
+    }
+
+    public long getCompileNanos() {
+        return compileNanos.sum();
+    }
+
+    public long getExecuteNanos() {
+        return executeNanos.sum();
+    }
+
+    /**
+     * Gets the number of invocations whose rows were spilled to disk.
+     */
+    public long getSpilledInvocations() {
+        return spilledInvocations.sum();
+    }
+
+    /**
+     * Gets the number of invocations that were scanned in parallel partitions.
+     */
+    public long getPartitionedInvocations() {
+        return partitionedInvocations.sum();
+    }
+
+    /**
+     * Gets the profile of the SERVICE calls made from inside this service's sub-query.
+     */
+    public FederationProfile getNested() {
+        return nested;
+    }
+
+    void render(StringBuilder out, int indent) {
+        String pad = " ".repeat(indent);
+        out.append(pad).append("SERVICE <").append(serviceUri).append('>')
+           .append(" invocations=").append(getInvocations())
+           .append(" inputRows=").append(getInputRows())
+           .append(" outputRows=").append(getOutputRows())
+           .append(" compile=").append(toMillis(getCompileNanos())).append("ms")
+           .append(" execute=").append(toMillis(getExecuteNanos())).append("ms")
+           .append(" spilled=").append(getSpilledInvocations())
+           .append(" partitioned=").append(getPartitionedInvocations())
+           .append('\n');
+        Op subOp = executedSubOp;
+        if (subOp != null) {
+            for (String line : subOp.toString().split("\n")) {
+                out.append(pad).append("  ").append(line).append('\n');
+            }
+        }
+        nested.render(out, indent + 4);
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        render(out, 0);
+        return out.toString();
+    }
+}
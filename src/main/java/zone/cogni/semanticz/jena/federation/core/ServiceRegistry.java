@@ -20,9 +20,13 @@
 package zone.cogni.semanticz.jena.federation.core;
 
 import org.apache.jena.query.Dataset;
+import org.apache.jena.query.QueryExecution;
 import org.apache.jena.rdf.model.Model;
+import org.apache.jena.sparql.util.Context;
 
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
 /**
  * Core interface for registering and managing local Jena data sources
@@ -39,7 +43,21 @@ public interface ServiceRegistry {
      * @param dataset    The Jena Dataset instance. Must not be null.
      * @throws IllegalArgumentException if serviceUri or dataset is null, or if URI is already registered.
      */
-    void registerDataset(String serviceUri, Dataset dataset);
+    default void registerDataset(String serviceUri, Dataset dataset) {
+        registerDataset(serviceUri, dataset, ServiceOptions.defaults());
+    }
+
+    /**
+     * Registers a Jena Dataset with per-service options.
+     *
+     * @param serviceUri The custom URI (e.g., "urn:jena:service:my-tdb-data"). Must be unique.
+     * @param dataset    The Jena Dataset instance. Must not be null.
+     * @param options    The per-service options. Must not be null. An
+     *                   {@link ServiceOptions.Builder#existenceFilter(double) existence filter} follows
+     *                   commits to a TDB2 dataset; for other datasets it must be rebuilt after writes.
+     * @throws IllegalArgumentException if serviceUri or dataset is null, or if URI is already registered.
+     */
+    void registerDataset(String serviceUri, Dataset dataset, ServiceOptions options);
 
     /**
      * Registers a Jena Model to be accessible via a custom SERVICE URI.
@@ -48,7 +66,170 @@ public interface ServiceRegistry {
      * @param model      The Jena Model instance. Must not be null.
      * @throws IllegalArgumentException if serviceUri or model is null, or if URI is already registered.
      */
-    void registerModel(String serviceUri, Model model);
+    default void registerModel(String serviceUri, Model model) {
+        registerModel(serviceUri, model, ServiceOptions.defaults());
+    }
+
+    /**
+     * Registers a Jena Model with per-service options.
+     *
+     * @param serviceUri The custom URI (e.g., "urn:jena:service:my-vocab"). Must be unique.
+     * @param model      The Jena Model instance. Must not be null.
+     * @param options    The per-service options. Must not be null.
+     * @throws IllegalArgumentException if serviceUri or model is null, or if URI is already registered.
+     */
+    void registerModel(String serviceUri, Model model, ServiceOptions options);
+
+    /**
+     * Replaces a Dataset service without downtime, keeping its current options. See
+     * {@link #replaceDataset(String, Supplier, ServiceOptions)}.
+     */
+    default CompletableFuture<Void> replaceDataset(String serviceUri, Supplier<Dataset> loader) {
+        ServiceOptions current = getServiceOptions(serviceUri);
+        return replaceDataset(serviceUri, loader, current == null ? ServiceOptions.defaults() : current);
+    }
+
+    /**
+     * Replaces a service with a new Dataset without downtime. The loader runs in the background
+     * while SERVICE calls keep using the registered instance; the new Dataset is then swapped in
+     * atomically. Calls already running finish on the old instance, which is disposed of once the
+     * last of them completes. A URI that is not registered yet is registered.
+     * <p>
+     * The Dataset returned by the loader belongs to the registry: it is closed once it is replaced
+     * again, unregistered or cleared. A source passed to a {@code register} method stays owned by
+     * the caller and is never closed by the registry, also when it is replaced.
+     *
+     * @param serviceUri The URI of the service.
+     * @param loader     Loads the new Dataset. Must not return null.
+     * @param options    The per-service options of the new instance.
+     * @return A future completed once the new instance is in place, or with the failure of the loader,
+     *         in which case the old instance stays registered.
+     */
+    CompletableFuture<Void> replaceDataset(String serviceUri, Supplier<Dataset> loader, ServiceOptions options);
+
+    /**
+     * Replaces a Model service without downtime, keeping its current options. See
+     * {@link #replaceModel(String, Supplier, ServiceOptions)}.
+     */
+    default CompletableFuture<Void> replaceModel(String serviceUri, Supplier<Model> loader) {
+        ServiceOptions current = getServiceOptions(serviceUri);
+        return replaceModel(serviceUri, loader, current == null ? ServiceOptions.defaults() : current);
+    }
+
+    /**
+     * Replaces a service with a new Model without downtime, like
+     * {@link #replaceDataset(String, Supplier, ServiceOptions)}. The Model returned by the loader
+     * belongs to the registry in the same way.
+     *
+     * @param serviceUri The URI of the service.
+     * @param loader     Loads the new Model. Must not return null.
+     * @param options    The per-service options of the new instance.
+     * @return A future completed once the new instance is in place, or with the failure of the loader.
+     */
+    CompletableFuture<Void> replaceModel(String serviceUri, Supplier<Model> loader, ServiceOptions options);
+
+    /**
+     * Registers tabular data to be accessible via a custom SERVICE URI, answered directly
+     * from its columns and key indexes.
+     *
+     * @param serviceUri The custom URI (e.g., "urn:jena:service:countries"). Must be unique.
+     * @param table      The tabular source. Must not be null.
+     * @throws IllegalArgumentException if serviceUri or table is null, or if URI is already registered.
+     */
+    default void registerTable(String serviceUri, TabularSource table) {
+        registerTable(serviceUri, table, ServiceOptions.defaults());
+    }
+
+    /**
+     * Registers tabular data with per-service options.
+     *
+     * @param serviceUri The custom URI (e.g., "urn:jena:service:countries"). Must be unique.
+     * @param table      The tabular source. Must not be null.
+     * @param options    The per-service options. Must not be null.
+     * @throws IllegalArgumentException if serviceUri or table is null, or if URI is already registered.
+     */
+    void registerTable(String serviceUri, TabularSource table, ServiceOptions options);
+
+    /**
+     * Registers a materialized view over another registered service. The view query runs
+     * once on registration and again, in full, after its source changes.
+     *
+     * @param serviceUri The custom URI (e.g., "urn:jena:service:member-counts"). Must be unique.
+     * @param view       The view definition. Its source service must already be registered.
+     * @throws IllegalArgumentException if serviceUri or view is null, if URI is already registered,
+     *                                  or if the source service is not registered, or is neither a
+     *                                  Model nor stored in TDB2.
+     */
+    default void registerView(String serviceUri, ViewDefinition view) {
+        registerView(serviceUri, view, ServiceOptions.defaults());
+    }
+
+    /**
+     * Registers a materialized view with per-service options.
+     *
+     * @param serviceUri The custom URI (e.g., "urn:jena:service:member-counts"). Must be unique.
+     * @param view       The view definition. Its source service must already be registered.
+     * @param options    The per-service options. Must not be null.
+     * @throws IllegalArgumentException if serviceUri or view is null, if URI is already registered,
+     *                                  or if the source service is not registered, or is neither a
+     *                                  Model nor stored in TDB2.
+     */
+    void registerView(String serviceUri, ViewDefinition view, ServiceOptions options);
+
+    /**
+     * Registers a local mirror of a remote SPARQL endpoint. SERVICE calls to the endpoint URI are
+     * answered from the mirror while it is fresh, and passed on to the endpoint while it is cold.
+     *
+     * @param endpointUri   The URI of the remote endpoint, as used in SERVICE clauses.
+     * @param mirror        The transactional Dataset holding the mirror. Its content is replaced on every sync.
+     * @param mirrorOptions How the mirror is synced and how stale it may get.
+     * @throws IllegalArgumentException if an argument is null, if the dataset is not transactional,
+     *                                  or if the URI is already registered.
+     */
+    default void registerMirror(String endpointUri, Dataset mirror, MirrorOptions mirrorOptions) {
+        registerMirror(endpointUri, mirror, mirrorOptions, ServiceOptions.defaults());
+    }
+
+    /**
+     * Registers a local mirror of a remote SPARQL endpoint with per-service options.
+     *
+     * @param endpointUri   The URI of the remote endpoint, as used in SERVICE clauses.
+     * @param mirror        The transactional Dataset holding the mirror. Its content is replaced on every sync.
+     * @param mirrorOptions How the mirror is synced and how stale it may get.
+     * @param options       The per-service options. Must not be null.
+     * @throws IllegalArgumentException if an argument is null, if the dataset is not transactional,
+     *                                  or if the URI is already registered.
+     */
+    void registerMirror(String endpointUri, Dataset mirror, MirrorOptions mirrorOptions, ServiceOptions options);
+
+    /**
+     * Syncs a mirror with its remote endpoint now, on the calling thread.
+     *
+     * @param endpointUri The URI of the remote endpoint.
+     * @return true if the URI is a registered mirror, false otherwise.
+     */
+    boolean syncMirror(String endpointUri);
+
+    /**
+     * Rebuilds the {@link ServiceOptions#hasExistenceFilter() existence filter} of a service from its
+     * current content. Model services, mirrors and TDB2 Dataset services keep their filter up to
+     * date by themselves, where a rebuild only drops IRIs whose statements were removed since.
+     * Other Dataset services need a rebuild after every write.
+     *
+     * @param serviceUri The URI of the service.
+     * @return true if the service has an existence filter and it was rebuilt, false otherwise.
+     */
+    boolean rebuildExistenceFilter(String serviceUri);
+
+    /**
+     * Marks a view stale, so the next SERVICE call against it re-runs its query. Views follow
+     * changes of their source by themselves; this covers changes they cannot see, such as a
+     * compaction of a TDB2 source or a replacement with a source that is neither a Model nor TDB2.
+     *
+     * @param serviceUri The URI of the view.
+     * @return true if the URI is a registered view, false otherwise.
+     */
+    boolean refreshView(String serviceUri);
 
     /**
      * Removes a previously registered service URI.
@@ -73,6 +254,14 @@ public interface ServiceRegistry {
      */
     Set<String> getRegisteredServices();
 
+    /**
+     * Gets the options a service was registered with.
+     *
+     * @param serviceUri The URI of the service.
+     * @return The options, or null if the URI is not registered.
+     */
+    ServiceOptions getServiceOptions(String serviceUri);
+
     /**
      * Clears all registered services.
      */
@@ -89,4 +278,40 @@ public interface ServiceRegistry {
      * This typically involves unregistering from Jena's ServiceExecutorRegistry.
      */
     void shutdown();
-}
\ No newline at end of file
+
+    /**
+     * Activates the registry for query executions using the given ARQ context only, without
+     * touching Jena's global ServiceExecutorRegistry. The context gets its own copy of the
+     * executor chain it currently resolves to, with this registry in front, and an optimizer
+     * that pushes top-k limits into local SERVICE calls in front of the one it had.
+     *
+     * @param context The context of a dataset or query execution.
+     */
+    void attachTo(Context context);
+
+    /**
+     * Activates the registry for all query executions over the given dataset.
+     *
+     * @param dataset The dataset whose context the registry is attached to.
+     */
+    default void attachTo(Dataset dataset) {
+        attachTo(dataset.getContext());
+    }
+
+    /**
+     * Activates the registry for a single query execution.
+     *
+     * @param queryExecution The query execution whose context the registry is attached to.
+     */
+    default void attachTo(QueryExecution queryExecution) {
+        attachTo(queryExecution.getContext());
+    }
+
+    /**
+     * Removes the registry from a context it was {@link #attachTo(Context) attached} to.
+     *
+     * @param context The context to detach from.
+     * @return true if the registry was attached to the context, false otherwise.
+     */
+    boolean detachFrom(Context context);
+}
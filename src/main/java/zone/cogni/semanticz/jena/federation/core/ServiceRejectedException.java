@@ -0,0 +1,41 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package zone.cogni.semanticz.jena.federation.core;
+
+import org.apache.jena.query.QueryExecException;
+
+/**
+ * Thrown when a SERVICE call is rejected because the local service is saturated.
+ * <p>
+ * SERVICE SILENT calls are not rejected with an exception; they yield no rows instead.
+ */
+public class ServiceRejectedException extends QueryExecException {
+
+    private final String serviceUri;
+
+    public ServiceRejectedException(String serviceUri, String message) {
+        super(message);
+        this.serviceUri = serviceUri;
+    }
+
+    public String getServiceUri() {
+        return serviceUri;
+    }
+}
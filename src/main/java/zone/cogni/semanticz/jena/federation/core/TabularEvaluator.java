@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package zone.cogni.semanticz.jena.federation.core;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.sparql.algebra.Op;
+import org.apache.jena.sparql.algebra.op.OpBGP;
+import org.apache.jena.sparql.algebra.op.OpFilter;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.ExecutionContext;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingBuilder;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.expr.ExprList;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+/**
+ * Answers SERVICE sub-queries over a {@link TabularSource} straight from its columns.
+ * <p>
+ * Covered are basic graph patterns, optionally filtered, whose triples share one subject and
+ * use mapped predicates. A concrete subject, or a concrete object in an indexed column, is
+ * resolved through the column's hash index; otherwise the rows are scanned. Rows sharing a key
+ * are matched together, so every pattern sees the values of all of them, as it would over the
+ * table's triples. Anything else returns null and is executed over those triples instead.
+ */
+final class TabularEvaluator {
+
+    private TabularEvaluator() {
+    }
+
+    /**
+     * Evaluates a sub-query over a table.
+     *
+     * @return The bindings, or null if the sub-query is not covered.
+     */
+    static List<Binding> evaluate(TabularSource table, Op subOp, ExecutionContext execCxt) {
+        if (subOp instanceof OpFilter filter && filter.getSubOp() instanceof OpBGP bgp) {
+            List<Binding> rows = evaluate(table, bgp);
+            if (rows == null) {
+                return null;
+            }
+            ExprList exprs = filter.getExprs();
+            rows.removeIf(row -> !exprs.isSatisfied(row, execCxt));
+            return rows;
+        }
+        if (subOp instanceof OpBGP bgp) {
+            return evaluate(table, bgp);
+        }
+        return null;
+    }
+
+    private static List<Binding> evaluate(TabularSource table, OpBGP bgp) {
+        List<Triple> triples = bgp.getPattern().getList();
+        if (triples.isEmpty()) {
+            return null;
+        }
+
+        Node subject = triples.get(0).getSubject();
+        int[] columns = new int[triples.size()];
+        for (int i = 0; i < triples.size(); i++) {
+            Triple triple = triples.get(i);
+            Node predicate = triple.getPredicate();
+            if (!triple.getSubject().equals(subject) || !predicate.isURI()) {
+                return null;
+            }
+            Integer column = table.columnForPredicate(predicate.getURI());
+            if (column == null) {
+                return null;
+            }
+            columns[i] = column;
+        }
+
+        int keyColumn = table.getKeyColumn();
+        Set<Node> matchedKeys = new HashSet<>();
+        List<Binding> results = new ArrayList<>();
+        for (int row : candidateRows(table, subject, triples, columns)) {
+            Node key = table.value(row, keyColumn);
+            if (key == null || !matchedKeys.add(key)) {
+                continue;
+            }
+            Map<Var, Node> values = new HashMap<>();
+            if (bind(values, subject, key)) {
+                match(table, table.lookup(keyColumn, key), triples, columns, 0, values, results);
+            }
+        }
+        return results;
+    }
+
+    private static int[] candidateRows(TabularSource table, Node subject, List<Triple> triples, int[] columns) {
+        if (subject.isConcrete()) {
+            return table.lookup(table.getKeyColumn(), subject);
+        }
+        for (int i = 0; i < triples.size(); i++) {
+            Node object = triples.get(i).getObject();
+            if (object.isConcrete() && table.isIndexed(columns[i])) {
+                return table.lookup(columns[i], object);
+            }
+        }
+        return IntStream.range(0, table.getRowCount()).toArray();
+    }
+
+    /**
+     * Matches the triples from the given one on against the rows of one key, adding a binding
+     * per combination of distinct values.
+     */
+    private static void match(TabularSource table, int[] rows, List<Triple> triples, int[] columns, int index,
+                              Map<Var, Node> values, List<Binding> results) {
+        if (index == triples.size()) {
+            BindingBuilder builder = BindingFactory.builder();
+            values.forEach(builder::add);
+            results.add(builder.build());
+            return;
+        }
+
+        Node object = triples.get(index).getObject();
+        Var var = object.isVariable() ? Var.alloc(object) : null;
+        boolean unbound = var != null && !values.containsKey(var);
+        Set<Node> seen = rows.length > 1 ? new HashSet<>() : null;
+        for (int row : rows) {
+            Node value = table.value(row, columns[index]);
+            if (value == null || (seen != null && !seen.add(value))) {
+                continue;
+            }
+            if (unbound) {
+                values.put(var, value);
+                match(table, rows, triples, columns, index + 1, values, results);
+                values.remove(var);
+            } else if (bind(values, object, value)) {
+                match(table, rows, triples, columns, index + 1, values, results);
+            }
+        }
+    }
+
+    /**
+     * Matches a pattern node against a table value, binding it when the node is a variable.
+     */
+    private static boolean bind(Map<Var, Node> values, Node patternNode, Node value) {
+        if (!patternNode.isVariable()) {
+            return patternNode.equals(value);
+        }
+        Node existing = values.putIfAbsent(Var.alloc(patternNode), value);
+        return existing == null || existing.equals(value);
+    }
+}
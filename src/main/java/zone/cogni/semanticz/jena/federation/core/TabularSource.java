@@ -0,0 +1,262 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package zone.cogni.semanticz.jena.federation.core;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.sparql.graph.GraphFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Tabular reference data answered directly as SERVICE bindings, without converting it to a Model.
+ * <p>
+ * The table is a virtual RDF view: every row is a subject taken from the <em>key column</em>, and
+ * every other column maps to a predicate. Rows sharing a key describe the same subject, as they
+ * would in the equivalent RDF. SERVICE clauses are written exactly as against the
+ * equivalent RDF, for example
+ * <pre>
+ * SERVICE &lt;urn:jena:service:countries&gt; { ?country rdfs:label ?name ; ex:iso3 ?iso3 }
+ * </pre>
+ * Values are stored column by column. The key column and every column declared with
+ * {@link Builder#indexedColumn(String, String)} get a hash index, so a bind-join call whose
+ * outer binding fixes the subject or an indexed value is answered by an index lookup.
+ *
+ * <pre>
+ * TabularSource countries = TabularSource.builder()
+ *         .keyColumn("uri")
+ *         .column("name", RDFS.label.getURI())
+ *         .indexedColumn("iso3", "http://example.org/iso3")
+ *         .row(beUri, belgiumLiteral, belLiteral)
+ *         .build();
+ * registry.registerTable("urn:jena:service:countries", countries);
+ * </pre>
+ * Instances are immutable and thread-safe.
+ */
+public final class TabularSource {
+
+    private final List<String> columnNames;
+    private final int keyColumn;
+    private final Map<String, Integer> columnsByPredicate;
+    private final Node[][] columns;
+    private final int rowCount;
+    private final Map<Integer, Map<Node, int[]>> indexes;
+    private volatile Graph graph;
+
+    private TabularSource(Builder builder) {
+        this.columnNames = List.copyOf(builder.columnNames);
+        this.keyColumn = builder.keyColumn;
+        this.columnsByPredicate = Map.copyOf(builder.columnsByPredicate);
+        this.rowCount = builder.rows.size();
+        this.columns = new Node[columnNames.size()][rowCount];
+        for (int row = 0; row < rowCount; row++) {
+            Node[] values = builder.rows.get(row);
+            for (int column = 0; column < values.length; column++) {
+                columns[column][row] = values[column];
+            }
+        }
+
+        Map<Integer, Map<Node, int[]>> built = new HashMap<>();
+        for (int column : builder.indexedColumns) {
+            built.put(column, buildIndex(columns[column]));
+        }
+        this.indexes = Map.copyOf(built);
+    }
+
+    private static Map<Node, int[]> buildIndex(Node[] values) {
+        Map<Node, List<Integer>> rowsByValue = new HashMap<>();
+        for (int row = 0; row < values.length; row++) {
+            if (values[row] != null) {
+                rowsByValue.computeIfAbsent(values[row], value -> new ArrayList<>(1)).add(row);
+            }
+        }
+        Map<Node, int[]> index = new HashMap<>(rowsByValue.size() * 2);
+        rowsByValue.forEach((value, rows) -> index.put(value, rows.stream().mapToInt(Integer::intValue).toArray()));
+        return index;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public List<String> getColumnNames() {
+        return columnNames;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    int getKeyColumn() {
+        return keyColumn;
+    }
+
+    /**
+     * Gets the column mapped to a predicate, or null if the predicate is not part of the table.
+     */
+    Integer columnForPredicate(String predicateUri) {
+        return columnsByPredicate.get(predicateUri);
+    }
+
+    boolean isIndexed(int column) {
+        return indexes.containsKey(column);
+    }
+
+    /**
+     * Gets the rows holding a value in an indexed column.
+     */
+    int[] lookup(int column, Node value) {
+        Map<Node, int[]> index = indexes.get(column);
+        if (index == null) {
+            throw new IllegalArgumentException("Column is not indexed: " + columnNames.get(column));
+        }
+        return index.getOrDefault(value, new int[0]);
+    }
+
+    /**
+     * Gets the value of a cell, or null when the row has no value in the column.
+     */
+    Node value(int row, int column) {
+        return columns[column][row];
+    }
+
+    /**
+     * Gets the table as triples, for SERVICE sub-queries that the direct evaluation does not
+     * cover. The graph is built on first use and kept.
+     */
+    Graph asGraph() {
+        Graph result = graph;
+        if (result == null) {
+            synchronized (this) {
+                result = graph;
+                if (result == null) {
+                    result = buildGraph();
+                    graph = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    private Graph buildGraph() {
+        Graph result = GraphFactory.createDefaultGraph();
+        Map<Integer, Node> predicates = new HashMap<>();
+        columnsByPredicate.forEach((predicate, column) -> predicates.put(column, NodeFactory.createURI(predicate)));
+        for (int row = 0; row < rowCount; row++) {
+            Node subject = columns[keyColumn][row];
+            if (subject == null) {
+                continue;
+            }
+            for (Map.Entry<Integer, Node> predicate : predicates.entrySet()) {
+                Node object = columns[predicate.getKey()][row];
+                if (object != null) {
+                    result.add(Triple.create(subject, predicate.getValue(), object));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Builder for {@link TabularSource}. Columns are declared in the order of the row values.
+     */
+    public static final class Builder {
+
+        private final List<String> columnNames = new ArrayList<>();
+        private final Map<String, Integer> columnsByPredicate = new LinkedHashMap<>();
+        private final List<Integer> indexedColumns = new ArrayList<>();
+        private final List<Node[]> rows = new ArrayList<>();
+        private int keyColumn = -1;
+
+        private Builder() {
+        }
+
+        /**
+         * Declares the key column, whose values are the row subjects. Exactly one is required.
+         */
+        public Builder keyColumn(String name) {
+            if (keyColumn >= 0) {
+                throw new IllegalStateException("Key column already declared: " + columnNames.get(keyColumn));
+            }
+            keyColumn = addColumn(name);
+            indexedColumns.add(keyColumn);
+            return this;
+        }
+
+        /**
+         * Declares a value column, exposed through the given predicate.
+         */
+        public Builder column(String name, String predicateUri) {
+            Objects.requireNonNull(predicateUri, "Predicate URI cannot be null");
+            int column = addColumn(name);
+            if (columnsByPredicate.putIfAbsent(predicateUri, column) != null) {
+                throw new IllegalArgumentException("Predicate already mapped to a column: " + predicateUri);
+            }
+            return this;
+        }
+
+        /**
+         * Declares a value column with a hash index, for lookups by value.
+         */
+        public Builder indexedColumn(String name, String predicateUri) {
+            column(name, predicateUri);
+            indexedColumns.add(columnNames.size() - 1);
+            return this;
+        }
+
+        private int addColumn(String name) {
+            Objects.requireNonNull(name, "Column name cannot be null");
+            if (!rows.isEmpty()) {
+                throw new IllegalStateException("Columns must be declared before rows");
+            }
+            if (columnNames.contains(name)) {
+                throw new IllegalArgumentException("Column already declared: " + name);
+            }
+            columnNames.add(name);
+            return columnNames.size() - 1;
+        }
+
+        /**
+         * Adds a row. Values follow the column declaration order; null means the row has no value.
+         */
+        public Builder row(Node... values) {
+            if (values.length != columnNames.size()) {
+                throw new IllegalArgumentException("Expected " + columnNames.size() + " values but got " + values.length);
+            }
+            rows.add(Arrays.copyOf(values, values.length));
+            return this;
+        }
+
+        public TabularSource build() {
+            if (keyColumn < 0) {
+                throw new IllegalStateException("A tabular source needs a key column");
+            }
+            return new TabularSource(this);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package zone.cogni.semanticz.jena.federation.core;
+
+import org.apache.jena.dboe.transaction.txn.Transaction;
+import org.apache.jena.dboe.transaction.txn.TransactionCoordinator;
+import org.apache.jena.dboe.transaction.txn.TransactionListener;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.tdb2.sys.TDBInternal;
+
+/**
+ * A listener on the transaction coordinator of a TDB2 dataset, called on the committing thread
+ * after every write transaction commits.
+ * <p>
+ * A TDB2 commit does not tell what changed, so listeners treat every commit as a change. A
+ * compaction replaces the storage, and with it the coordinator the hook is registered with; the
+ * hook does not follow it.
+ */
+final class Tdb2CommitHook implements AutoCloseable {
+
+    private final TransactionCoordinator coordinator;
+    private final TransactionListener listener;
+
+    private Tdb2CommitHook(TransactionCoordinator coordinator, Runnable onCommit) {
+        this.coordinator = coordinator;
+        this.listener = new TransactionListener() {
+            @Override
+            public void notifyCommitFinish(Transaction transaction) {
+                if (transaction.isWriteTxn()) {
+                    onCommit.run();
+                }
+            }
+        };
+        coordinator.addListener(listener);
+    }
+
+    /**
+     * Checks whether the dataset is stored in TDB2, so its commits can be followed.
+     */
+    static boolean supports(Dataset dataset) {
+        return dataset != null && TDBInternal.isTDB2(dataset.asDatasetGraph());
+    }
+
+    /**
+     * Registers a listener on the commits of a TDB2 dataset.
+     *
+     * @param onCommit Called after each write transaction commits; must be cheap, as the committing
+     *                 thread runs it.
+     */
+    static Tdb2CommitHook register(Dataset dataset, Runnable onCommit) {
+        TransactionCoordinator coordinator = TDBInternal.getDatasetGraphTDB(dataset.asDatasetGraph())
+                .getTxnSystem().getTxnMgr();
+        return new Tdb2CommitHook(coordinator, onCommit);
+    }
+
+    @Override
+    public void close() {
+        coordinator.removeListener(listener);
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package zone.cogni.semanticz.jena.federation.core;
+
+import org.apache.jena.query.ARQ;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.SortCondition;
+import org.apache.jena.sparql.algebra.Op;
+import org.apache.jena.sparql.algebra.OpVars;
+import org.apache.jena.sparql.algebra.op.OpOrder;
+import org.apache.jena.sparql.algebra.op.OpProject;
+import org.apache.jena.sparql.algebra.op.OpService;
+import org.apache.jena.sparql.algebra.op.OpSlice;
+import org.apache.jena.sparql.algebra.op.OpTopN;
+import org.apache.jena.sparql.algebra.optimize.Optimize;
+import org.apache.jena.sparql.algebra.optimize.Rewrite;
+import org.apache.jena.sparql.algebra.optimize.RewriteFactory;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.expr.ExprVars;
+import org.apache.jena.sparql.util.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Pushes a top-k ({@code ORDER BY ... LIMIT k}) over a local SERVICE call into the call itself.
+ * <p>
+ * Installed as the ARQ optimizer of a context a registry is attached to, in front of the one the
+ * context had, so queries outside that context are untouched: once the standard rewrite has
+ * turned {@code slice(order(...))} into {@code top(...)}, a query of the form
+ * {@code top(k, conditions, service(uri, pattern))} becomes
+ * {@code top(k, conditions, service(uri, top(k, conditions, pattern)))}. The local evaluation then
+ * keeps only the best k rows in a bounded heap instead of handing every row to the outer sort.
+ * Limits too large for the standard rewrite keep their {@code slice(order(...))} shape, pushed
+ * down the same way. The outer operator stays in place, so the result does not change.
+ * <p>
+ * Only the top of the query is rewritten, where the SERVICE call runs once without outer
+ * bindings: deeper down, a SERVICE may be joined with other rows after the fact, and its best k
+ * rows alone would not be enough. The sort keys must all be variables of the SERVICE pattern.
+ * A SERVICE pattern that already has a top-k is left alone, so a context that several registries
+ * are attached to pushes only once.
+ */
+final class TopKPushdown implements RewriteFactory {
+
+    private static final Logger log = LoggerFactory.getLogger(TopKPushdown.class);
+
+    private final LocalSparqlServiceRegistry registry;
+    private final RewriteFactory delegate;
+
+    /**
+     * @param delegate The optimizer to run first, or null for the global one at the time of the query.
+     */
+    TopKPushdown(LocalSparqlServiceRegistry registry, RewriteFactory delegate) {
+        this.registry = registry;
+        this.delegate = delegate;
+    }
+
+    LocalSparqlServiceRegistry getRegistry() {
+        return registry;
+    }
+
+    RewriteFactory getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public Rewrite create(Context context) {
+        Rewrite base = (delegate != null ? delegate : Optimize.getFactory()).create(context);
+        Context settings = context != null ? context : ARQ.getContext();
+        if (!registry.isTopKPushdown(settings)) {
+            return base;
+        }
+        return op -> pushDown(base.rewrite(op));
+    }
+
+    private Op pushDown(Op op) {
+        if (op instanceof OpProject project) {
+            Op subOp = pushDown(project.getSubOp());
+            return subOp == project.getSubOp() ? op : project.copy(subOp);
+        }
+        if (op instanceof OpTopN topN && topN.getSubOp() instanceof OpService service
+                && isPushable(service, topN.getConditions())) {
+            Op pushed = OpTopN.create(service.getSubOp(), topN.getLimit(), topN.getConditions());
+            return topN.copy(withSubOp(service, pushed));
+        }
+        if (op instanceof OpSlice slice && slice.getLength() != Query.NOLIMIT) {
+            Op below = slice.getSubOp();
+            OpProject project = below instanceof OpProject p ? p : null;
+            if (project != null) {
+                below = project.getSubOp();
+            }
+            if (below instanceof OpOrder order && order.getSubOp() instanceof OpService service
+                    && isPushable(service, order.getConditions())) {
+                long start = slice.getStart() == Query.NOLIMIT ? 0 : slice.getStart();
+                Op pushed = new OpSlice(new OpOrder(service.getSubOp(), order.getConditions()),
+                                        Query.NOLIMIT, start + slice.getLength());
+                Op rewritten = order.copy(withSubOp(service, pushed));
+                return slice.copy(project == null ? rewritten : project.copy(rewritten));
+            }
+        }
+        return op;
+    }
+
+    private boolean isPushable(OpService service, List<SortCondition> conditions) {
+        if (!service.getService().isURI() || !registry.isServedLocally(service.getService().getURI())) {
+            return false;
+        }
+        Op subOp = service.getSubOp();
+        if (subOp instanceof OpTopN || subOp instanceof OpSlice slice && slice.getSubOp() instanceof OpOrder) {
+            return false;
+        }
+        Set<Var> serviceVars = OpVars.visibleVars(service.getSubOp());
+        for (SortCondition condition : conditions) {
+            if (!serviceVars.containsAll(ExprVars.getVarsMentioned(condition.getExpression()))) {
+                log.debug("Not pushing top-k into {}: sort key {} is not bound by the service",
+                          service.getService().getURI(), condition);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static OpService withSubOp(OpService service, Op subOp) {
+        return new OpService(service.getService(), subOp, service.getSilent());
+    }
+}
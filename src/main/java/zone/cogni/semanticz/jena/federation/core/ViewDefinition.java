@@ -0,0 +1,167 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package zone.cogni.semanticz.jena.federation.core;
+
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QueryFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Definition of a materialized-view service: a SPARQL SELECT over another registered service.
+ * <p>
+ * The result of the query is materialized as a {@link TabularSource}. The <em>key variable</em>
+ * provides the row subjects and every other exposed variable maps to a predicate, so SERVICE
+ * clauses against the view are written like lookups on the equivalent RDF:
+ * <pre>
+ * ViewDefinition memberCounts = ViewDefinition.builder("urn:jena:service:org",
+ *                 "SELECT ?team (COUNT(?member) AS ?count) { ?member ex:memberOf ?team } GROUP BY ?team")
+ *         .keyVariable("team")
+ *         .variable("count", "http://example.org/memberCount")
+ *         .build();
+ * registry.registerView("urn:jena:service:member-counts", memberCounts);
+ *
+ * SERVICE &lt;urn:jena:service:member-counts&gt; { ?team ex:memberCount ?count }
+ * </pre>
+ * Instances are immutable and thread-safe.
+ */
+public final class ViewDefinition {
+
+    private final String sourceServiceUri;
+    private final Query query;
+    private final String keyVariable;
+    private final Map<String, String> predicatesByVariable;
+    private final List<String> indexedVariables;
+
+    private ViewDefinition(Builder builder) {
+        this.sourceServiceUri = builder.sourceServiceUri;
+        this.query = builder.query;
+        this.keyVariable = builder.keyVariable;
+        this.predicatesByVariable = Map.copyOf(builder.predicatesByVariable);
+        this.indexedVariables = List.copyOf(builder.indexedVariables);
+    }
+
+    /**
+     * Creates a builder for a view over a registered service.
+     *
+     * @param sourceServiceUri The URI of the service the query runs against.
+     * @param selectQuery      The SELECT query defining the view.
+     */
+    public static Builder builder(String sourceServiceUri, String selectQuery) {
+        return new Builder(sourceServiceUri, selectQuery);
+    }
+
+    public String getSourceServiceUri() {
+        return sourceServiceUri;
+    }
+
+    public Query getQuery() {
+        return query;
+    }
+
+    public String getKeyVariable() {
+        return keyVariable;
+    }
+
+    /**
+     * Gets the predicate each exposed variable is mapped to, keyed by variable name.
+     */
+    public Map<String, String> getPredicatesByVariable() {
+        return predicatesByVariable;
+    }
+
+    public List<String> getIndexedVariables() {
+        return indexedVariables;
+    }
+
+    @Override
+    public String toString() {
+        return "ViewDefinition{source=" + sourceServiceUri + ", key=?" + keyVariable
+               + ", variables=" + predicatesByVariable.keySet() + "}";
+    }
+
+    /**
+     * Builder for {@link ViewDefinition}.
+     */
+    public static final class Builder {
+
+        private final String sourceServiceUri;
+        private final Query query;
+        private final Map<String, String> predicatesByVariable = new LinkedHashMap<>();
+        private final List<String> indexedVariables = new ArrayList<>();
+        private String keyVariable;
+
+        private Builder(String sourceServiceUri, String selectQuery) {
+            this.sourceServiceUri = Objects.requireNonNull(sourceServiceUri, "Source service URI cannot be null");
+            this.query = QueryFactory.create(Objects.requireNonNull(selectQuery, "View query cannot be null"));
+            if (!query.isSelectType()) {
+                throw new IllegalArgumentException("A view must be defined by a SELECT query");
+            }
+        }
+
+        /**
+         * Sets the result variable whose values are the row subjects of the view.
+         */
+        public Builder keyVariable(String name) {
+            this.keyVariable = checkResultVariable(name);
+            return this;
+        }
+
+        /**
+         * Exposes a result variable through the given predicate.
+         */
+        public Builder variable(String name, String predicateUri) {
+            Objects.requireNonNull(predicateUri, "Predicate URI cannot be null");
+            predicatesByVariable.put(checkResultVariable(name), predicateUri);
+            return this;
+        }
+
+        /**
+         * Exposes a result variable through the given predicate, with a hash index for lookups by value.
+         */
+        public Builder indexedVariable(String name, String predicateUri) {
+            variable(name, predicateUri);
+            indexedVariables.add(name);
+            return this;
+        }
+
+        private String checkResultVariable(String name) {
+            Objects.requireNonNull(name, "Variable name cannot be null");
+            if (!query.getResultVars().contains(name)) {
+                throw new IllegalArgumentException("Not a result variable of the view query: ?" + name);
+            }
+            return name;
+        }
+
+        public ViewDefinition build() {
+            if (keyVariable == null) {
+                throw new IllegalStateException("A view needs a key variable");
+            }
+            if (predicatesByVariable.containsKey(keyVariable)) {
+                throw new IllegalStateException("The key variable cannot also be mapped to a predicate: ?" + keyVariable);
+            }
+            return new ViewDefinition(this);
+        }
+    }
+}
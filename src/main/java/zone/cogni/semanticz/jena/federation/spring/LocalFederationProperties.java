@@ -0,0 +1,357 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package zone.cogni.semanticz.jena.federation.spring;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import zone.cogni.semanticz.jena.federation.core.ServiceOptions;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Configuration properties for declaring local SERVICE data sources.
+ * <p>
+ * Every entry under {@code semanticz.jena.federation.services} is loaded by the
+ * {@link LocalServiceLoader} during application startup and registered with the
+ * {@link zone.cogni.semanticz.jena.federation.core.ServiceRegistry}.
+ *
+ * <pre>
+ * semanticz:
+ *   jena:
+ *     federation:
+ *       loader-threads: 4
+ *       services:
+ *         - name: vocabulary
+ *           file: /data/vocabulary.ttl
+ *         - uri: urn:jena:service:archive
+ *           tdb2-location: /data/tdb/archive
+ *           load-mode: background
+ *           failure-policy: ignore
+ *           spill-threshold: 100000
+ *           max-concurrency: 4
+ *           max-queue-depth: 32
+ *           max-queue-wait: 5s
+ *           existence-filter-false-positive-rate: 0.01
+ * </pre>
+ */
+@ConfigurationProperties(prefix = LocalFederationProperties.PREFIX)
+public class LocalFederationProperties {
+
+  public static final String PREFIX = "semanticz.jena.federation";
+
+  /**
+   * How a declared service is loaded relative to application startup.
+   */
+  public enum LoadMode {
+    /**
+     * The service is loaded before the application context finishes starting.
+     */
+    EAGER,
+    /**
+     * The service is loaded in the background; SERVICE calls see it once loading completes.
+     */
+    BACKGROUND
+  }
+
+  /**
+   * What happens when a declared service fails to load.
+   */
+  public enum FailurePolicy {
+    /**
+     * Abort application startup (eager services) or log an error (background services).
+     */
+    FAIL,
+    /**
+     * Log a warning and continue without the service.
+     */
+    IGNORE
+  }
+
+  /**
+   * Maximum number of services loaded concurrently.
+   */
+  private int loaderThreads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 8));
+
+  /**
+   * Maximum time to wait for eager services during startup.
+   */
+  private Duration startupTimeout = Duration.ofMinutes(10);
+
+  /**
+   * The declared services.
+   */
+  private List<ServiceDefinition> services = new ArrayList<>();
+
+  public int getLoaderThreads() {
+    return loaderThreads;
+  }
+
+  public void setLoaderThreads(int loaderThreads) {
+    this.loaderThreads = loaderThreads;
+  }
+
+  public Duration getStartupTimeout() {
+    return startupTimeout;
+  }
+
+  public void setStartupTimeout(Duration startupTimeout) {
+    this.startupTimeout = startupTimeout;
+  }
+
+  public List<ServiceDefinition> getServices() {
+    return services;
+  }
+
+  public void setServices(List<ServiceDefinition> services) {
+    this.services = services;
+  }
+
+  /**
+   * Declaration of a single local service.
+   * <p>
+   * Either {@code uri} or {@code name} identifies the service, and exactly one of
+   * {@code file} or {@code tdb2Location} provides its data.
+   */
+  public static class ServiceDefinition {
+
+    /**
+     * The full SERVICE URI, e.g. {@code urn:jena:service:vocabulary}.
+     */
+    private String uri;
+
+    /**
+     * Short service name, expanded with {@code urn:jena:service:} when no URI is given.
+     */
+    private String name;
+
+    /**
+     * RDF file (any syntax supported by RIOT) loaded into an in-memory dataset.
+     */
+    private String file;
+
+    /**
+     * Directory of a TDB2 database connected as the service dataset.
+     */
+    private String tdb2Location;
+
+    private LoadMode loadMode = LoadMode.EAGER;
+
+    private FailurePolicy failurePolicy = FailurePolicy.FAIL;
+
+    /**
+     * Rows of one SERVICE call kept in memory before spilling to disk; unlimited when not set.
+     */
+    private Long spillThreshold;
+
+    /**
+     * Maximum number of concurrent SERVICE calls; unlimited when not set.
+     */
+    private Integer maxConcurrency;
+
+    /**
+     * Maximum number of SERVICE calls waiting for admission; unlimited when not set.
+     */
+    private Integer maxQueueDepth;
+
+    /**
+     * How long a SERVICE call waits for admission before it is rejected.
+     */
+    private Duration maxQueueWait;
+
+    /**
+     * Whether waiting SERVICE calls are admitted in arrival order.
+     */
+    private boolean fairQueueing;
+
+    /**
+     * False positive rate of a Bloom filter over the IRIs of the service, used to skip SERVICE
+     * calls that cannot match; no filter when not set.
+     */
+    private Double existenceFilterFalsePositiveRate;
+
+    /**
+     * IRIs of predicates whose transitive closure is indexed, e.g. skos:broader; Model services only.
+     */
+    private List<String> closurePredicates = new ArrayList<>();
+
+    /**
+     * Number of partitions a large SERVICE sub-query against a TDB2 dataset is scanned in on parallel threads; no parallel scan when not set.
+     */
+    private Integer scanParallelism;
+
+    /**
+     * Rows the leading triple pattern must match before a sub-query is scanned in parallel.
+     */
+    private Long parallelScanThreshold;
+
+    public String getUri() {
+      return uri;
+    }
+
+    public void setUri(String uri) {
+      this.uri = uri;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public void setName(String name) {
+      this.name = name;
+    }
+
+    public String getFile() {
+      return file;
+    }
+
+    public void setFile(String file) {
+      this.file = file;
+    }
+
+    public String getTdb2Location() {
+      return tdb2Location;
+    }
+
+    public void setTdb2Location(String tdb2Location) {
+      this.tdb2Location = tdb2Location;
+    }
+
+    public LoadMode getLoadMode() {
+      return loadMode;
+    }
+
+    public void setLoadMode(LoadMode loadMode) {
+      this.loadMode = loadMode;
+    }
+
+    public FailurePolicy getFailurePolicy() {
+      return failurePolicy;
+    }
+
+    public void setFailurePolicy(FailurePolicy failurePolicy) {
+      this.failurePolicy = failurePolicy;
+    }
+
+    public Long getSpillThreshold() {
+      return spillThreshold;
+    }
+
+    public void setSpillThreshold(Long spillThreshold) {
+      this.spillThreshold = spillThreshold;
+    }
+
+    public Integer getMaxConcurrency() {
+      return maxConcurrency;
+    }
+
+    public void setMaxConcurrency(Integer maxConcurrency) {
+      this.maxConcurrency = maxConcurrency;
+    }
+
+    public Integer getMaxQueueDepth() {
+      return maxQueueDepth;
+    }
+
+    public void setMaxQueueDepth(Integer maxQueueDepth) {
+      this.maxQueueDepth = maxQueueDepth;
+    }
+
+    public Duration getMaxQueueWait() {
+      return maxQueueWait;
+    }
+
+    public void setMaxQueueWait(Duration maxQueueWait) {
+      this.maxQueueWait = maxQueueWait;
+    }
+
+    public boolean isFairQueueing() {
+      return fairQueueing;
+    }
+
+    public void setFairQueueing(boolean fairQueueing) {
+      this.fairQueueing = fairQueueing;
+    }
+
+    public Double getExistenceFilterFalsePositiveRate() {
+      return existenceFilterFalsePositiveRate;
+    }
+
+    public void setExistenceFilterFalsePositiveRate(Double existenceFilterFalsePositiveRate) {
+      this.existenceFilterFalsePositiveRate = existenceFilterFalsePositiveRate;
+    }
+
+    public List<String> getClosurePredicates() {
+      return closurePredicates;
+    }
+
+    public void setClosurePredicates(List<String> closurePredicates) {
+      this.closurePredicates = closurePredicates;
+    }
+
+    public Integer getScanParallelism() {
+      return scanParallelism;
+    }
+
+    public void setScanParallelism(Integer scanParallelism) {
+      this.scanParallelism = scanParallelism;
+    }
+
+    public Long getParallelScanThreshold() {
+      return parallelScanThreshold;
+    }
+
+    public void setParallelScanThreshold(Long parallelScanThreshold) {
+      this.parallelScanThreshold = parallelScanThreshold;
+    }
+
+    /**
+     * Converts the declared policies into registry options.
+     */
+    public ServiceOptions toServiceOptions() {
+      ServiceOptions.Builder options = ServiceOptions.builder().fairQueueing(fairQueueing);
+      if (spillThreshold != null) {
+        options.spillThreshold(spillThreshold);
+      }
+      if (maxConcurrency != null) {
+        options.maxConcurrency(maxConcurrency);
+      }
+      if (maxQueueDepth != null) {
+        options.maxQueueDepth(maxQueueDepth);
+      }
+      if (maxQueueWait != null) {
+        options.maxQueueWait(maxQueueWait);
+      }
+      if (existenceFilterFalsePositiveRate != null) {
+        options.existenceFilter(existenceFilterFalsePositiveRate);
+      }
+      if (closurePredicates != null && !closurePredicates.isEmpty()) {
+        options.closurePredicates(closurePredicates);
+      }
+      if (scanParallelism != null) {
+        options.scanParallelism(scanParallelism);
+      }
+      if (parallelScanThreshold != null) {
+        options.parallelScanThreshold(parallelScanThreshold);
+      }
+      return options.build();
+    }
+  }
+}
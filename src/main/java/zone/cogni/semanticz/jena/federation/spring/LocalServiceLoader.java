@@ -0,0 +1,264 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package zone.cogni.semanticz.jena.federation.spring;
+
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.DatasetFactory;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.tdb2.TDB2Factory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import zone.cogni.semanticz.jena.federation.core.ServiceRegistry;
+import zone.cogni.semanticz.jena.federation.core.ServiceUriConstants;
+import zone.cogni.semanticz.jena.federation.spring.LocalFederationProperties.FailurePolicy;
+import zone.cogni.semanticz.jena.federation.spring.LocalFederationProperties.LoadMode;
+import zone.cogni.semanticz.jena.federation.spring.LocalFederationProperties.ServiceDefinition;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads the services declared in {@link LocalFederationProperties} in parallel and
+ * registers them with the {@link ServiceRegistry}.
+ * <p>
+ * Loading runs on a bounded executor as part of the Spring lifecycle. {@link #start()}
+ * only returns once every {@link LoadMode#EAGER eager} service is registered, so the
+ * application context (and therefore the embedded web server, which starts in a later
+ * phase) only becomes ready once the hot services can answer SERVICE calls.
+ * {@link LoadMode#BACKGROUND Background} services keep loading after startup; their
+ * progress is available through {@link #getLoadStates()}.
+ */
+public class LocalServiceLoader implements SmartLifecycle {
+
+  private static final Logger log = LoggerFactory.getLogger(LocalServiceLoader.class);
+
+  /**
+   * Starts well before the default phase used by the embedded web server.
+   */
+  public static final int PHASE = SmartLifecycle.DEFAULT_PHASE / 2;
+
+  /**
+   * Loading state of a declared service.
+   */
+  public enum LoadState {
+    PENDING,
+    LOADING,
+    LOADED,
+    FAILED
+  }
+
+  private final ServiceRegistry registry;
+  private final LocalFederationProperties properties;
+  private final Map<String, LoadState> loadStates = new ConcurrentHashMap<>();
+  private final Map<String, Dataset> openedDatasets = new ConcurrentHashMap<>();
+
+  private volatile ExecutorService executor;
+  private volatile boolean running;
+
+  public LocalServiceLoader(ServiceRegistry registry, LocalFederationProperties properties) {
+    this.registry = registry;
+    this.properties = properties;
+  }
+
+  @Override
+  public void start() {
+    List<ServiceDefinition> definitions = properties.getServices();
+    running = true;
+    if (definitions.isEmpty()) {
+      return;
+    }
+
+    executor = Executors.newFixedThreadPool(Math.max(1, properties.getLoaderThreads()), new LoaderThreadFactory());
+
+    Map<String, ServiceDefinition> byUri = new LinkedHashMap<>();
+    for (ServiceDefinition definition : definitions) {
+      String serviceUri = resolveServiceUri(definition);
+      if (byUri.putIfAbsent(serviceUri, definition) != null) {
+        throw new IllegalStateException("Service URI declared more than once: " + serviceUri);
+      }
+      loadStates.put(serviceUri, LoadState.PENDING);
+    }
+
+    List<CompletableFuture<Void>> eager = new ArrayList<>();
+    List<CompletableFuture<Void>> all = new ArrayList<>();
+    byUri.forEach((serviceUri, definition) -> {
+      CompletableFuture<Void> future = CompletableFuture.runAsync(() -> load(serviceUri, definition), executor);
+      all.add(future);
+      if (definition.getLoadMode() == LoadMode.EAGER) {
+        eager.add(future);
+      }
+    });
+
+    ExecutorService loaderExecutor = executor;
+    CompletableFuture.allOf(all.toArray(CompletableFuture[]::new))
+            .whenComplete((ignored, error) -> loaderExecutor.shutdown());
+
+    log.info("Loading {} declared service(s), {} eager, on {} loader thread(s)",
+             byUri.size(), eager.size(), properties.getLoaderThreads());
+    awaitEager(eager);
+  }
+
+  private void awaitEager(List<CompletableFuture<Void>> eager) {
+    try {
+      CompletableFuture.allOf(eager.toArray(CompletableFuture[]::new))
+              .get(properties.getStartupTimeout().toMillis(), TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      executor.shutdownNow();
+      throw new IllegalStateException("Interrupted while loading eager services", e);
+    } catch (ExecutionException e) {
+      executor.shutdownNow();
+      throw new IllegalStateException("Failed to load eager service", e.getCause());
+    } catch (TimeoutException e) {
+      executor.shutdownNow();
+      throw new IllegalStateException("Eager services not loaded within " + properties.getStartupTimeout(), e);
+    }
+    log.info("All eager services loaded");
+  }
+
+  private void load(String serviceUri, ServiceDefinition definition) {
+    loadStates.put(serviceUri, LoadState.LOADING);
+    long start = System.nanoTime();
+    try {
+      Dataset dataset = openDataset(serviceUri, definition);
+      registry.registerDataset(serviceUri, dataset, definition.toServiceOptions());
+      openedDatasets.put(serviceUri, dataset);
+      loadStates.put(serviceUri, LoadState.LOADED);
+      log.info("Loaded service {} in {} ms", serviceUri, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    } catch (RuntimeException e) {
+      loadStates.put(serviceUri, LoadState.FAILED);
+      if (definition.getFailurePolicy() == FailurePolicy.IGNORE) {
+        log.warn("Failed to load service {}, continuing without it: {}", serviceUri, e.getMessage());
+        return;
+      }
+      log.error("Failed to load service {}", serviceUri, e);
+      throw e;
+    }
+  }
+
+  private Dataset openDataset(String serviceUri, ServiceDefinition definition) {
+    boolean hasFile = definition.getFile() != null;
+    boolean hasTdb2 = definition.getTdb2Location() != null;
+    if (hasFile == hasTdb2) {
+      throw new IllegalArgumentException("Service " + serviceUri + " must declare exactly one of 'file' or 'tdb2-location'");
+    }
+
+    if (hasTdb2) {
+      return TDB2Factory.connectDataset(definition.getTdb2Location());
+    }
+
+    Dataset dataset = DatasetFactory.createTxnMem();
+    dataset.executeWrite(() -> RDFDataMgr.read(dataset, definition.getFile()));
+    return dataset;
+  }
+
+  static String resolveServiceUri(ServiceDefinition definition) {
+    if (definition.getUri() != null && !definition.getUri().isBlank()) {
+      return definition.getUri().trim();
+    }
+    if (definition.getName() != null && !definition.getName().isBlank()) {
+      return ServiceUriConstants.createServiceUri(definition.getName());
+    }
+    throw new IllegalArgumentException("A declared service needs either a 'uri' or a 'name'");
+  }
+
+  @Override
+  public void stop() {
+    running = false;
+    ExecutorService loaderExecutor = executor;
+    if (loaderExecutor != null) {
+      loaderExecutor.shutdownNow();
+    }
+    openedDatasets.forEach((serviceUri, dataset) -> {
+      registry.unregisterService(serviceUri);
+      dataset.close();
+    });
+    openedDatasets.clear();
+  }
+
+  @Override
+  public boolean isRunning() {
+    return running;
+  }
+
+  @Override
+  public int getPhase() {
+    return PHASE;
+  }
+
+  /**
+   * Checks whether every eager service is loaded. Eager services that failed under
+   * {@link FailurePolicy#IGNORE} do not hold back readiness.
+   */
+  public boolean isReady() {
+    for (ServiceDefinition definition : properties.getServices()) {
+      if (definition.getLoadMode() == LoadMode.EAGER && !isSettled(definition)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Checks whether every declared service, eager or background, has finished loading.
+   * Services that failed under {@link FailurePolicy#IGNORE} count as finished.
+   */
+  public boolean isFullyLoaded() {
+    return loadStates.values().stream().noneMatch(state -> state == LoadState.PENDING || state == LoadState.LOADING);
+  }
+
+  private boolean isSettled(ServiceDefinition definition) {
+    LoadState state = loadStates.get(resolveServiceUri(definition));
+    return state == LoadState.LOADED
+           || (state == LoadState.FAILED && definition.getFailurePolicy() == FailurePolicy.IGNORE);
+  }
+
+  /**
+   * Gets the loading state of every declared service, keyed by service URI.
+   */
+  public Map<String, LoadState> getLoadStates() {
+    return Collections.unmodifiableMap(loadStates);
+  }
+
+  private static final class LoaderThreadFactory implements ThreadFactory {
+
+    private final AtomicInteger counter = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "local-federation-loader-" + counter.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
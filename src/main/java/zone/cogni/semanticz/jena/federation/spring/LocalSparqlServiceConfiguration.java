@@ -24,9 +24,11 @@ import org.apache.jena.sparql.service.ServiceExecutorRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.SmartLifecycle;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import zone.cogni.semanticz.jena.federation.core.AsyncFederatedQueryExecutor;
 import zone.cogni.semanticz.jena.federation.core.LocalSparqlServiceRegistry;
 import zone.cogni.semanticz.jena.federation.core.ServiceRegistry;
 
@@ -34,10 +36,13 @@ import zone.cogni.semanticz.jena.federation.core.ServiceRegistry;
  * Spring Boot auto-configuration for the Local SPARQL Service Registry.
  * <p>
  * This configuration automatically creates and manages a ServiceRegistry bean
- * when Spring Boot and Jena ARQ are on the classpath.
+ * when Spring Boot and Jena ARQ are on the classpath. Services declared under
+ * {@code semanticz.jena.federation.services} are loaded in parallel by the
+ * {@link LocalServiceLoader} before the application is ready.
  */
 @Configuration
 @ConditionalOnClass(org.apache.jena.query.Query.class)
+@EnableConfigurationProperties(LocalFederationProperties.class)
 public class LocalSparqlServiceConfiguration {
 
   static {
@@ -51,4 +56,15 @@ public class LocalSparqlServiceConfiguration {
     return new LocalSparqlServiceRegistry();
   }
 
+  @Bean
+  public LocalServiceLoader localServiceLoader(LocalSparqlServiceRegistry serviceRegistry,
+                                               LocalFederationProperties properties) {
+    return new LocalServiceLoader(serviceRegistry, properties);
+  }
+
+  @Bean(destroyMethod = "close")
+  public AsyncFederatedQueryExecutor asyncFederatedQueryExecutor() {
+    return new AsyncFederatedQueryExecutor();
+  }
+
 }
\ No newline at end of file
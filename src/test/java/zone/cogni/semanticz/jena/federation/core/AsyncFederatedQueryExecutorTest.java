@@ -0,0 +1,222 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package zone.cogni.semanticz.jena.federation.core;
+
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.DatasetFactory;
+import org.apache.jena.query.ResultSetRewindable;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.vocabulary.RDFS;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AsyncFederatedQueryExecutorTest {
+
+    private static final String SERVICE_URI = ServiceUriConstants.createServiceUri("test-async");
+
+    private LocalSparqlServiceRegistry registry;
+    private AsyncFederatedQueryExecutor executor;
+    private final String query = String.format("""
+            SELECT ?item ?label
+            WHERE {
+              SERVICE <%s> {
+                ?item <http://www.w3.org/2000/01/rdf-schema#label> ?label .
+              }
+            }
+            """, SERVICE_URI);
+
+    @BeforeEach
+    void setUp() {
+        registry = new LocalSparqlServiceRegistry();
+        registry.initialize();
+        Model model = ModelFactory.createDefaultModel();
+        for (int i = 0; i < 10; i++) {
+            model.add(model.createResource("http://example.org/item" + i), RDFS.label, "Item " + i);
+        }
+        registry.registerModel(SERVICE_URI, model);
+        executor = new AsyncFederatedQueryExecutor();
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.close();
+        registry.shutdown();
+    }
+
+    @Test
+    void testSelectCompletesWithCopiedResults() throws Exception {
+        // given
+        Dataset dataset = DatasetFactory.createTxnMem();
+
+        // when
+        CompletableFuture<ResultSetRewindable> future = executor.select(query, dataset);
+
+        // then
+        assertEquals(10, future.get(10, TimeUnit.SECONDS).size());
+    }
+
+    @Test
+    void testCancellingSelectAbortsTheQuery() throws Exception {
+        // given
+        Dataset dataset = DatasetFactory.createTxnMem();
+        ExecutorService singleThread = Executors.newSingleThreadExecutor();
+        String crossProduct = String.format("""
+                SELECT * WHERE {
+                  SERVICE <%1$s> { ?a ?p ?b } SERVICE <%1$s> { ?c ?q ?d } SERVICE <%1$s> { ?e ?r ?f }
+                  SERVICE <%1$s> { ?g ?s ?h } SERVICE <%1$s> { ?i ?t ?j } SERVICE <%1$s> { ?k ?u ?l }
+                  SERVICE <%1$s> { ?m ?v ?n } SERVICE <%1$s> { ?o ?w ?x } SERVICE <%1$s> { ?y ?z ?zz }
+                }
+                """, SERVICE_URI);
+        try (AsyncFederatedQueryExecutor singleThreadExecutor = new AsyncFederatedQueryExecutor(singleThread)) {
+            CompletableFuture<ResultSetRewindable> endless = singleThreadExecutor.select(crossProduct, dataset);
+            Thread.sleep(200);
+
+            // when
+            endless.cancel(true);
+            CompletableFuture<ResultSetRewindable> next = singleThreadExecutor.select(query, dataset);
+
+            // then
+            assertEquals(10, next.get(10, TimeUnit.SECONDS).size());
+        } finally {
+            singleThread.shutdownNow();
+        }
+    }
+
+    @Test
+    void testInvalidRequestIsSignalledByTheProducer() throws Exception {
+        // given
+        Dataset dataset = DatasetFactory.createTxnMem();
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+
+        // when
+        executor.publish(query, dataset).subscribe(subscriber);
+        subscriber.subscribed.await(10, TimeUnit.SECONDS);
+        subscriber.subscription.request(0);
+
+        // then
+        assertTrue(subscriber.completed.await(10, TimeUnit.SECONDS));
+        assertInstanceOf(IllegalArgumentException.class, subscriber.error);
+        assertNotEquals(Thread.currentThread(), subscriber.terminatedOn);
+        assertEquals(0, subscriber.received.size());
+    }
+
+    @Test
+    void testPublisherEmitsOnlyRequestedBindings() throws Exception {
+        // given
+        Dataset dataset = DatasetFactory.createTxnMem();
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+
+        // when
+        executor.publish(query, dataset).subscribe(subscriber);
+        subscriber.subscribed.await(10, TimeUnit.SECONDS);
+        subscriber.subscription.request(3);
+        Thread.sleep(200);
+        int afterFirstRequest = subscriber.received.size();
+        subscriber.subscription.request(Long.MAX_VALUE);
+
+        // then
+        assertTrue(subscriber.completed.await(10, TimeUnit.SECONDS));
+        assertEquals(3, afterFirstRequest);
+        assertEquals(10, subscriber.received.size());
+    }
+
+    @Test
+    void testSubscriberFailingInOnNextIsCancelledNotSignalled() throws Exception {
+        // given
+        Dataset dataset = DatasetFactory.createTxnMem();
+        RecordingSubscriber subscriber = new RecordingSubscriber(3);
+
+        // when
+        executor.publish(query, dataset).subscribe(subscriber);
+        subscriber.subscribed.await(10, TimeUnit.SECONDS);
+        subscriber.subscription.request(Long.MAX_VALUE);
+
+        // then
+        assertFalse(subscriber.completed.await(500, TimeUnit.MILLISECONDS));
+        assertEquals(3, subscriber.received.size());
+    }
+
+    private static final class RecordingSubscriber implements Flow.Subscriber<Binding> {
+
+        private final List<Binding> received = new CopyOnWriteArrayList<>();
+        private final CountDownLatch subscribed = new CountDownLatch(1);
+        private final CountDownLatch completed = new CountDownLatch(1);
+        private final int failingAt;
+        private volatile Flow.Subscription subscription;
+        private volatile Throwable error;
+        private volatile Thread terminatedOn;
+
+        RecordingSubscriber() {
+            this(-1);
+        }
+
+        /**
+         * Creates a subscriber that throws from onNext once it received the given number of bindings.
+         */
+        RecordingSubscriber(int failingAt) {
+            this.failingAt = failingAt;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscribed.countDown();
+        }
+
+        @Override
+        public void onNext(Binding binding) {
+            if (received.size() == failingAt) {
+                throw new IllegalStateException("Subscriber failure");
+            }
+            received.add(binding);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+            terminatedOn = Thread.currentThread();
+            completed.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            terminatedOn = Thread.currentThread();
+            completed.countDown();
+        }
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package zone.cogni.semanticz.jena.federation.core;
+
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.QueryExecution;
+import org.apache.jena.query.QueryExecutionFactory;
+import org.apache.jena.query.ResultSetFormatter;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.Property;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.tdb2.TDB2Factory;
+import org.apache.jena.vocabulary.RDFS;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Mixed federated query workloads run from many threads against Model and TDB2 backed services,
+ * with concurrent writers, reporting throughput and latency percentiles.
+ * <p>
+ * Excluded from {@code test}; run with {@code ./gradlew loadTest}. The workload is sized through
+ * the {@code loadTest.*} system properties, which the Gradle task forwards from project properties
+ * (e.g. {@code ./gradlew loadTest -PloadTest.threads=64 -PloadTest.durationSeconds=30}). Virtual
+ * threads are exercised when the test JVM supports them ({@code -PloadTest.javaVersion=21}).
+ */
+@Tag("load")
+class LocalSparqlServiceRegistryLoadTest {
+
+    private static final Logger log = LoggerFactory.getLogger(LocalSparqlServiceRegistryLoadTest.class);
+
+    private static final String VOCABULARY = ServiceUriConstants.createServiceUri("load-vocabulary");
+    private static final String STORE = ServiceUriConstants.createServiceUri("load-store");
+    private static final String EX = "http://example.org/";
+
+    private static final int THREADS = Integer.getInteger("loadTest.threads", 32);
+    private static final int WRITERS = Integer.getInteger("loadTest.writers", 2);
+    private static final int DURATION_SECONDS = Integer.getInteger("loadTest.durationSeconds", 10);
+    private static final int ENTITIES = Integer.getInteger("loadTest.entities", 2_000);
+    private static final long SEED = Long.getLong("loadTest.seed", 42L);
+
+    private final Map<String, String> workloads = new LinkedHashMap<>();
+
+    private LocalSparqlServiceRegistry registry;
+    private Dataset store;
+
+    @BeforeEach
+    void setUp() {
+        registry = new LocalSparqlServiceRegistry();
+        registry.initialize();
+
+        Model vocabulary = ModelFactory.createDefaultModel();
+        for (int i = 0; i < 50; i++) {
+            vocabulary.add(vocabulary.createResource(EX + "type" + i), RDFS.label, "Type " + i);
+        }
+        registry.registerModel(VOCABULARY, vocabulary);
+
+        store = TDB2Factory.createDataset();
+        store.executeWrite(() -> {
+            Model model = store.getDefaultModel();
+            Property type = model.createProperty(EX + "type");
+            for (int i = 0; i < ENTITIES; i++) {
+                Resource entity = model.createResource(EX + "entity" + i);
+                entity.addProperty(RDFS.label, "Entity " + i);
+                entity.addProperty(type, model.createResource(EX + "type" + (i % 50)));
+            }
+        });
+        registry.registerDataset(STORE, store);
+
+        workloads.put("lookup", String.format("""
+            SELECT ?label WHERE { SERVICE <%s> { <%stype%%d> <%s> ?label } }
+            """, VOCABULARY, EX, RDFS.label.getURI()));
+        workloads.put("bind-join", String.format("""
+            SELECT ?entity ?typeLabel WHERE {
+              SERVICE <%s> { ?entity <%stype> ?type FILTER(?type = <%stype%%d>) }
+              SERVICE <%s> { ?type <%s> ?typeLabel }
+            }
+            """, STORE, EX, EX, VOCABULARY, RDFS.label.getURI()));
+        workloads.put("aggregate", String.format("""
+            SELECT ?type (COUNT(?entity) AS ?count) WHERE {
+              SERVICE <%s> { ?entity <%stype> ?type FILTER(?type = <%stype%%d>) }
+            } GROUP BY ?type
+            """, STORE, EX, EX));
+    }
+
+    @AfterEach
+    void tearDown() {
+        registry.shutdown();
+        store.close();
+    }
+
+    @Test
+    void testMixedWorkloadOnPlatformThreads() throws InterruptedException {
+        run("platform threads", Executors.defaultThreadFactory());
+    }
+
+    @Test
+    void testMixedWorkloadOnVirtualThreads() throws InterruptedException {
+        ThreadFactory virtual = virtualThreadFactory();
+        assumeTrue(virtual != null, () -> "Virtual threads not supported by Java " + Runtime.version().feature());
+        run("virtual threads", virtual);
+    }
+
+    private void run(String label, ThreadFactory threadFactory) throws InterruptedException {
+        // given
+        Map<String, LatencyRecorder> recorders = new ConcurrentHashMap<>();
+        workloads.keySet().forEach(name -> recorders.put(name, new LatencyRecorder()));
+        recorders.put("write", new LatencyRecorder());
+        recorders.put("register", new LatencyRecorder());
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicLong deadline = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        List<String> names = new ArrayList<>(workloads.keySet());
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS + WRITERS, threadFactory);
+        for (int t = 0; t < THREADS; t++) {
+            Random random = new Random(SEED + t);
+            executor.execute(worker(start, deadline, failure, () -> {
+                String name = names.get(random.nextInt(names.size()));
+                String query = String.format(workloads.get(name), random.nextInt(50), random.nextInt(50));
+                long begin = System.nanoTime();
+                try (QueryExecution qExec = QueryExecutionFactory.create(query, ModelFactory.createDefaultModel())) {
+                    ResultSetFormatter.consume(qExec.execSelect());
+                }
+                recorders.get(name).record(System.nanoTime() - begin);
+            }));
+        }
+        for (int w = 0; w < WRITERS; w++) {
+            Random random = new Random(-SEED - w);
+            String ephemeral = ServiceUriConstants.createServiceUri("load-ephemeral-" + w);
+            executor.execute(worker(start, deadline, failure, () -> {
+                long begin = System.nanoTime();
+                store.executeWrite(() -> store.getDefaultModel().add(
+                        store.getDefaultModel().createResource(EX + "written" + random.nextInt(ENTITIES)),
+                        RDFS.label, "Written"));
+                recorders.get("write").record(System.nanoTime() - begin);
+
+                begin = System.nanoTime();
+                registry.registerModel(ephemeral, ModelFactory.createDefaultModel());
+                registry.unregisterService(ephemeral);
+                recorders.get("register").record(System.nanoTime() - begin);
+            }));
+        }
+
+        // when
+        long begin = System.nanoTime();
+        deadline.set(begin + TimeUnit.SECONDS.toNanos(DURATION_SECONDS));
+        start.countDown();
+        executor.shutdown();
+        boolean finished = executor.awaitTermination(DURATION_SECONDS + 60L, TimeUnit.SECONDS);
+        double seconds = (System.nanoTime() - begin) / 1e9;
+
+        // then
+        report(label, recorders, seconds);
+        assertTrue(finished, "Load test workers did not finish");
+        assertNull(failure.get(), () -> "Load test worker failed: " + failure.get());
+        assertTrue(recorders.values().stream().allMatch(recorder -> recorder.count() > 0));
+    }
+
+    private static Runnable worker(CountDownLatch start, AtomicLong deadline, AtomicReference<Throwable> failure,
+                                   Runnable operation) {
+        return () -> {
+            try {
+                start.await();
+                while (System.nanoTime() < deadline.get() && failure.get() == null) {
+                    operation.run();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            }
+        };
+    }
+
+    private static void report(String label, Map<String, LatencyRecorder> recorders, double seconds) {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("Load test on %s: %d reader(s), %d writer(s), %.1f s%n",
+                                    label, THREADS, WRITERS, seconds));
+        report.append(String.format("%-10s %10s %10s %10s %10s %10s%n",
+                                    "operation", "count", "ops/s", "p50 ms", "p99 ms", "p999 ms"));
+        recorders.forEach((name, recorder) -> {
+            long[] sorted = recorder.sorted();
+            report.append(String.format("%-10s %10d %10.1f %10.3f %10.3f %10.3f%n",
+                                        name, sorted.length, sorted.length / seconds,
+                                        percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 0.999)));
+        });
+        log.info("{}", report.toString().stripTrailing());
+    }
+
+    /**
+     * Gets a nearest-rank percentile of sorted nanosecond latencies, in milliseconds.
+     */
+    private static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return Double.NaN;
+        }
+        int rank = (int) Math.ceil(percentile * sorted.length);
+        return sorted[Math.max(0, rank - 1)] / 1e6;
+    }
+
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Object builder = ofVirtual.invoke(null);
+            Method factory = ofVirtual.getReturnType().getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Collects latencies without contention: every thread appends to its own buffer. The
+     * buffers are read once the workers have terminated.
+     */
+    private static final class LatencyRecorder {
+
+        private final List<Buffer> buffers = new ArrayList<>();
+        private final ThreadLocal<Buffer> local = ThreadLocal.withInitial(this::newBuffer);
+
+        private synchronized Buffer newBuffer() {
+            Buffer buffer = new Buffer();
+            buffers.add(buffer);
+            return buffer;
+        }
+
+        void record(long nanos) {
+            local.get().add(nanos);
+        }
+
+        synchronized long count() {
+            return buffers.stream().mapToLong(buffer -> buffer.size).sum();
+        }
+
+        synchronized long[] sorted() {
+            long[] all = buffers.stream()
+                    .flatMapToLong(buffer -> Arrays.stream(buffer.values, 0, buffer.size))
+                    .toArray();
+            Arrays.sort(all);
+            return all;
+        }
+
+        private static final class Buffer {
+
+            private long[] values = new long[1024];
+            private int size;
+
+            void add(long nanos) {
+                if (size == values.length) {
+                    values = Arrays.copyOf(values, size * 2);
+                }
+                values[size++] = nanos;
+            }
+        }
+    }
+}
@@ -19,10 +19,16 @@
 
 package zone.cogni.semanticz.jena.federation.core;
 
+import org.apache.jena.fuseki.main.FusekiServer;
+import org.apache.jena.graph.GraphEvents;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.query.ARQ;
 import org.apache.jena.query.Dataset;
 import org.apache.jena.query.DatasetFactory;
 import org.apache.jena.query.QueryExecution;
 import org.apache.jena.query.QueryExecutionFactory;
+import org.apache.jena.query.QueryFactory;
 import org.apache.jena.query.QuerySolution;
 import org.apache.jena.query.ResultSet;
 import org.apache.jena.query.ResultSetFactory;
@@ -30,16 +36,45 @@ import org.apache.jena.query.ResultSetFormatter;
 import org.apache.jena.query.ResultSetRewindable;
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.Property;
 import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.rdf.model.ResourceFactory;
+import org.apache.jena.sparql.algebra.Algebra;
+import org.apache.jena.sparql.algebra.Op;
+import org.apache.jena.sparql.algebra.OpVisitorBase;
+import org.apache.jena.sparql.algebra.OpWalker;
+import org.apache.jena.sparql.algebra.op.OpService;
+import org.apache.jena.sparql.algebra.op.OpTopN;
+import org.apache.jena.sparql.core.DatasetGraphFactory;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.ExecutionContext;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.engine.iterator.QueryIterPlainWrapper;
+import org.apache.jena.sparql.util.Context;
+import org.apache.jena.tdb2.TDB2;
+import org.apache.jena.tdb2.TDB2Factory;
 import org.apache.jena.vocabulary.RDF;
 import org.apache.jena.vocabulary.RDFS;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class LocalSparqlServiceRegistryTest {
@@ -293,6 +328,1234 @@ class LocalSparqlServiceRegistryTest {
         }
     }
 
+    @Test
+    void testProfileRecordsLocalServiceCalls() {
+        // given
+        String serviceUri = ServiceUriConstants.createServiceUri("test-profiled");
+        registry.initialize();
+        registry.registerModel(serviceUri, testModel);
+        Model primaryModel = ModelFactory.createDefaultModel();
+        FederationProfile profile = new FederationProfile();
+
+        String queryString = String.format("""
+            PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>
+
+            SELECT ?person ?label
+            WHERE {
+              SERVICE <%s> {
+                ?person rdfs:label ?label .
+              }
+            }
+            """, serviceUri);
+
+        // when
+        try (QueryExecution qExec = QueryExecutionFactory.create(queryString, primaryModel)) {
+            qExec.getContext().set(LocalFederationSymbols.PROFILE, profile);
+            ResultSetFormatter.consume(qExec.execSelect());
+        }
+
+        // then
+        assertEquals(1, profile.getServices().size());
+        ServiceProfile serviceProfile = profile.getServices().get(0);
+        assertEquals(serviceUri, serviceProfile.getServiceUri());
+        assertEquals(1, serviceProfile.getInvocations());
+        assertEquals(1, serviceProfile.getInputRows());
+        assertEquals(1, serviceProfile.getOutputRows());
+        assertNotNull(serviceProfile.getExecutedSubOp());
+        assertTrue(profile.render().contains(serviceUri));
+    }
+
+    @Test
+    void testProfileKeepsEqualServiceClausesApart() {
+        // given
+        String serviceUri = ServiceUriConstants.createServiceUri("test-profiled-twice");
+        registry.initialize();
+        registry.registerModel(serviceUri, testModel);
+        FederationProfile profile = new FederationProfile();
+
+        String queryString = String.format("""
+            PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>
+
+            SELECT ?person ?label
+            WHERE {
+              { SERVICE <%1$s> { ?person rdfs:label ?label . } }
+              UNION
+              { SERVICE <%1$s> { ?person rdfs:label ?label . } }
+            }
+            """, serviceUri);
+
+        // when
+        try (QueryExecution qExec = QueryExecutionFactory.create(queryString, ModelFactory.createDefaultModel())) {
+            qExec.getContext().set(LocalFederationSymbols.PROFILE, profile);
+            ResultSetFormatter.consume(qExec.execSelect());
+        }
+
+        // then
+        assertEquals(2, profile.getServices().size());
+        for (ServiceProfile serviceProfile : profile.getServices()) {
+            assertEquals(1, serviceProfile.getInvocations());
+        }
+    }
+
+    @Test
+    void testAdaptiveJoinSwitchesToHashJoinWithinRowBudget() {
+        // given
+        String serviceUri = ServiceUriConstants.createServiceUri("test-labels");
+        registry.initialize();
+        registry.setAdaptiveJoin(true);
+        registry.setAdaptiveJoinThreshold(5);
+        registry.setHashJoinMaxRows(1_000);
+        Model primaryModel = personsWithLabels(serviceUri);
+
+        // when
+        int first = countResults(personLabelsQuery(serviceUri), primaryModel);
+        int second = countResults(personLabelsQuery(serviceUri), primaryModel);
+
+        // then
+        assertEquals(50, first);
+        assertEquals(50, second);
+        assertEquals(List.of(JoinStrategy.HASH_JOIN), List.copyOf(registry.getLearnedJoinStrategies().values()));
+    }
+
+    @Test
+    void testAdaptiveJoinWithoutRowBudgetStaysPerBinding() {
+        // given
+        String serviceUri = ServiceUriConstants.createServiceUri("test-labels-unbounded");
+        registry.initialize();
+        registry.setAdaptiveJoin(true);
+        registry.setAdaptiveJoinThreshold(5);
+        Model primaryModel = personsWithLabels(serviceUri);
+
+        // when
+        int results = countResults(personLabelsQuery(serviceUri), primaryModel);
+
+        // then
+        assertEquals(50, results);
+        assertEquals(List.of(JoinStrategy.PER_BINDING), List.copyOf(registry.getLearnedJoinStrategies().values()));
+    }
+
+    private Model personsWithLabels(String serviceUri) {
+        Model primaryModel = ModelFactory.createDefaultModel();
+        Model labelModel = ModelFactory.createDefaultModel();
+        for (int i = 0; i < 50; i++) {
+            Resource person = primaryModel.createResource("http://example.org/person" + i);
+            person.addProperty(RDF.type, primaryModel.createResource("http://example.org/Person"));
+            labelModel.add(labelModel.createResource(person.getURI()), RDFS.label, "Person " + i);
+        }
+        registry.registerModel(serviceUri, labelModel);
+        return primaryModel;
+    }
+
+    private static String personLabelsQuery(String serviceUri) {
+        return String.format("""
+            PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>
+
+            SELECT ?person ?label
+            WHERE {
+              ?person a <http://example.org/Person> .
+              SERVICE <%s> {
+                ?person rdfs:label ?label .
+              }
+            }
+            """, serviceUri);
+    }
+
+    @Test
+    void testBindingIndependentServiceIsEvaluatedOncePerQuery() {
+        // given
+        String serviceUri = ServiceUriConstants.createServiceUri("test-memo");
+        registry.initialize();
+        registry.registerModel(serviceUri, testModel);
+        Model primaryModel = ModelFactory.createDefaultModel();
+        FederationProfile profile = new FederationProfile();
+
+        String queryString = String.format("""
+            PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>
+
+            SELECT ?x ?person ?label
+            WHERE {
+              VALUES ?x { 1 2 3 }
+              SERVICE <%s> {
+                ?person rdfs:label ?label .
+              }
+            }
+            """, serviceUri);
+
+        // when
+        int count;
+        try (QueryExecution qExec = QueryExecutionFactory.create(queryString, primaryModel)) {
+            qExec.getContext().set(LocalFederationSymbols.PROFILE, profile);
+            count = ResultSetFormatter.consume(qExec.execSelect());
+        }
+
+        // then
+        assertEquals(3, count);
+        assertEquals(1, profile.getServices().get(0).getInvocations());
+    }
+
+    @Test
+    void testResultsAboveSpillThresholdAreStreamedBack() {
+        // given
+        String serviceUri = ServiceUriConstants.createServiceUri("test-spill");
+        registry.initialize();
+        Model largeModel = ModelFactory.createDefaultModel();
+        for (int i = 0; i < 100; i++) {
+            largeModel.add(largeModel.createResource("http://example.org/item" + i), RDFS.label, "Item " + i);
+        }
+        registry.registerModel(serviceUri, largeModel, ServiceOptions.builder().spillThreshold(10).build());
+
+        String queryString = String.format("""
+            PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>
+
+            SELECT ?item ?label
+            WHERE {
+              SERVICE <%s> {
+                ?item rdfs:label ?label .
+              }
+            }
+            """, serviceUri);
+
+        FederationProfile profile = new FederationProfile();
+
+        // when
+        int count;
+        try (QueryExecution qExec = QueryExecutionFactory.create(queryString, ModelFactory.createDefaultModel())) {
+            qExec.getContext().set(LocalFederationSymbols.PROFILE, profile);
+            count = ResultSetFormatter.consume(qExec.execSelect());
+        }
+
+        // then
+        assertEquals(100, count);
+        assertEquals(1, profile.getServices().get(0).getSpilledInvocations());
+    }
+
+    @Test
+    void testRegistryAttachedToDatasetContextOnly() {
+        // given
+        String serviceUri = ServiceUriConstants.createServiceUri("test-scoped");
+        registry.registerModel(serviceUri, testModel);
+        Dataset tenantDataset = DatasetFactory.createTxnMem();
+        Dataset otherDataset = DatasetFactory.createTxnMem();
+
+        String queryString = String.format("""
+            PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>
+
+            SELECT ?person ?label
+            WHERE {
+              SERVICE <%s> {
+                ?person rdfs:label ?label .
+              }
+            }
+            """, serviceUri);
+
+        // when
+        registry.attachTo(tenantDataset);
+
+        // then - the tenant's dataset resolves the service, the global chain is untouched
+        assertFalse(registry.isInitialized());
+        assertEquals(1, registry.getAttachedContextCount());
+        assertTrue(registry.isTopKPushdown(tenantDataset.getContext()));
+        assertFalse(registry.isTopKPushdown(otherDataset.getContext()));
+        try (QueryExecution qExec = QueryExecutionFactory.create(queryString, tenantDataset)) {
+            assertEquals(1, ResultSetFormatter.consume(qExec.execSelect()));
+        }
+        assertThrows(RuntimeException.class, () -> {
+            try (QueryExecution qExec = QueryExecutionFactory.create(queryString, otherDataset)) {
+                ResultSetFormatter.consume(qExec.execSelect());
+            }
+        });
+
+        // when
+        boolean detached = registry.detachFrom(tenantDataset.getContext());
+
+        // then
+        assertTrue(detached);
+        assertEquals(0, registry.getAttachedContextCount());
+        assertFalse(registry.isTopKPushdown(tenantDataset.getContext()));
+        assertFalse(registry.detachFrom(tenantDataset.getContext()));
+    }
+
+    @Test
+    void testTableServiceAnswersBindJoinByKeyLookup() {
+        // given
+        String serviceUri = ServiceUriConstants.createServiceUri("test-countries");
+        registry.initialize();
+        TabularSource countries = TabularSource.builder()
+                .keyColumn("uri")
+                .column("name", RDFS.label.getURI())
+                .indexedColumn("iso3", "http://example.org/iso3")
+                .row(NodeFactory.createURI("http://example.org/BE"), literal("Belgium"), literal("BEL"))
+                .row(NodeFactory.createURI("http://example.org/FR"), literal("France"), literal("FRA"))
+                .row(NodeFactory.createURI("http://example.org/NL"), literal("Netherlands"), null)
+                .build();
+        registry.registerTable(serviceUri, countries);
+
+        Model primaryModel = ModelFactory.createDefaultModel();
+        primaryModel.add(primaryModel.createResource("http://example.org/person1"),
+                         primaryModel.createProperty("http://example.org/country"),
+                         primaryModel.createResource("http://example.org/FR"));
+
+        String queryString = String.format("""
+            PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>
+            PREFIX ex: <http://example.org/>
+
+            SELECT ?person ?name ?iso3
+            WHERE {
+              ?person ex:country ?country .
+              SERVICE <%s> {
+                ?country rdfs:label ?name ;
+                         ex:iso3 ?iso3 .
+              }
+            }
+            """, serviceUri);
+
+        // when
+        List<QuerySolution> solutions;
+        try (QueryExecution qExec = QueryExecutionFactory.create(queryString, primaryModel)) {
+            solutions = ResultSetFormatter.toList(qExec.execSelect());
+        }
+
+        // then
+        assertEquals(1, solutions.size());
+        assertEquals("France", solutions.get(0).getLiteral("name").getString());
+        assertEquals("FRA", solutions.get(0).getLiteral("iso3").getString());
+        assertEquals(1, registry.getTableCount());
+        assertEquals(2, countResults(String.format(
+                "SELECT * WHERE { SERVICE <%s> { ?c <http://example.org/iso3> ?iso3 } }", serviceUri), primaryModel));
+        assertEquals(5, countResults(String.format(
+                "SELECT * WHERE { SERVICE <%s> { ?c ?p ?o } }", serviceUri), primaryModel));
+    }
+
+    @Test
+    void testTableRowsSharingAKeyAreMatchedAsOneSubject() {
+        // given
+        String serviceUri = ServiceUriConstants.createServiceUri("test-country-names");
+        registry.initialize();
+        Node belgium = NodeFactory.createURI("http://example.org/BE");
+        TabularSource names = TabularSource.builder()
+                .keyColumn("uri")
+                .column("name", RDFS.label.getURI())
+                .indexedColumn("iso3", "http://example.org/iso3")
+                .row(belgium, literal("Belgium"), literal("BEL"))
+                .row(belgium, literal("Belgique"), null)
+                .row(belgium, literal("Belgium"), null)
+                .build();
+        registry.registerTable(serviceUri, names);
+        String queryString = String.format("""
+            PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>
+            PREFIX ex: <http://example.org/>
+
+            SELECT ?country ?name
+            WHERE {
+              SERVICE <%s> {
+                ?country ex:iso3 "BEL" ;
+                         rdfs:label ?name .
+              }
+            }
+            """, serviceUri);
+
+        // when
+        int direct = countResults(queryString, ModelFactory.createDefaultModel());
+        int overTriples = countResults(String.format(
+                "SELECT * WHERE { SERVICE <%s> { ?country <http://example.org/iso3> \"BEL\" ; ?p ?name } }", serviceUri),
+                ModelFactory.createDefaultModel());
+
+        // then
+        assertEquals(2, direct);
+        assertEquals(3, overTriples);
+    }
+
+    @Test
+    void testViewIsRefreshedAfterRelevantChangesOnly() {
+        // given
+        String sourceUri = ServiceUriConstants.createServiceUri("test-org");
+        String viewUri = ServiceUriConstants.createServiceUri("test-member-counts");
+        registry.initialize();
+        Model orgModel = ModelFactory.createDefaultModel();
+        Resource team = orgModel.createResource("http://example.org/team1");
+        orgModel.add(orgModel.createResource("http://example.org/alice"), orgModel.createProperty("http://example.org/memberOf"), team);
+        registry.registerModel(sourceUri, orgModel);
+        registry.registerView(viewUri, ViewDefinition.builder(sourceUri, """
+                    SELECT ?team (COUNT(?member) AS ?count)
+                    WHERE { ?member <http://example.org/memberOf> ?team }
+                    GROUP BY ?team
+                    """)
+                .keyVariable("team")
+                .variable("count", "http://example.org/memberCount")
+                .build());
+
+        String queryString = String.format("""
+            SELECT ?count
+            WHERE {
+              SERVICE <%s> {
+                <http://example.org/team1> <http://example.org/memberCount> ?count .
+              }
+            }
+            """, viewUri);
+
+        // when
+        int before = memberCount(queryString);
+        orgModel.add(team, RDFS.label, "Team 1");
+        int afterIrrelevantChange = memberCount(queryString);
+        orgModel.add(orgModel.createResource("http://example.org/bob"), orgModel.createProperty("http://example.org/memberOf"), team);
+        int afterRelevantChange = memberCount(queryString);
+        orgModel.notifyEvent(GraphEvents.startRead);
+        orgModel.removeAll(null, RDFS.label, null);
+        int afterIrrelevantRemoval = memberCount(queryString);
+        orgModel.removeAll(orgModel.createResource("http://example.org/bob"), null, null);
+        int afterBulkRemoval = memberCount(queryString);
+
+        // then
+        assertEquals(1, before);
+        assertEquals(1, afterIrrelevantChange);
+        assertEquals(2, afterRelevantChange);
+        assertEquals(2, afterIrrelevantRemoval);
+        assertEquals(1, afterBulkRemoval);
+        assertEquals(3, registry.getViewRefreshCount(viewUri));
+        assertTrue(registry.refreshView(viewUri));
+        assertFalse(registry.refreshView(sourceUri));
+    }
+
+    @Test
+    void testViewFollowsReplacedSource() throws Exception {
+        // given
+        String sourceUri = ServiceUriConstants.createServiceUri("test-org-replaced");
+        String viewUri = ServiceUriConstants.createServiceUri("test-member-counts-replaced");
+        Property memberOf = ResourceFactory.createProperty("http://example.org/memberOf");
+        Resource team = ResourceFactory.createResource("http://example.org/team1");
+        registry.initialize();
+        Model original = ModelFactory.createDefaultModel();
+        original.add(original.createResource("http://example.org/alice"), memberOf, team);
+        registry.registerModel(sourceUri, original);
+        registry.registerView(viewUri, ViewDefinition.builder(sourceUri, """
+                    SELECT ?team (COUNT(?member) AS ?count)
+                    WHERE { ?member <http://example.org/memberOf> ?team }
+                    GROUP BY ?team
+                    """)
+                .keyVariable("team")
+                .variable("count", "http://example.org/memberCount")
+                .build());
+        Model reloaded = ModelFactory.createDefaultModel();
+        reloaded.add(reloaded.createResource("http://example.org/alice"), memberOf, team);
+        reloaded.add(reloaded.createResource("http://example.org/bob"), memberOf, team);
+
+        String queryString = String.format("""
+            SELECT ?count
+            WHERE {
+              SERVICE <%s> {
+                <http://example.org/team1> <http://example.org/memberCount> ?count .
+              }
+            }
+            """, viewUri);
+
+        // when
+        int before = memberCount(queryString);
+        registry.replaceModel(sourceUri, () -> reloaded).get(10, TimeUnit.SECONDS);
+        int afterReplace = memberCount(queryString);
+        reloaded.add(reloaded.createResource("http://example.org/carol"), memberOf, team);
+        int afterChangeToReloaded = memberCount(queryString);
+        long refreshes = registry.getViewRefreshCount(viewUri);
+        registry.unregisterService(sourceUri);
+
+        // then
+        assertEquals(1, before);
+        assertEquals(2, afterReplace);
+        assertEquals(3, afterChangeToReloaded);
+        assertEquals(3, refreshes);
+        assertTrue(registry.isRegistered(viewUri));
+        assertEquals(0, countResults(queryString, ModelFactory.createDefaultModel()));
+    }
+
+    @Test
+    void testViewOverTdb2DatasetIsRefreshedAfterCommit() {
+        // given
+        String sourceUri = ServiceUriConstants.createServiceUri("test-org-tdb2");
+        String viewUri = ServiceUriConstants.createServiceUri("test-member-counts-tdb2");
+        Property memberOf = ResourceFactory.createProperty("http://example.org/memberOf");
+        Resource team = ResourceFactory.createResource("http://example.org/team1");
+        registry.initialize();
+        Dataset tdb2 = TDB2Factory.createDataset();
+        tdb2.executeWrite(() -> tdb2.getDefaultModel()
+                .add(ResourceFactory.createResource("http://example.org/alice"), memberOf, team));
+        registry.registerDataset(sourceUri, tdb2);
+        registry.registerView(viewUri, ViewDefinition.builder(sourceUri, """
+                    SELECT ?team (COUNT(?member) AS ?count)
+                    WHERE { ?member <http://example.org/memberOf> ?team }
+                    GROUP BY ?team
+                    """)
+                .keyVariable("team")
+                .variable("count", "http://example.org/memberCount")
+                .build());
+
+        String queryString = String.format("""
+            SELECT ?count
+            WHERE {
+              SERVICE <%s> {
+                <http://example.org/team1> <http://example.org/memberCount> ?count .
+              }
+            }
+            """, viewUri);
+
+        // when
+        int before = memberCount(queryString);
+        tdb2.executeRead(() -> tdb2.getDefaultModel().size());
+        int afterRead = memberCount(queryString);
+        tdb2.executeWrite(() -> tdb2.getDefaultModel()
+                .add(ResourceFactory.createResource("http://example.org/bob"), memberOf, team));
+        int afterCommit = memberCount(queryString);
+
+        // then
+        assertEquals(1, before);
+        assertEquals(1, afterRead);
+        assertEquals(2, afterCommit);
+        assertEquals(2, registry.getViewRefreshCount(viewUri));
+    }
+
+    @Test
+    void testViewOverInMemoryDatasetIsRejected() {
+        // given
+        String sourceUri = ServiceUriConstants.createServiceUri("test-org-in-memory");
+        registry.registerDataset(sourceUri, DatasetFactory.createTxnMem());
+        ViewDefinition view = ViewDefinition.builder(sourceUri, "SELECT ?s ?o WHERE { ?s <http://example.org/p> ?o }")
+                .keyVariable("s")
+                .variable("o", "http://example.org/p")
+                .build();
+
+        // when/then
+        assertThrows(IllegalArgumentException.class, () -> registry.registerView(
+                ServiceUriConstants.createServiceUri("test-view-in-memory"), view));
+    }
+
+    private static int memberCount(String queryString) {
+        try (QueryExecution qExec = QueryExecutionFactory.create(queryString, ModelFactory.createDefaultModel())) {
+            return qExec.execSelect().next().getLiteral("count").getInt();
+        }
+    }
+
+    private static Node literal(String value) {
+        return ResourceFactory.createPlainLiteral(value).asNode();
+    }
+
+    @Test
+    void testMirrorAnswersLocallyOnceSyncedAndFallsThroughWhileCold() {
+        // given
+        Dataset remote = DatasetFactory.createTxnMem();
+        remote.executeWrite(() -> {
+            remote.getDefaultModel().add(remote.getDefaultModel().createResource("http://example.org/a"), RDFS.label, "A");
+            remote.getDefaultModel().add(remote.getDefaultModel().createResource("http://example.org/b"), RDFS.label, "B");
+        });
+        FusekiServer server = FusekiServer.create().port(0).add("/remote", remote.asDatasetGraph()).build().start();
+        try {
+            String endpoint = server.datasetURL("/remote");
+            registry.initialize();
+            registry.registerMirror(endpoint, DatasetFactory.createTxnMem(), MirrorOptions.builder().pageSize(1).build());
+            String queryString = String.format("""
+                PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>
+
+                SELECT ?label
+                WHERE {
+                  SERVICE <%s> {
+                    ?item rdfs:label ?label .
+                  }
+                }
+                """, endpoint);
+
+            // when/then - the cold mirror leaves the call to the endpoint
+            assertFalse(registry.isMirrorFresh(endpoint));
+            assertEquals(2, countResults(queryString, ModelFactory.createDefaultModel()));
+
+            // when
+            assertTrue(registry.syncMirror(endpoint));
+            server.stop();
+
+            // then - the synced mirror answers without the endpoint
+            assertTrue(registry.isMirrorFresh(endpoint));
+            assertEquals(2, countResults(queryString, ModelFactory.createDefaultModel()));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testPagedMirrorRequiresOrderedSyncQuery() {
+        // given
+        String unordered = "CONSTRUCT { ?s ?p ?o } WHERE { ?s ?p ?o }";
+
+        // when/then
+        assertTrue(MirrorOptions.defaults().getSyncQuery().hasOrderBy());
+        assertThrows(IllegalArgumentException.class, () -> MirrorOptions.builder().syncQuery(unordered).build());
+        assertEquals(ServiceOptions.UNLIMITED,
+                     MirrorOptions.builder().syncQuery(unordered).pageSize(ServiceOptions.UNLIMITED).build().getPageSize());
+    }
+
+    @Test
+    void testExistenceFilterSkipsCallsForAbsentIris() {
+        // given
+        String serviceUri = ServiceUriConstants.createServiceUri("test-existence");
+        registry.initialize();
+        registry.registerModel(serviceUri, testModel, ServiceOptions.builder().existenceFilter(0.001).build());
+
+        String queryString = String.format("""
+            PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>
+
+            SELECT ?person ?label
+            WHERE {
+              VALUES ?person { <http://example.org/person1> <http://example.org/missing1> <http://example.org/missing2> }
+              SERVICE <%s> {
+                ?person rdfs:label ?label .
+              }
+            }
+            """, serviceUri);
+
+        // when
+        int before = countResults(queryString, ModelFactory.createDefaultModel());
+        testModel.add(testModel.createResource("http://example.org/missing1"), RDFS.label, "Added later");
+        int afterUpdate = countResults(queryString, ModelFactory.createDefaultModel());
+
+        // then
+        assertEquals(1, before);
+        assertEquals(2, afterUpdate);
+        assertEquals(3, registry.getSkippedCallCount(serviceUri));
+        assertTrue(registry.rebuildExistenceFilter(serviceUri));
+    }
+
+    @Test
+    void testExistenceFilterOfTdb2DatasetFollowsCommits() throws Exception {
+        // given
+        String serviceUri = ServiceUriConstants.createServiceUri("test-existence-tdb2");
+        registry.initialize();
+        Dataset tdb2 = TDB2Factory.createDataset();
+        tdb2.executeWrite(() -> tdb2.getDefaultModel().add(
+                ResourceFactory.createResource("http://example.org/person1"), RDFS.label, "Person 1"));
+        registry.registerDataset(serviceUri, tdb2, ServiceOptions.builder().existenceFilter(0.001).build());
+        String queryString = existenceQuery(serviceUri);
+
+        // when
+        int before = countResults(queryString, ModelFactory.createDefaultModel());
+        tdb2.executeWrite(() -> tdb2.getDefaultModel().add(
+                ResourceFactory.createResource("http://example.org/missing1"), RDFS.label, "Added later"));
+        int afterCommit = countResults(queryString, ModelFactory.createDefaultModel());
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (registry.getSkippedCallCount(serviceUri) < 3 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+            countResults(queryString, ModelFactory.createDefaultModel());
+        }
+        int afterRebuild = countResults(queryString, ModelFactory.createDefaultModel());
+
+        // then
+        assertEquals(1, before);
+        assertEquals(2, afterCommit);
+        assertEquals(2, afterRebuild);
+        assertTrue(registry.getSkippedCallCount(serviceUri) >= 3);
+    }
+
+    @Test
+    void testExistenceFilterOfInMemoryDatasetIsRebuiltOnRequest() {
+        // given
+        String serviceUri = ServiceUriConstants.createServiceUri("test-existence-in-memory");
+        registry.initialize();
+        Dataset dataset = DatasetFactory.createTxnMem();
+        registry.registerDataset(serviceUri, dataset, ServiceOptions.builder().existenceFilter(0.001).build());
+        String queryString = existenceQuery(serviceUri);
+        dataset.executeWrite(() -> dataset.getDefaultModel().add(
+                ResourceFactory.createResource("http://example.org/missing1"), RDFS.label, "Added later"));
+
+        // when
+        int beforeRebuild = countResults(queryString, ModelFactory.createDefaultModel());
+        boolean rebuilt = registry.rebuildExistenceFilter(serviceUri);
+        int afterRebuild = countResults(queryString, ModelFactory.createDefaultModel());
+
+        // then
+        assertEquals(0, beforeRebuild);
+        assertTrue(rebuilt);
+        assertEquals(1, afterRebuild);
+    }
+
+    private static String existenceQuery(String serviceUri) {
+        return String.format("""
+            PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>
+
+            SELECT ?person ?label
+            WHERE {
+              VALUES ?person { <http://example.org/person1> <http://example.org/missing1> <http://example.org/missing2> }
+              SERVICE <%s> {
+                ?person rdfs:label ?label .
+              }
+            }
+            """, serviceUri);
+    }
+
+    @Test
+    void testReplaceKeepsServingOldInstanceUntilNewOneIsLoaded() throws Exception {
+        // given
+        String serviceUri = ServiceUriConstants.createServiceUri("test-replace");
+        registry.initialize();
+        registry.registerModel(serviceUri, testModel);
+        Model reloaded = ModelFactory.createDefaultModel();
+        reloaded.add(reloaded.createResource("http://example.org/person2"), RDFS.label, "Reloaded Person");
+        CountDownLatch loading = new CountDownLatch(1);
+
+        String queryString = String.format("""
+            PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>
+
+            SELECT ?label
+            WHERE {
+              SERVICE <%s> {
+                ?person rdfs:label ?label .
+              }
+            }
+            """, serviceUri);
+
+        // when
+        CompletableFuture<Void> replaced = registry.replaceModel(serviceUri, () -> {
+            try {
+                loading.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return reloaded;
+        });
+
+        // then - the old instance answers while the new one loads
+        assertEquals("Test Person", firstLabel(queryString));
+
+        // when
+        loading.countDown();
+        replaced.get(10, TimeUnit.SECONDS);
+
+        // then - the registered model belongs to the caller and stays open
+        assertEquals("Reloaded Person", firstLabel(queryString));
+        assertFalse(testModel.isClosed());
+        assertTrue(registry.isRegistered(serviceUri));
+
+        // when
+        registry.replaceModel(serviceUri, ModelFactory::createDefaultModel).get(10, TimeUnit.SECONDS);
+
+        // then - the loaded model belongs to the registry and is closed once replaced
+        assertTrue(reloaded.isClosed());
+    }
+
+    private static String firstLabel(String queryString) {
+        try (QueryExecution qExec = QueryExecutionFactory.create(queryString, ModelFactory.createDefaultModel())) {
+            return qExec.execSelect().next().getLiteral("label").getString();
+        }
+    }
+
+    @Test
+    void testServiceSharingTdb2StorageIsEvaluatedInPlace() {
+        // given
+        String serviceUri = ServiceUriConstants.createServiceUri("test-shared-tdb2");
+        registry.initialize();
+        Dataset tdb2 = TDB2Factory.createDataset();
+        tdb2.executeWrite(() -> {
+            Model people = tdb2.getNamedModel("http://example.org/graph/people");
+            people.add(people.createResource("http://example.org/person1"), RDFS.label, "Person 1");
+            people.add(people.createResource("http://example.org/person2"), RDFS.label, "Person 2");
+            Model members = tdb2.getDefaultModel();
+            members.add(members.createResource("http://example.org/person1"),
+                        members.createProperty("http://example.org/memberOf"),
+                        members.createResource("http://example.org/team1"));
+        });
+        registry.registerDataset(serviceUri, tdb2);
+        FederationProfile profile = new FederationProfile();
+
+        String queryString = String.format("""
+            PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>
+
+            SELECT ?person ?label
+            WHERE {
+              ?person <http://example.org/memberOf> ?team .
+              SERVICE <%s> {
+                GRAPH <http://example.org/graph/people> { ?person rdfs:label ?label }
+              }
+            }
+            """, serviceUri);
+
+        // when
+        List<QuerySolution> solutions = tdb2.calculateRead(() -> {
+            try (QueryExecution qExec = QueryExecutionFactory.create(queryString, tdb2)) {
+                qExec.getContext().set(LocalFederationSymbols.PROFILE, profile);
+                return ResultSetFormatter.toList(qExec.execSelect());
+            }
+        });
+
+        // then
+        assertEquals(1, solutions.size());
+        assertEquals("Person 1", solutions.get(0).getLiteral("label").getString());
+        ServiceProfile serviceProfile = profile.getServices().get(0);
+        assertEquals(0, serviceProfile.getCompileNanos());
+        assertEquals(1, serviceProfile.getOutputRows());
+    }
+
+    @Test
+    void testInPlaceServiceInOuterGraphMatchesServiceDefaultGraph() {
+        // given
+        String serviceUri = ServiceUriConstants.createServiceUri("test-shared-tdb2-graph");
+        registry.initialize();
+        Dataset tdb2 = TDB2Factory.createDataset();
+        tdb2.executeWrite(() -> {
+            Model people = tdb2.getNamedModel("http://example.org/graph/people");
+            people.add(people.createResource("http://example.org/person1"), RDFS.label, "Named person 1");
+            Model members = tdb2.getDefaultModel();
+            members.add(members.createResource("http://example.org/person1"), RDFS.label, "Person 1");
+        });
+        registry.registerDataset(serviceUri, tdb2);
+        FederationProfile profile = new FederationProfile();
+
+        String queryString = String.format("""
+            PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>
+
+            SELECT ?label
+            WHERE {
+              GRAPH <http://example.org/graph/people> {
+                SERVICE <%s> { ?person rdfs:label ?label }
+              }
+            }
+            """, serviceUri);
+
+        // when
+        List<QuerySolution> solutions = tdb2.calculateRead(() -> {
+            try (QueryExecution qExec = QueryExecutionFactory.create(queryString, tdb2)) {
+                qExec.getContext().set(LocalFederationSymbols.PROFILE, profile);
+                return ResultSetFormatter.toList(qExec.execSelect());
+            }
+        });
+        List<QuerySolution> unionSolutions = tdb2.calculateRead(() -> {
+            try (QueryExecution qExec = QueryExecutionFactory.create(String.format(
+                    "SELECT ?label WHERE { SERVICE <%s> { ?person <%s> ?label } }", serviceUri, RDFS.label.getURI()), tdb2)) {
+                qExec.getContext().set(TDB2.symUnionDefaultGraph, true);
+                return ResultSetFormatter.toList(qExec.execSelect());
+            }
+        });
+
+        // then
+        assertEquals(1, solutions.size());
+        assertEquals("Person 1", solutions.get(0).getLiteral("label").getString());
+        assertEquals(0, profile.getServices().get(0).getCompileNanos());
+        assertEquals(1, unionSolutions.size());
+        assertEquals("Person 1", unionSolutions.get(0).getLiteral("label").getString());
+    }
+
+    @Test
+    void testBulkheadedServiceSharingTdb2StorageReleasesPermitWhileStreaming() {
+        // given
+        String serviceUri = ServiceUriConstants.createServiceUri("test-shared-tdb2-bulkhead");
+        registry.initialize();
+        Dataset tdb2 = TDB2Factory.createDataset();
+        tdb2.executeWrite(() -> {
+            Model people = tdb2.getNamedModel("http://example.org/graph/people");
+            people.add(people.createResource("http://example.org/person1"), RDFS.label, "Person 1");
+            people.add(people.createResource("http://example.org/person1"), RDFS.label, "First person");
+            Model members = tdb2.getDefaultModel();
+            members.add(members.createResource("http://example.org/person1"),
+                        members.createProperty("http://example.org/memberOf"),
+                        members.createResource("http://example.org/team1"));
+        });
+        registry.registerDataset(serviceUri, tdb2, ServiceOptions.builder()
+                                                               .maxConcurrency(1)
+                                                               .maxQueueWait(Duration.ofMillis(100))
+                                                               .build());
+
+        String queryString = String.format("""
+            PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>
+
+            SELECT ?person ?label ?team
+            WHERE {
+              SERVICE <%1$s> {
+                GRAPH <http://example.org/graph/people> { ?person rdfs:label ?label }
+              }
+              SERVICE <%1$s> {
+                ?person <http://example.org/memberOf> ?team
+              }
+            }
+            """, serviceUri);
+
+        // when - the second SERVICE clause runs while the first one's rows are still being read
+        int[] result = tdb2.calculateRead(() -> {
+            int whileReading;
+            int count = 0;
+            try (QueryExecution qExec = QueryExecutionFactory.create(queryString, tdb2)) {
+                ResultSet results = qExec.execSelect();
+                results.next();
+                count++;
+                whileReading = registry.getBulkheadMetrics(serviceUri).activeCalls();
+                while (results.hasNext()) {
+                    results.next();
+                    count++;
+                }
+            }
+            return new int[]{count, whileReading};
+        });
+
+        // then
+        assertEquals(2, result[0]);
+        assertEquals(0, result[1]);
+        assertEquals(0, registry.getBulkheadMetrics(serviceUri).rejectedCalls());
+    }
+
+    @Test
+    void testTopKIsPushedIntoLocalService() {
+        // given
+        String serviceUri = ServiceUriConstants.createServiceUri("test-top-k");
+        registry.initialize();
+        Model people = ModelFactory.createDefaultModel();
+        for (int i = 1; i <= 50; i++) {
+            people.add(people.createResource("http://example.org/person" + i), RDFS.label, String.format("Person %02d", i));
+        }
+        registry.registerModel(serviceUri, people);
+        Model primaryModel = ModelFactory.createDefaultModel();
+        FederationProfile profile = new FederationProfile();
+
+        String queryString = String.format("""
+            PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>
+
+            SELECT ?person ?label
+            WHERE {
+              SERVICE <%s> {
+                ?person rdfs:label ?label .
+              }
+            }
+            ORDER BY DESC(?label)
+            LIMIT 3
+            """, serviceUri);
+
+        // when
+        List<QuerySolution> solutions;
+        try (QueryExecution qExec = QueryExecutionFactory.create(queryString, primaryModel)) {
+            registry.attachTo(qExec);
+            qExec.getContext().set(LocalFederationSymbols.PROFILE, profile);
+            solutions = ResultSetFormatter.toList(qExec.execSelect());
+        }
+
+        // then
+        assertEquals(List.of("Person 50", "Person 49", "Person 48"),
+                     solutions.stream().map(solution -> solution.getLiteral("label").getString()).toList());
+        assertEquals(3, profile.getServices().get(0).getOutputRows());
+    }
+
+    @Test
+    void testTopKIsPushedOnceAndOnlyInAttachedContext() {
+        // given
+        String serviceUri = ServiceUriConstants.createServiceUri("test-top-k-attached");
+        registry.initialize();
+        registry.registerModel(serviceUri, ModelFactory.createDefaultModel());
+        Context context = ARQ.getContext().copy();
+        registry.attachTo(context);
+        Op op = Algebra.compile(QueryFactory.create(String.format(
+                "SELECT ?label WHERE { SERVICE <%s> { ?person <%s> ?label } } ORDER BY ?label LIMIT 3",
+                serviceUri, RDFS.label.getURI())));
+
+        // when
+        Op global = Algebra.optimize(op, ARQ.getContext().copy());
+        Op optimized = Algebra.optimize(op, context);
+        Op twice = new TopKPushdown(registry, null).create(context).rewrite(optimized);
+
+        // then
+        assertEquals(1, countTopN(global));
+        assertEquals(2, countTopN(optimized));
+        assertEquals(2, countTopN(twice));
+    }
+
+    private static int countTopN(Op op) {
+        int[] count = {0};
+        OpWalker.walk(op, new OpVisitorBase() {
+            @Override
+            public void visit(OpTopN opTop) {
+                count[0]++;
+            }
+        });
+        return count[0];
+    }
+
+    @Test
+    void testClosurePredicatesAreAnsweredFromIndexAndFollowChanges() {
+        // given
+        String serviceUri = ServiceUriConstants.createServiceUri("test-closure");
+        String broader = "http://www.w3.org/2004/02/skos/core#broader";
+        registry.initialize();
+        Model concepts = ModelFactory.createDefaultModel();
+        Property broaderProperty = concepts.createProperty(broader);
+        Resource animal = concepts.createResource("http://example.org/animal");
+        Resource mammal = concepts.createResource("http://example.org/mammal");
+        Resource dog = concepts.createResource("http://example.org/dog");
+        Resource cat = concepts.createResource("http://example.org/cat");
+        concepts.add(mammal, broaderProperty, animal);
+        concepts.add(dog, broaderProperty, mammal);
+        concepts.add(cat, broaderProperty, mammal);
+        registry.registerModel(serviceUri, concepts, ServiceOptions.builder().closurePredicates(broader).build());
+        Model primaryModel = ModelFactory.createDefaultModel();
+
+        String ancestorsOfDog = String.format("""
+            SELECT ?ancestor
+            WHERE {
+              SERVICE <%s> {
+                <http://example.org/dog> <%s>+ ?ancestor .
+              }
+            }
+            """, serviceUri, broader);
+        String conceptsUnderMammal = String.format("""
+            SELECT ?concept
+            WHERE {
+              SERVICE <%s> {
+                ?concept <%s>* <http://example.org/mammal> .
+              }
+            }
+            """, serviceUri, broader);
+
+        // when
+        int ancestorsBefore = countResults(ancestorsOfDog, primaryModel);
+        int conceptsUnderMammalBefore = countResults(conceptsUnderMammal, primaryModel);
+        concepts.add(animal, broaderProperty, concepts.createResource("http://example.org/organism"));
+        int ancestorsAfter = countResults(ancestorsOfDog, primaryModel);
+
+        // then
+        assertEquals(2, ancestorsBefore);
+        assertEquals(3, conceptsUnderMammalBefore);
+        assertEquals(3, ancestorsAfter);
+    }
+
+    @Test
+    void testPipelinedServiceCallsKeepOuterOrder() {
+        // given
+        String serviceUri = ServiceUriConstants.createServiceUri("test-pipeline");
+        registry.initialize();
+        registry.setPipelineWindow(4);
+        Model people = ModelFactory.createDefaultModel();
+        StringBuilder values = new StringBuilder();
+        for (int i = 1; i <= 20; i++) {
+            Resource person = people.createResource("http://example.org/person" + i);
+            people.add(person, RDFS.label, "Person " + i);
+            people.add(person, RDFS.label, "P" + i);
+            values.append(" <http://example.org/person").append(21 - i).append('>');
+        }
+        registry.registerModel(serviceUri, people);
+        Model primaryModel = ModelFactory.createDefaultModel();
+
+        String queryString = String.format("""
+            PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>
+
+            SELECT ?person ?label
+            WHERE {
+              VALUES ?person { %s }
+              SERVICE <%s> {
+                ?person rdfs:label ?label .
+              }
+            }
+            """, values, serviceUri);
+
+        // when
+        List<String> sequential;
+        try (QueryExecution qExec = QueryExecutionFactory.create(queryString, primaryModel)) {
+            qExec.getContext().set(LocalFederationSymbols.PIPELINE_WINDOW, 0);
+            sequential = ResultSetFormatter.toList(qExec.execSelect()).stream().map(Object::toString).toList();
+        }
+        List<String> pipelined;
+        try (QueryExecution qExec = QueryExecutionFactory.create(queryString, primaryModel)) {
+            pipelined = ResultSetFormatter.toList(qExec.execSelect()).stream().map(Object::toString).toList();
+        }
+
+        // then
+        assertEquals(40, pipelined.size());
+        assertEquals(sequential, pipelined);
+        assertTrue(pipelined.get(0).contains("person20"));
+    }
+
+    @Test
+    void testNestedServiceCallsOnPipelineThreadsAreNotPipelined() {
+        // given
+        String labelsUri = ServiceUriConstants.createServiceUri("test-pipeline-labels");
+        String agesUri = ServiceUriConstants.createServiceUri("test-pipeline-ages");
+        registry.initialize();
+        registry.setPipelineWindow(4);
+        registry.setPipelineParallelism(1);
+        Model labels = ModelFactory.createDefaultModel();
+        Model ages = ModelFactory.createDefaultModel();
+        Property age = ages.createProperty("http://example.org/age");
+        for (int i = 1; i <= 8; i++) {
+            labels.add(labels.createResource("http://example.org/person" + i), RDFS.label, "Person " + i);
+            ages.add(ages.createResource("http://example.org/person" + i), age, ages.createTypedLiteral(20 + i));
+        }
+        registry.registerModel(labelsUri, labels);
+        registry.registerModel(agesUri, ages);
+
+        String queryString = String.format("""
+            PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>
+
+            SELECT ?person ?label ?age
+            WHERE {
+              VALUES ?person { <http://example.org/person1> <http://example.org/person2> <http://example.org/person3> }
+              SERVICE <%s> {
+                ?person rdfs:label ?label .
+                SERVICE <%s> { ?person <http://example.org/age> ?age }
+              }
+            }
+            """, labelsUri, agesUri);
+
+        // when - the single pipeline thread would otherwise wait for the nested calls it queued itself
+        int count = assertTimeoutPreemptively(Duration.ofSeconds(10),
+                                              () -> countResults(queryString, ModelFactory.createDefaultModel()));
+
+        // then
+        assertEquals(3, count);
+    }
+
+    @Test
+    void testClosingOrCancellingPipelineSkipsQueuedCalls() {
+        // given
+        String serviceUri = ServiceUriConstants.createServiceUri("test-pipeline-close");
+        registry.initialize();
+        Model people = ModelFactory.createDefaultModel();
+        for (int i = 1; i <= 4; i++) {
+            people.add(people.createResource("http://example.org/person" + i), RDFS.label, "Person " + i);
+        }
+        registry.registerModel(serviceUri, people);
+        OpService opService = (OpService) Algebra.parse(String.format(
+                "(service <%s> (bgp (?person <%s> ?label)))", serviceUri, RDFS.label.getURI()));
+
+        for (boolean cancel : new boolean[]{false, true}) {
+            FederationProfile profile = new FederationProfile();
+            ExecutionContext execCxt = new ExecutionContext(DatasetGraphFactory.create());
+            execCxt.getContext().set(LocalFederationSymbols.PROFILE, profile);
+            List<Binding> outer = new ArrayList<>();
+            for (int i = 1; i <= 4; i++) {
+                outer.add(BindingFactory.binding(Var.alloc("person"), NodeFactory.createURI("http://example.org/person" + i)));
+            }
+            QueuingExecutor executor = new QueuingExecutor();
+            PipelinedServiceJoin join = new PipelinedServiceJoin(QueryIterPlainWrapper.create(outer.iterator(), execCxt),
+                                                                 opService, registry, null, 4, executor, execCxt);
+
+            // when - the first call runs right away, the other three stay queued
+            assertTrue(join.hasNext());
+            if (cancel) {
+                join.cancel();
+            } else {
+                join.close();
+            }
+            int queued = executor.runQueued();
+
+            // then
+            assertEquals(3, queued);
+            assertEquals(1, profile.getServices().get(0).getInvocations());
+        }
+    }
+
+    /**
+     * Runs the first task on the submitting thread and queues the others until {@link #runQueued()}.
+     */
+    private static final class QueuingExecutor extends AbstractExecutorService {
+
+        private final Deque<Runnable> queue = new ArrayDeque<>();
+        private boolean first = true;
+
+        @Override
+        public void execute(Runnable command) {
+            if (first) {
+                first = false;
+                command.run();
+            } else {
+                queue.add(command);
+            }
+        }
+
+        int runQueued() {
+            int count = 0;
+            Runnable command;
+            while ((command = queue.poll()) != null) {
+                command.run();
+                count++;
+            }
+            return count;
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return List.of();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return false;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return false;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return false;
+        }
+    }
+
+    @Test
+    void testParallelScanReturnsSameSolutionsAsSingleScan() {
+        // given
+        String sequentialUri = ServiceUriConstants.createServiceUri("test-single-scan");
+        String parallelUri = ServiceUriConstants.createServiceUri("test-parallel-scan");
+        registry.initialize();
+        Dataset items = TDB2Factory.createDataset();
+        items.executeWrite(() -> {
+            Model model = items.getDefaultModel();
+            Resource itemClass = model.createResource("http://example.org/Item");
+            for (int i = 1; i <= 100; i++) {
+                Resource item = model.createResource("http://example.org/item" + i);
+                model.add(item, RDF.type, itemClass);
+                model.add(item, RDFS.label, "Item " + i);
+            }
+        });
+        registry.registerDataset(sequentialUri, items);
+        registry.registerDataset(parallelUri, items, ServiceOptions.builder()
+                                                                   .scanParallelism(4)
+                                                                   .parallelScanThreshold(10)
+                                                                   .build());
+        Model primaryModel = ModelFactory.createDefaultModel();
+        FederationProfile profile = new FederationProfile();
+
+        String queryTemplate = """
+            PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>
+
+            SELECT ?item ?label
+            WHERE {
+              SERVICE <%s> {
+                ?item a <http://example.org/Item> ;
+                      rdfs:label ?label .
+              }
+            }
+            ORDER BY ?label
+            """;
+
+        // when
+        List<String> sequential = labels(String.format(queryTemplate, sequentialUri), primaryModel, null);
+        List<String> parallel = labels(String.format(queryTemplate, parallelUri), primaryModel, profile);
+
+        // then
+        assertEquals(100, parallel.size());
+        assertEquals(sequential, parallel);
+        assertEquals(1, profile.getServices().get(0).getPartitionedInvocations());
+    }
+
+    private static List<String> labels(String queryString, Model model, FederationProfile profile) {
+        try (QueryExecution qExec = QueryExecutionFactory.create(queryString, model)) {
+            if (profile != null) {
+                qExec.getContext().set(LocalFederationSymbols.PROFILE, profile);
+            }
+            return ResultSetFormatter.toList(qExec.execSelect()).stream()
+                                     .map(solution -> solution.getLiteral("label").getString())
+                                     .toList();
+        }
+    }
+
+    private static int countResults(String queryString, Model model) {
+        try (QueryExecution qExec = QueryExecutionFactory.create(queryString, model)) {
+            return ResultSetFormatter.consume(qExec.execSelect());
+        }
+    }
+
     @Test
     void testUnregisteredServiceUri() {
         // given
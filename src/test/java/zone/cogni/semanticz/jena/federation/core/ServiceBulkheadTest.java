@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package zone.cogni.semanticz.jena.federation.core;
+
+import org.apache.jena.rdf.model.ModelFactory;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ServiceBulkheadTest {
+
+    @Test
+    void testUnlimitedConcurrencyHasNoBulkhead() {
+        // given
+        ServiceOptions options = ServiceOptions.defaults();
+
+        // when
+        ServiceBulkhead bulkhead = ServiceBulkhead.fromOptions(options);
+
+        // then
+        assertNull(bulkhead);
+    }
+
+    @Test
+    void testSaturatedServiceRejectsWithoutQueue() {
+        // given
+        ServiceBulkhead bulkhead = ServiceBulkhead.fromOptions(ServiceOptions.builder()
+                .maxConcurrency(1)
+                .maxQueueDepth(0)
+                .build());
+
+        // when
+        boolean first = bulkhead.tryEnter();
+        boolean second = bulkhead.tryEnter();
+
+        // then
+        assertTrue(first);
+        assertFalse(second);
+        BulkheadMetrics metrics = bulkhead.metrics();
+        assertEquals(1, metrics.activeCalls());
+        assertEquals(1, metrics.admittedCalls());
+        assertEquals(1, metrics.rejectedCalls());
+
+        // when - the running call finishes
+        bulkhead.exit();
+
+        // then - the next call is admitted
+        assertTrue(bulkhead.tryEnter());
+        bulkhead.exit();
+        assertEquals(0, bulkhead.metrics().activeCalls());
+    }
+
+    @Test
+    void testQueuedCallIsRejectedAfterMaxWait() {
+        // given
+        ServiceBulkhead bulkhead = ServiceBulkhead.fromOptions(ServiceOptions.builder()
+                .maxConcurrency(1)
+                .maxQueueDepth(1)
+                .maxQueueWait(Duration.ofMillis(20))
+                .fairQueueing(true)
+                .build());
+        assertTrue(bulkhead.tryEnter());
+
+        // when
+        boolean queued = bulkhead.tryEnter();
+
+        // then
+        assertFalse(queued);
+        BulkheadMetrics metrics = bulkhead.metrics();
+        assertEquals(0, metrics.queueDepth());
+        assertEquals(1, metrics.rejectedCalls());
+        assertTrue(metrics.maxWaitNanos() >= Duration.ofMillis(20).toNanos());
+    }
+
+    @Test
+    void testRegistryExposesBulkheadMetrics() {
+        // given
+        LocalSparqlServiceRegistry registry = new LocalSparqlServiceRegistry();
+        String serviceUri = ServiceUriConstants.createServiceUri("test-bulkhead");
+        registry.registerModel(serviceUri, ModelFactory.createDefaultModel(), ServiceOptions.builder().maxConcurrency(1).build());
+
+        // when
+        BulkheadMetrics metrics = registry.getBulkheadMetrics(serviceUri);
+
+        // then
+        assertEquals(1, metrics.maxConcurrency());
+        assertEquals(0, metrics.activeCalls());
+        assertNull(registry.getBulkheadMetrics(ServiceUriConstants.createServiceUri("unknown")));
+    }
+}
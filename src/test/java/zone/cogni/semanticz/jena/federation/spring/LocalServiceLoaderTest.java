@@ -0,0 +1,104 @@
+package zone.cogni.semanticz.jena.federation.spring;
+
+import org.apache.jena.query.QueryExecution;
+import org.apache.jena.query.QueryExecutionFactory;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import zone.cogni.semanticz.jena.federation.core.LocalSparqlServiceRegistry;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LocalServiceLoaderTest {
+
+  @TempDir
+  Path tempDir;
+
+  @Test
+  void declaredServicesAreLoadedBeforeContextIsReady() throws IOException {
+    // given
+    Path vocabulary = writeTurtle("vocabulary.ttl", "<http://example.org/a> <http://example.org/p> \"A\" .");
+    Path persons = writeTurtle("persons.ttl", "<http://example.org/b> <http://example.org/p> \"B\" .");
+
+    // when
+    try (ConfigurableApplicationContext ctx = run(
+            "semanticz.jena.federation.services[0].name=vocabulary",
+            "semanticz.jena.federation.services[0].file=" + vocabulary,
+            "semanticz.jena.federation.services[1].uri=urn:jena:service:persons",
+            "semanticz.jena.federation.services[1].file=" + persons)) {
+
+      LocalSparqlServiceRegistry registry = ctx.getBean(LocalSparqlServiceRegistry.class);
+      LocalServiceLoader loader = ctx.getBean(LocalServiceLoader.class);
+
+      // then
+      assertTrue(loader.isReady());
+      assertTrue(registry.isRegistered("urn:jena:service:vocabulary"));
+      assertTrue(registry.isRegistered("urn:jena:service:persons"));
+      assertEquals(LocalServiceLoader.LoadState.LOADED, loader.getLoadStates().get("urn:jena:service:vocabulary"));
+
+      String query = "SELECT ?o WHERE { SERVICE <urn:jena:service:vocabulary> { ?s ?p ?o } }";
+      try (QueryExecution qExec = QueryExecutionFactory.create(query, ModelFactory.createDefaultModel())) {
+        ResultSet results = qExec.execSelect();
+        assertTrue(results.hasNext());
+        assertEquals("A", results.next().getLiteral("o").getString());
+      }
+    }
+  }
+
+  @Test
+  void ignoredFailureDoesNotBlockStartup() throws IOException {
+    // given
+    Path vocabulary = writeTurtle("vocabulary.ttl", "<http://example.org/a> <http://example.org/p> \"A\" .");
+
+    // when
+    try (ConfigurableApplicationContext ctx = run(
+            "semanticz.jena.federation.services[0].name=vocabulary",
+            "semanticz.jena.federation.services[0].file=" + vocabulary,
+            "semanticz.jena.federation.services[1].name=missing",
+            "semanticz.jena.federation.services[1].file=" + tempDir.resolve("missing.ttl"),
+            "semanticz.jena.federation.services[1].failure-policy=ignore")) {
+
+      LocalSparqlServiceRegistry registry = ctx.getBean(LocalSparqlServiceRegistry.class);
+      LocalServiceLoader loader = ctx.getBean(LocalServiceLoader.class);
+
+      // then
+      assertTrue(loader.isReady());
+      assertTrue(registry.isRegistered("urn:jena:service:vocabulary"));
+      assertFalse(registry.isRegistered("urn:jena:service:missing"));
+      assertEquals(LocalServiceLoader.LoadState.FAILED, loader.getLoadStates().get("urn:jena:service:missing"));
+    }
+  }
+
+  @Test
+  void failingEagerServiceAbortsStartup() {
+    // given
+    String missing = tempDir.resolve("missing.ttl").toString();
+
+    // when/then
+    assertThrows(Exception.class, () -> run(
+            "semanticz.jena.federation.services[0].name=missing",
+            "semanticz.jena.federation.services[0].file=" + missing).close());
+  }
+
+  private ConfigurableApplicationContext run(String... properties) {
+    return new SpringApplicationBuilder(LocalSparqlServiceConfiguration.class)
+            .properties(properties)
+            .run();
+  }
+
+  private Path writeTurtle(String fileName, String content) throws IOException {
+    Path file = tempDir.resolve(fileName);
+    Files.writeString(file, content);
+    return file;
+  }
+}